@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package com.github.fge.ftpfs;
+
+import javax.annotation.concurrent.Immutable;
+import java.nio.file.CopyOption;
+import java.nio.file.OpenOption;
+
+/**
+ * A bandwidth limit for one single transfer
+ *
+ * <p>Pass an instance of this class as an option to {@code newInputStream()}
+ * or {@code copy()}, or to {@code newByteChannel()} along with {@link
+ * FtpOpenOption#STAGED}; the transfer will not exceed the given rate. This
+ * limit applies in addition to the limit of the file system, if any (see
+ * {@link FtpConfiguration.Builder#setBandwidthLimit(long)}).</p>
+ */
+@Immutable
+public final class BandwidthLimit
+    implements OpenOption, CopyOption
+{
+    private final long bytesPerSecond;
+
+    public BandwidthLimit(final long bytesPerSecond)
+    {
+        if (bytesPerSecond <= 0L)
+            throw new IllegalArgumentException("illegal rate "
+                + bytesPerSecond);
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "bandwidth limit: " + bytesPerSecond + " bytes/s";
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs;
+
+import javax.annotation.concurrent.Immutable;
+import java.nio.file.FileSystem;
+
+/**
+ * A snapshot of the statistics of a cache of a file system
+ *
+ * @see FtpFileSystemProvider#getContentCacheStatistics(FileSystem)
+ * @see FtpFileSystemProvider#getBlockCacheStatistics(FileSystem)
+ */
+@Immutable
+public final class CacheStatistics
+{
+    private final long hits;
+    private final long misses;
+    private final long size;
+
+    CacheStatistics(final long hits, final long misses, final long size)
+    {
+        this.hits = hits;
+        this.misses = misses;
+        this.size = size;
+    }
+
+    /**
+     * Get the number of requests served from the cache
+     *
+     * @return the number of hits
+     */
+    public long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Get the number of requests which required a transfer
+     *
+     * @return the number of misses
+     */
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Get the amount of data held by the cache
+     *
+     * @return the size, in bytes
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Get the proportion of requests served from the cache
+     *
+     * @return the hit ratio (0 if there was no request)
+     */
+    public double getHitRatio()
+    {
+        final long total = hits + misses;
+        return total == 0L ? 0.0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d hits, %d misses, %d bytes", hits, misses,
+            size);
+    }
+}
@@ -18,11 +18,13 @@
 
 package com.github.fge.ftpfs;
 
+import com.github.fge.ftpfs.io.RetryPolicy;
 import org.apache.commons.net.ftp.FTP;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.Immutable;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 @Immutable
 public final class FtpConfiguration
@@ -31,6 +33,22 @@ public final class FtpConfiguration
     private final int port;
     private final String username;
     private final String password;
+    private final int readAheadSize;
+    private final long minSegmentSize;
+    private final int maxSegments;
+    private final RetryPolicy retryPolicy;
+    private final int prefetchDepth;
+    private final long bandwidthLimit;
+    private final long stagingCapacity;
+    private final int writeBufferSize;
+    private final int replayBufferSize;
+    private final long spoolCapacity;
+    private final long attributeCacheTtl;
+    private final int attributeCacheSize;
+    private final int listingCacheSize;
+    private final long negativeCacheTtl;
+    private final long listingMaxStaleness;
+    private final long blockCacheCapacity;
 
     public static Builder newBuilder()
     {
@@ -43,6 +61,22 @@ public final class FtpConfiguration
         port = builder.port;
         username = builder.username;
         password = builder.password;
+        readAheadSize = builder.readAheadSize;
+        minSegmentSize = builder.minSegmentSize;
+        maxSegments = builder.maxSegments;
+        retryPolicy = builder.retryPolicy;
+        prefetchDepth = builder.prefetchDepth;
+        bandwidthLimit = builder.bandwidthLimit;
+        stagingCapacity = builder.stagingCapacity;
+        writeBufferSize = builder.writeBufferSize;
+        replayBufferSize = builder.replayBufferSize;
+        spoolCapacity = builder.spoolCapacity;
+        attributeCacheTtl = builder.attributeCacheTtl;
+        attributeCacheSize = builder.attributeCacheSize;
+        listingCacheSize = builder.listingCacheSize;
+        negativeCacheTtl = builder.negativeCacheTtl;
+        listingMaxStaleness = builder.listingMaxStaleness;
+        blockCacheCapacity = builder.blockCacheCapacity;
     }
 
     public String getHostname()
@@ -65,6 +99,86 @@ public final class FtpConfiguration
         return password;
     }
 
+    public int getReadAheadSize()
+    {
+        return readAheadSize;
+    }
+
+    public long getMinSegmentSize()
+    {
+        return minSegmentSize;
+    }
+
+    public int getMaxSegments()
+    {
+        return maxSegments;
+    }
+
+    public RetryPolicy getRetryPolicy()
+    {
+        return retryPolicy;
+    }
+
+    public int getPrefetchDepth()
+    {
+        return prefetchDepth;
+    }
+
+    public long getBandwidthLimit()
+    {
+        return bandwidthLimit;
+    }
+
+    public long getStagingCapacity()
+    {
+        return stagingCapacity;
+    }
+
+    public int getWriteBufferSize()
+    {
+        return writeBufferSize;
+    }
+
+    public int getReplayBufferSize()
+    {
+        return replayBufferSize;
+    }
+
+    public long getSpoolCapacity()
+    {
+        return spoolCapacity;
+    }
+
+    public long getAttributeCacheTtl()
+    {
+        return attributeCacheTtl;
+    }
+
+    public int getAttributeCacheSize()
+    {
+        return attributeCacheSize;
+    }
+
+    public int getListingCacheSize()
+    {
+        return listingCacheSize;
+    }
+
+    public long getNegativeCacheTtl()
+    {
+        return negativeCacheTtl;
+    }
+
+    public long getListingMaxStaleness()
+    {
+        return listingMaxStaleness;
+    }
+
+    public long getBlockCacheCapacity()
+    {
+        return blockCacheCapacity;
+    }
+
     public static final class Builder
     {
         private static final int MIN_PORT = 0;
@@ -75,6 +189,23 @@ public final class FtpConfiguration
         private String username = "anonymous";
         // lftp sends lftp@ as a password and it works pretty well, so...
         private String password = "java7fsftp@";
+        private int readAheadSize = 128 * 1024;
+        private long minSegmentSize = 16L * 1024L * 1024L;
+        private int maxSegments = 4;
+        private RetryPolicy retryPolicy
+            = new RetryPolicy(3, 1L, TimeUnit.SECONDS);
+        private int prefetchDepth = 0;
+        private long bandwidthLimit = 0L;
+        private long stagingCapacity = 1024L * 1024L * 1024L;
+        private int writeBufferSize = 256 * 1024;
+        private int replayBufferSize = 8 * 1024 * 1024;
+        private long spoolCapacity = 256L * 1024L * 1024L;
+        private long attributeCacheTtl = 1000L;
+        private int attributeCacheSize = 10000;
+        private int listingCacheSize = 1000;
+        private long negativeCacheTtl = 500L;
+        private long listingMaxStaleness = 0L;
+        private long blockCacheCapacity = 0L;
 
         private Builder()
         {
@@ -110,9 +241,293 @@ public final class FtpConfiguration
             return this;
         }
 
+        public Builder setReadAheadSize(final int readAheadSize)
+        {
+            if (readAheadSize <= 0)
+                throw new IllegalArgumentException("illegal read ahead size "
+                    + readAheadSize);
+            this.readAheadSize = readAheadSize;
+            return this;
+        }
+
+        public Builder setMinSegmentSize(final long minSegmentSize)
+        {
+            if (minSegmentSize <= 0L)
+                throw new IllegalArgumentException("illegal minimum segment"
+                    + " size " + minSegmentSize);
+            this.minSegmentSize = minSegmentSize;
+            return this;
+        }
+
+        public Builder setMaxSegments(final int maxSegments)
+        {
+            if (maxSegments <= 0)
+                throw new IllegalArgumentException("illegal maximum number of"
+                    + " segments " + maxSegments);
+            this.maxSegments = maxSegments;
+            return this;
+        }
+
+        public Builder setRetryPolicy(final RetryPolicy retryPolicy)
+        {
+            this.retryPolicy = Objects.requireNonNull(retryPolicy,
+                "retry policy cannot be null");
+            return this;
+        }
+
+        /**
+         * Set the number of buffers read ahead by input streams
+         *
+         * <p>A value of 0 (the default) disables prefetching.</p>
+         *
+         * @param prefetchDepth the number of buffers
+         * @return this
+         */
+        public Builder setPrefetchDepth(final int prefetchDepth)
+        {
+            if (prefetchDepth < 0)
+                throw new IllegalArgumentException("illegal prefetch depth "
+                    + prefetchDepth);
+            this.prefetchDepth = prefetchDepth;
+            return this;
+        }
+
+        /**
+         * Set the bandwidth limit for all downloads of this file system
+         *
+         * <p>All downloads share this limit, except those opened with {@link
+         * FtpOpenOption#PRIORITY}. A value of 0 (the default) means no limit.
+         * </p>
+         *
+         * <p>The limit applies to input streams, to channels opened with
+         * {@link FtpOpenOption#STAGED} and to copies; it does not apply to
+         * other channels, nor to uploads.</p>
+         *
+         * @param bandwidthLimit the limit, in bytes per second
+         * @return this
+         */
+        public Builder setBandwidthLimit(final long bandwidthLimit)
+        {
+            if (bandwidthLimit < 0L)
+                throw new IllegalArgumentException("illegal bandwidth limit "
+                    + bandwidthLimit);
+            this.bandwidthLimit = bandwidthLimit;
+            return this;
+        }
+
+        /**
+         * Set the maximum total size of local copies of remote files
+         *
+         * <p>Local copies are created when opening a channel with {@link
+         * FtpOpenOption#STAGED}. The default is 1 GiB.</p>
+         *
+         * @param stagingCapacity the capacity, in bytes
+         * @return this
+         */
+        public Builder setStagingCapacity(final long stagingCapacity)
+        {
+            if (stagingCapacity < 0L)
+                throw new IllegalArgumentException("illegal staging capacity "
+                    + stagingCapacity);
+            this.stagingCapacity = stagingCapacity;
+            return this;
+        }
+
+        /**
+         * Set the size of the buffer of output streams
+         *
+         * <p>This is also the size requested for the send buffer of upload
+         * data connections. The default is 256 KiB.</p>
+         *
+         * @param writeBufferSize the buffer size, in bytes
+         * @return this
+         */
+        public Builder setWriteBufferSize(final int writeBufferSize)
+        {
+            if (writeBufferSize <= 0)
+                throw new IllegalArgumentException("illegal write buffer size "
+                    + writeBufferSize);
+            this.writeBufferSize = writeBufferSize;
+            return this;
+        }
+
+        /**
+         * Set the size of the replay buffer of resumable uploads
+         *
+         * <p>A resumable upload can only resume if the server has lost less
+         * than this amount of data. The default is 8 MiB.</p>
+         *
+         * @param replayBufferSize the buffer size, in bytes
+         * @return this
+         *
+         * @see FtpOpenOption#RESUME
+         */
+        public Builder setReplayBufferSize(final int replayBufferSize)
+        {
+            if (replayBufferSize <= 0)
+                throw new IllegalArgumentException("illegal replay buffer "
+                    + "size " + replayBufferSize);
+            this.replayBufferSize = replayBufferSize;
+            return this;
+        }
+
+        /**
+         * Set the maximum amount of data waiting to be uploaded in the
+         * background
+         *
+         * <p>Data written to streams opened with {@link
+         * FtpOpenOption#DEFERRED} is spooled until it is uploaded. When the
+         * spool is full, writers wait for pending uploads to make room. The
+         * default is 256 MiB.</p>
+         *
+         * @param spoolCapacity the capacity, in bytes
+         * @return this
+         */
+        public Builder setSpoolCapacity(final long spoolCapacity)
+        {
+            if (spoolCapacity <= 0L)
+                throw new IllegalArgumentException("illegal spool capacity "
+                    + spoolCapacity);
+            this.spoolCapacity = spoolCapacity;
+            return this;
+        }
+
+        /**
+         * Set the time during which the attributes of a remote entry are
+         * cached
+         *
+         * <p>Attributes and directory listings read from the server are
+         * reused for this long, unless the entry is written to, moved or
+         * deleted through this file system in the meantime. A value of 0
+         * disables the cache. The default is one second.</p>
+         *
+         * @param attributeCacheTtl the time to live, in milliseconds
+         * @return this
+         */
+        public Builder setAttributeCacheTtl(final long attributeCacheTtl)
+        {
+            if (attributeCacheTtl < 0L)
+                throw new IllegalArgumentException("illegal attribute cache "
+                    + "TTL " + attributeCacheTtl);
+            this.attributeCacheTtl = attributeCacheTtl;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of entries the attributes of which are
+         * cached
+         *
+         * <p>When the cache is full, the least recently used entry is
+         * evicted. The default is 10000.</p>
+         *
+         * @param attributeCacheSize the number of entries
+         * @return this
+         *
+         * @see #setAttributeCacheTtl(long)
+         */
+        public Builder setAttributeCacheSize(final int attributeCacheSize)
+        {
+            if (attributeCacheSize <= 0)
+                throw new IllegalArgumentException("illegal attribute cache "
+                    + "size " + attributeCacheSize);
+            this.attributeCacheSize = attributeCacheSize;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of directories the listings of which are
+         * cached
+         *
+         * <p>Listings are cached for the same time as attributes; the
+         * attributes of an entry are read from the cached listing of its
+         * parent directory if there is one. The default is 1000.</p>
+         *
+         * @param listingCacheSize the number of directories
+         * @return this
+         *
+         * @see #setAttributeCacheTtl(long)
+         */
+        public Builder setListingCacheSize(final int listingCacheSize)
+        {
+            if (listingCacheSize <= 0)
+                throw new IllegalArgumentException("illegal listing cache "
+                    + "size " + listingCacheSize);
+            this.listingCacheSize = listingCacheSize;
+            return this;
+        }
+
+        /**
+         * Set the time during which a remote entry is known not to exist
+         *
+         * <p>When the server reports that an entry does not exist, this
+         * answer is reused for this long, unless the entry is created through
+         * this file system, or appears in a directory listing, in the
+         * meantime. A value of 0 disables this cache. The default is 500
+         * milliseconds.</p>
+         *
+         * @param negativeCacheTtl the time to live, in milliseconds
+         * @return this
+         */
+        public Builder setNegativeCacheTtl(final long negativeCacheTtl)
+        {
+            if (negativeCacheTtl < 0L)
+                throw new IllegalArgumentException("illegal negative cache "
+                    + "TTL " + negativeCacheTtl);
+            this.negativeCacheTtl = negativeCacheTtl;
+            return this;
+        }
+
+        /**
+         * Set the time during which an expired directory listing can still be
+         * used
+         *
+         * <p>When a cached listing has expired for less than this time, it is
+         * used anyway, and refreshed in the background; callers therefore
+         * never wait for a listing which was cached recently enough. A value
+         * of 0 disables this; this is the default.</p>
+         *
+         * @param listingMaxStaleness the maximum staleness, in milliseconds
+         * @return this
+         *
+         * @see #setAttributeCacheTtl(long)
+         */
+        public Builder setListingMaxStaleness(final long listingMaxStaleness)
+        {
+            if (listingMaxStaleness < 0L)
+                throw new IllegalArgumentException("illegal listing maximum "
+                    + "staleness " + listingMaxStaleness);
+            this.listingMaxStaleness = listingMaxStaleness;
+            return this;
+        }
+
+        /**
+         * Set the amount of memory used to cache blocks of remote files
+         *
+         * <p>Data read through channels is cached off heap, by blocks of the
+         * read ahead size, and reused by all channels of the file system as
+         * long as the file is not modified. A value of 0 disables the cache;
+         * this is the default.</p>
+         *
+         * @param blockCacheCapacity the capacity, in bytes
+         * @return this
+         *
+         * @see #setReadAheadSize(int)
+         */
+        public Builder setBlockCacheCapacity(final long blockCacheCapacity)
+        {
+            if (blockCacheCapacity < 0L)
+                throw new IllegalArgumentException("illegal block cache "
+                    + "capacity " + blockCacheCapacity);
+            this.blockCacheCapacity = blockCacheCapacity;
+            return this;
+        }
+
         public FtpConfiguration build()
         {
             Objects.requireNonNull(hostname, "no hostname has been provided");
+            if (blockCacheCapacity != 0L && blockCacheCapacity < readAheadSize)
+                throw new IllegalArgumentException("block cache capacity must "
+                    + "be at least the read ahead size");
             return new FtpConfiguration(this);
         }
     }
@@ -50,7 +50,7 @@ public final class FtpFileStore
     @Override
     public boolean isReadOnly()
     {
-        return true;
+        return false;
     }
 
     @Override
@@ -18,6 +18,7 @@
 
 package com.github.fge.ftpfs;
 
+import com.github.fge.ftpfs.io.BandwidthLimiter;
 import com.github.fge.ftpfs.path.SlashPath;
 import com.github.fge.ftpfs.principals.DummyPrincipleLookupService;
 import com.github.fge.ftpfs.watch.NopWatchService;
@@ -40,15 +41,21 @@ public final class FtpFileSystem
 {
     private final FtpFileSystemProvider provider;
     private final URI uri;
+    private final FtpConfiguration cfg;
     private final FileStore fileStore;
+    private final BandwidthLimiter bandwidthLimiter;
 
     private final AtomicBoolean open = new AtomicBoolean(true);
 
-    public FtpFileSystem(final FtpFileSystemProvider provider, final URI uri)
+    public FtpFileSystem(final FtpFileSystemProvider provider, final URI uri,
+        final FtpConfiguration cfg)
     {
         this.provider = provider;
         this.uri = uri; // already normalized
+        this.cfg = cfg;
         fileStore = new FtpFileStore(uri);
+        final long limit = cfg.getBandwidthLimit();
+        bandwidthLimiter = limit == 0L ? null : new BandwidthLimiter(limit);
     }
 
     @Override
@@ -74,7 +81,7 @@ public final class FtpFileSystem
     @Override
     public boolean isReadOnly()
     {
-        return true;
+        return false;
     }
 
     @Override
@@ -153,4 +160,17 @@ public final class FtpFileSystem
     {
         return uri;
     }
+
+    FtpConfiguration getConfiguration()
+    {
+        return cfg;
+    }
+
+    /*
+     * Null if no bandwidth limit is configured
+     */
+    BandwidthLimiter getBandwidthLimiter()
+    {
+        return bandwidthLimiter;
+    }
 }
@@ -18,60 +18,159 @@
 
 package com.github.fge.ftpfs;
 
+import com.github.fge.ftpfs.cache.BlockCache;
+import com.github.fge.ftpfs.cache.PathCache;
+import com.github.fge.ftpfs.cache.SingleFlight;
+import com.github.fge.ftpfs.io.BandwidthLimiter;
+import com.github.fge.ftpfs.io.BatchStore;
+import com.github.fge.ftpfs.io.ByteBufferPool;
 import com.github.fge.ftpfs.io.FtpAgent;
 import com.github.fge.ftpfs.io.FtpAgentFactory;
 import com.github.fge.ftpfs.io.FtpAgentQueue;
+import com.github.fge.ftpfs.io.FtpAsynchronousFileChannel;
 import com.github.fge.ftpfs.io.FtpFileView;
+import com.github.fge.ftpfs.io.FtpSeekableByteChannel;
+import com.github.fge.ftpfs.io.PrefetchingInputStream;
+import com.github.fge.ftpfs.io.RetryPolicy;
+import com.github.fge.ftpfs.io.SegmentedDownload;
+import com.github.fge.ftpfs.io.ServerToServerCopy;
+import com.github.fge.ftpfs.io.StagingArea;
+import com.github.fge.ftpfs.io.ThrottledInputStream;
+import com.github.fge.ftpfs.io.TreeOperations;
+import com.github.fge.ftpfs.io.UploadSpool;
 import com.github.fge.ftpfs.util.AttributeUtil;
 import com.github.fge.ftpfs.util.BasicFileAttributesEnum;
 import com.github.fge.ftpfs.util.FtpFs;
 
 import javax.annotation.concurrent.GuardedBy;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.AccessMode;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.CopyOption;
+import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemException;
 import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public final class FtpFileSystemProvider
     extends FileSystemProvider
 {
     private static final int MAX_AGENTS = 5;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long BUFFER_POOL_CAPACITY = 64L * 1024L * 1024L;
+    private static final int RELAY_PREFETCH_DEPTH = 4;
+    private static final int UPLOAD_CONCURRENCY = 2;
 
     private final FtpAgentFactory agentFactory;
+    private final ByteBufferPool bufferPool;
+
+    /*
+     * Refreshes stale directory listings; threads die when idle
+     */
+    private final ExecutorService revalidator
+        = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(final Runnable r)
+            {
+                final Thread ret = new Thread(r, "ftp-revalidate");
+                ret.setDaemon(true);
+                return ret;
+            }
+        });
 
     @GuardedBy("fileSystems")
     private final Map<URI, FtpFileSystem> fileSystems = new HashMap<>();
     @GuardedBy("fileSystems")
     private final Map<FtpFileSystem, FtpAgentQueue> agentQueues
         = new HashMap<>();
+    @GuardedBy("fileSystems")
+    private final Map<FtpFileSystem, StagingArea> stagingAreas
+        = new HashMap<>();
+    @GuardedBy("fileSystems")
+    private final Map<FtpFileSystem, UploadSpool> uploadSpools
+        = new HashMap<>();
+    @GuardedBy("fileSystems")
+    private final Map<FtpFileSystem, PathCache<FtpFileView>> attributeCaches
+        = new HashMap<>();
+    @GuardedBy("fileSystems")
+    private final Map<FtpFileSystem, PathCache<Map<String, FtpFileView>>>
+        listingCaches = new HashMap<>();
+    @GuardedBy("fileSystems")
+    private final Map<FtpFileSystem, PathCache<Boolean>> missingEntries
+        = new HashMap<>();
+    @GuardedBy("fileSystems")
+    private final Map<FtpFileSystem, SingleFlight<FtpFileView>>
+        attributeLookups = new HashMap<>();
+    @GuardedBy("fileSystems")
+    private final Map<FtpFileSystem, SingleFlight<Map<String, FtpFileView>>>
+        listingLookups = new HashMap<>();
+    @GuardedBy("fileSystems")
+    private final Map<FtpFileSystem, BlockCache> blockCaches = new HashMap<>();
 
     public FtpFileSystemProvider(final FtpAgentFactory agentFactory)
+    {
+        this(agentFactory, new ByteBufferPool(BUFFER_SIZE,
+            BUFFER_POOL_CAPACITY));
+    }
+
+    /**
+     * Constructor with a custom buffer pool
+     *
+     * <p>All transfers from all filesystems created by this provider take
+     * their buffers from this pool; its capacity therefore bounds the amount
+     * of memory used by transfers in progress.</p>
+     *
+     * @param agentFactory the agent factory
+     * @param bufferPool the buffer pool
+     */
+    public FtpFileSystemProvider(final FtpAgentFactory agentFactory,
+        final ByteBufferPool bufferPool)
     {
         this.agentFactory = agentFactory;
+        this.bufferPool = bufferPool;
     }
 
     @Override
@@ -97,11 +196,65 @@ public final class FtpFileSystemProvider
 
         final String username = params.get("username");
         final String password = params.get("password");
+        final String readAheadSize = params.get("readAheadSize");
+        final String minSegmentSize = params.get("minSegmentSize");
+        final String maxSegments = params.get("maxSegments");
+        final String maxRetries = params.get("maxRetries");
+        final String retryDelay = params.get("retryDelay");
+        final String prefetchDepth = params.get("prefetchDepth");
+        final String bandwidthLimit = params.get("bandwidthLimit");
+        final String stagingCapacity = params.get("stagingCapacity");
+        final String writeBufferSize = params.get("writeBufferSize");
+        final String replayBufferSize = params.get("replayBufferSize");
+        final String spoolCapacity = params.get("spoolCapacity");
+        final String attributeCacheTtl = params.get("attributeCacheTtl");
+        final String attributeCacheSize = params.get("attributeCacheSize");
+        final String listingCacheSize = params.get("listingCacheSize");
+        final String negativeCacheTtl = params.get("negativeCacheTtl");
+        final String blockCacheCapacity = params.get("blockCacheCapacity");
+        final String listingMaxStaleness = params.get("listingMaxStaleness");
 
         if (username != null)
             builder.setUsername(username);
         if (password != null)
             builder.setPassword(password);
+        if (readAheadSize != null)
+            builder.setReadAheadSize(Integer.parseInt(readAheadSize));
+        if (minSegmentSize != null)
+            builder.setMinSegmentSize(Long.parseLong(minSegmentSize));
+        if (maxSegments != null)
+            builder.setMaxSegments(Integer.parseInt(maxSegments));
+        if (maxRetries != null || retryDelay != null)
+            builder.setRetryPolicy(new RetryPolicy(
+                maxRetries == null ? 3 : Integer.parseInt(maxRetries),
+                retryDelay == null ? 1000L : Long.parseLong(retryDelay),
+                TimeUnit.MILLISECONDS));
+        if (prefetchDepth != null)
+            builder.setPrefetchDepth(Integer.parseInt(prefetchDepth));
+        if (bandwidthLimit != null)
+            builder.setBandwidthLimit(Long.parseLong(bandwidthLimit));
+        if (stagingCapacity != null)
+            builder.setStagingCapacity(Long.parseLong(stagingCapacity));
+        if (writeBufferSize != null)
+            builder.setWriteBufferSize(Integer.parseInt(writeBufferSize));
+        if (replayBufferSize != null)
+            builder.setReplayBufferSize(Integer.parseInt(replayBufferSize));
+        if (spoolCapacity != null)
+            builder.setSpoolCapacity(Long.parseLong(spoolCapacity));
+        if (attributeCacheTtl != null)
+            builder.setAttributeCacheTtl(Long.parseLong(attributeCacheTtl));
+        if (attributeCacheSize != null)
+            builder.setAttributeCacheSize(
+                Integer.parseInt(attributeCacheSize));
+        if (listingCacheSize != null)
+            builder.setListingCacheSize(Integer.parseInt(listingCacheSize));
+        if (negativeCacheTtl != null)
+            builder.setNegativeCacheTtl(Long.parseLong(negativeCacheTtl));
+        if (blockCacheCapacity != null)
+            builder.setBlockCacheCapacity(Long.parseLong(blockCacheCapacity));
+        if (listingMaxStaleness != null)
+            builder.setListingMaxStaleness(
+                Long.parseLong(listingMaxStaleness));
 
         final FtpConfiguration cfg = builder.build();
 
@@ -109,12 +262,40 @@ public final class FtpFileSystemProvider
             if (fileSystems.containsKey(normalized))
                 throw new FileSystemAlreadyExistsException();
 
-            final FtpFileSystem fs = new FtpFileSystem(this, normalized);
+            final FtpFileSystem fs = new FtpFileSystem(this, normalized, cfg);
             final FtpAgentQueue agentQueue
                 = new FtpAgentQueue(agentFactory, cfg, MAX_AGENTS);
 
             fileSystems.put(normalized, fs);
             agentQueues.put(fs, agentQueue);
+            stagingAreas.put(fs, new StagingArea(agentQueue, bufferPool,
+                cfg.getMinSegmentSize(), cfg.getMaxSegments(),
+                cfg.getStagingCapacity()));
+            uploadSpools.put(fs, new UploadSpool(agentQueue, bufferPool,
+                cfg.getSpoolCapacity(), cfg.getWriteBufferSize(),
+                UPLOAD_CONCURRENCY, new UploadSpool.Listener()
+                {
+                    @Override
+                    public void uploadFinished(final Path path)
+                    {
+                        invalidate(fs, path);
+                    }
+                }));
+            attributeCaches.put(fs, new PathCache<FtpFileView>(
+                cfg.getAttributeCacheTtl(), TimeUnit.MILLISECONDS,
+                cfg.getAttributeCacheSize()));
+            listingCaches.put(fs, new PathCache<Map<String, FtpFileView>>(
+                cfg.getAttributeCacheTtl(), cfg.getListingMaxStaleness(),
+                TimeUnit.MILLISECONDS, cfg.getListingCacheSize()));
+            missingEntries.put(fs, new PathCache<Boolean>(
+                cfg.getNegativeCacheTtl(), TimeUnit.MILLISECONDS,
+                cfg.getAttributeCacheSize()));
+            attributeLookups.put(fs, new SingleFlight<FtpFileView>());
+            listingLookups.put(fs,
+                new SingleFlight<Map<String, FtpFileView>>());
+            if (cfg.getBlockCacheCapacity() > 0L)
+                blockCaches.put(fs, new BlockCache(cfg.getReadAheadSize(),
+                    cfg.getBlockCacheCapacity()));
 
             return fs;
         }
@@ -125,8 +306,29 @@ public final class FtpFileSystemProvider
         final OpenOption... options)
         throws IOException
     {
-        final FtpAgentQueue queue = agentQueues.get(path.getFileSystem());
-        return queue.getAgent().getInputStream(path);
+        final FtpFileSystem fs = (FtpFileSystem) path.getFileSystem();
+        final FtpAgentQueue queue = agentQueues.get(fs);
+        final int prefetchDepth = fs.getConfiguration().getPrefetchDepth();
+        final List<BandwidthLimiter> limiters
+            = getBandwidthLimiters(fs, Arrays.asList((Object[]) options));
+
+        if (Arrays.asList(options).contains(FtpOpenOption.STAGED))
+            return Channels.newInputStream(stagingAreas.get(fs).open(
+                path.toRealPath(), getRegularFileAttributes(path), limiters));
+
+        final FtpAgent agent = queue.getAgent();
+        final InputStream stream;
+
+        try {
+            stream = ThrottledInputStream.wrap(agent.getInputStream(path),
+                limiters);
+        } catch (IOException e) {
+            agent.close();
+            throw e;
+        }
+
+        return prefetchDepth == 0 ? stream
+            : new PrefetchingInputStream(stream, bufferPool, prefetchDepth);
     }
 
     @Override
@@ -134,7 +336,129 @@ public final class FtpFileSystemProvider
         final OpenOption... options)
         throws IOException
     {
-        throw new IllegalStateException();
+        final Set<OpenOption> optionSet = new HashSet<>(Arrays.asList(options));
+        if (optionSet.isEmpty()) {
+            optionSet.add(StandardOpenOption.CREATE);
+            optionSet.add(StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        if (optionSet.contains(StandardOpenOption.READ))
+            throw new IllegalArgumentException("READ not allowed");
+        final boolean append = optionSet.contains(StandardOpenOption.APPEND);
+        final boolean truncate
+            = optionSet.contains(StandardOpenOption.TRUNCATE_EXISTING);
+        if (append && truncate)
+            throw new IllegalArgumentException("APPEND and TRUNCATE_EXISTING "
+                + "cannot be used together");
+
+        final FtpFileSystem fs = (FtpFileSystem) path.getFileSystem();
+        final FtpAgentQueue queue = agentQueues.get(fs);
+        final Path realPath = path.toRealPath();
+        final String name = realPath.toString();
+        final FtpAgent agent = queue.getAgent();
+
+        try {
+            BasicFileAttributes attributes = null;
+            try {
+                attributes = agent.getFileView(name).readAttributes();
+            } catch (NoSuchFileException ignored) {
+                // does not exist
+            }
+            if (attributes == null) {
+                if (!(optionSet.contains(StandardOpenOption.CREATE)
+                    || optionSet.contains(StandardOpenOption.CREATE_NEW)))
+                    throw new NoSuchFileException(name);
+            } else {
+                if (optionSet.contains(StandardOpenOption.CREATE_NEW))
+                    throw new FileAlreadyExistsException(name);
+                if (attributes.isDirectory())
+                    throw new FileSystemException(name, null,
+                        "is a directory");
+                if (!(append || truncate))
+                    throw new FileAlreadyExistsException(name, null,
+                        "existing files can only be truncated or appended to");
+            }
+            invalidate(fs, realPath);
+            if (!optionSet.contains(FtpOpenOption.DEFERRED))
+                return new InvalidatingOutputStream(fs, realPath,
+                    optionSet.contains(FtpOpenOption.RESUME)
+                        ? agent.getResumableOutputStream(realPath, append)
+                        : agent.getOutputStream(realPath, append));
+        } catch (IOException e) {
+            agent.close();
+            throw e;
+        }
+        agent.close();
+        return uploadSpools.get(fs).open(realPath, append);
+    }
+
+    /**
+     * Wait for the write behind uploads of a file system
+     *
+     * <p>This waits for the uploads of all streams opened with {@link
+     * FtpOpenOption#DEFERRED} and closed before this method is called. Call
+     * it before closing the file system in order to learn about failed
+     * uploads: closing the file system waits for pending uploads, but does
+     * not report failures.</p>
+     *
+     * @param fs the file system
+     * @throws IOException one or more uploads failed since the last call (see
+     * the suppressed exceptions), or interrupted
+     */
+    public void awaitUploads(final FileSystem fs)
+        throws IOException
+    {
+        final UploadSpool spool;
+        synchronized (fileSystems) {
+            spool = uploadSpools.get(fs);
+        }
+        if (spool == null)
+            throw new FileSystemNotFoundException();
+        spool.awaitUploads();
+    }
+
+    /**
+     * Get the statistics of the local copies of remote files of a file system
+     *
+     * <p>Local copies are used by channels and input streams opened with
+     * {@link FtpOpenOption#STAGED}.</p>
+     *
+     * @param fs the file system
+     * @return a snapshot of the statistics
+     */
+    public CacheStatistics getContentCacheStatistics(final FileSystem fs)
+    {
+        final StagingArea area;
+        synchronized (fileSystems) {
+            area = stagingAreas.get(fs);
+        }
+        if (area == null)
+            throw new FileSystemNotFoundException();
+        return new CacheStatistics(area.getHits(), area.getMisses(),
+            area.getTotalSize());
+    }
+
+    /**
+     * Get the statistics of the block cache of a file system
+     *
+     * @param fs the file system
+     * @return a snapshot of the statistics, or null if the file system has no
+     * block cache
+     *
+     * @see FtpConfiguration.Builder#setBlockCacheCapacity(long)
+     */
+    public CacheStatistics getBlockCacheStatistics(final FileSystem fs)
+    {
+        final BlockCache cache;
+        synchronized (fileSystems) {
+            if (!fileSystems.containsValue(fs))
+                throw new FileSystemNotFoundException();
+            cache = blockCaches.get(fs);
+        }
+        if (cache == null)
+            return null;
+        return new CacheStatistics(cache.getHits(), cache.getMisses(),
+            (long) cache.getBlocks() * cache.getBlockSize());
     }
 
     @Override
@@ -170,7 +494,40 @@ public final class FtpFileSystemProvider
         final FileAttribute<?>... attrs)
         throws IOException
     {
-        throw new UnsupportedOperationException();
+        if (options.contains(StandardOpenOption.WRITE)
+            || options.contains(StandardOpenOption.APPEND))
+            throw new UnsupportedOperationException("only read access is "
+                + "supported");
+        final FtpFileSystem fs = (FtpFileSystem) path.getFileSystem();
+        final FtpAgentQueue queue = agentQueues.get(fs);
+        final BasicFileAttributes attributes = getRegularFileAttributes(path);
+
+        if (options.contains(FtpOpenOption.STAGED))
+            return stagingAreas.get(fs).open(path.toRealPath(), attributes,
+                getBandwidthLimiters(fs, new ArrayList<Object>(options)));
+
+        return new FtpSeekableByteChannel(queue, path.toRealPath(),
+            attributes.size(), fs.getConfiguration().getReadAheadSize(),
+            bufferPool, blockCaches.get(fs), attributes.lastModifiedTime());
+    }
+
+    @Override
+    public AsynchronousFileChannel newAsynchronousFileChannel(final Path path,
+        final Set<? extends OpenOption> options,
+        final ExecutorService executor, final FileAttribute<?>... attrs)
+        throws IOException
+    {
+        if (options.contains(StandardOpenOption.WRITE)
+            || options.contains(StandardOpenOption.APPEND))
+            throw new UnsupportedOperationException("only read access is "
+                + "supported");
+        final FtpFileSystem fs = (FtpFileSystem) path.getFileSystem();
+        final FtpAgentQueue queue = agentQueues.get(fs);
+        final BasicFileAttributes attributes = getRegularFileAttributes(path);
+
+        return new FtpAsynchronousFileChannel(queue, path.toRealPath(),
+            attributes.size(), executor, blockCaches.get(fs),
+            attributes.lastModifiedTime());
     }
 
     @Override
@@ -178,65 +535,204 @@ public final class FtpFileSystemProvider
         final DirectoryStream.Filter<? super Path> filter)
         throws IOException
     {
-        // FIXME...
-        final FtpFileSystem fs = (FtpFileSystem) dir.getFileSystem();
-        final FtpAgentQueue queue = agentQueues.get(fs);
-        try (
-            final FtpAgent agent = queue.getAgent();
-        ) {
-            final String absPath = dir.toRealPath().toString();
-            final Iterator<String> names
-                = agent.getDirectoryNames(absPath).iterator();
-            return new DirectoryStream<Path>()
+        final Path realDir = dir.toRealPath().normalize();
+        final Iterator<String> names = getDirectoryViews(realDir).keySet()
+            .iterator();
+        return new DirectoryStream<Path>()
+        {
+            @Override
+            public Iterator<Path> iterator()
             {
-                @Override
-                public Iterator<Path> iterator()
+                return new Iterator<Path>()
                 {
-                    return new Iterator<Path>()
+                    private Path next = null;
+
+                    @Override
+                    public boolean hasNext()
                     {
-                        @Override
-                        public boolean hasNext()
-                        {
-                            return names.hasNext();
+                        Path candidate;
+                        while (next == null && names.hasNext()) {
+                            candidate = dir.resolve(names.next());
+                            try {
+                                if (filter.accept(candidate))
+                                    next = candidate;
+                            } catch (IOException e) {
+                                throw new DirectoryIteratorException(e);
+                            }
                         }
+                        return next != null;
+                    }
 
-                        @Override
-                        public Path next()
-                        {
-                            if (!hasNext())
-                                throw new NoSuchElementException();
-                            return fs.getPath(names.next());
-                        }
+                    @Override
+                    public Path next()
+                    {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        final Path ret = next;
+                        next = null;
+                        return ret;
+                    }
 
-                        @Override
-                        public void remove()
-                        {
-                            throw new UnsupportedOperationException();
-                        }
-                    };
-                }
+                    @Override
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
 
-                @Override
-                public void close()
-                    throws IOException
-                {
-                }
-            };
-        }
+            @Override
+            public void close()
+                throws IOException
+            {
+            }
+        };
     }
 
     @Override
     public void createDirectory(final Path dir, final FileAttribute<?>... attrs)
         throws IOException
     {
-        throw new IllegalStateException();
+        if (attrs.length != 0)
+            throw new UnsupportedOperationException("file attributes are not "
+                + "supported");
+        final FtpFileSystem fs = (FtpFileSystem) dir.getFileSystem();
+        final FtpAgentQueue queue = agentQueues.get(fs);
+        try (
+            final FtpAgent agent = queue.getAgent();
+        ) {
+            agent.createDirectory(dir.toRealPath().toString());
+        } finally {
+            invalidate(fs, dir);
+        }
     }
 
     @Override
     public void delete(final Path path)
         throws IOException
     {
-        throw new IllegalStateException();
+        final FtpFileSystem fs = (FtpFileSystem) path.getFileSystem();
+        final FtpAgentQueue queue = agentQueues.get(fs);
+        final String name = path.toRealPath().toString();
+        try (
+            final FtpAgent agent = queue.getAgent();
+        ) {
+            agent.delete(name, isDirectory(agent, name));
+        } finally {
+            invalidate(fs, path);
+        }
+    }
+
+    /**
+     * Delete an entry; if it is a directory, delete all its contents as well
+     *
+     * <p>The tree is walked once; commands are then pipelined on all agents of
+     * the file system (see {@link TreeOperations}). The failure to delete one
+     * entry does not abort the operation.</p>
+     *
+     * @param path the entry to delete
+     * @return the entries which could not be deleted, with the reason why;
+     * empty if the whole tree was deleted
+     * @throws IOException the entry could not be read, or interrupted
+     */
+    public Map<Path, IOException> deleteRecursive(final Path path)
+        throws IOException
+    {
+        final FtpFileSystem fs = (FtpFileSystem) path.getFileSystem();
+        final FtpAgentQueue queue = agentQueues.get(fs);
+        final String name = path.toRealPath().toString();
+
+        try {
+            try (
+                final FtpAgent agent = queue.getAgent();
+            ) {
+                if (!isDirectory(agent, name)) {
+                    agent.delete(name, false);
+                    return Collections.emptyMap();
+                }
+            }
+
+            return toPaths(fs, new TreeOperations(queue, MAX_AGENTS)
+                .deleteRecursive(name));
+        } finally {
+            invalidate(fs, path);
+        }
+    }
+
+    /**
+     * Create directories, along with all their missing parents
+     *
+     * <p>All directories are created level by level, commands being pipelined
+     * on all agents of the file system (see {@link TreeOperations}). The
+     * failure to create one directory does not abort the operation, but its
+     * subdirectories are not attempted.</p>
+     *
+     * @param dirs the directories to create; they must all belong to the same
+     * file system
+     * @return the directories which could not be created, with the reason
+     * why; empty if all directories exist
+     * @throws IOException interrupted
+     */
+    public Map<Path, IOException> createDirectories(final Path... dirs)
+        throws IOException
+    {
+        if (dirs.length == 0)
+            return Collections.emptyMap();
+        final FtpFileSystem fs = (FtpFileSystem) dirs[0].getFileSystem();
+        final List<String> names = new ArrayList<>(dirs.length);
+        for (final Path dir: dirs) {
+            if (dir.getFileSystem() != fs)
+                throw new IllegalArgumentException("directories must belong "
+                    + "to the same file system");
+            names.add(dir.toRealPath().toString());
+        }
+
+        try {
+            return toPaths(fs, new TreeOperations(agentQueues.get(fs),
+                MAX_AGENTS).createDirectories(names));
+        } finally {
+            for (final Path dir: dirs)
+                invalidate(fs, dir);
+        }
+    }
+
+    /**
+     * Upload small files
+     *
+     * <p>All files are uploaded over a single control connection, the setup
+     * of each transfer being pipelined with the end of the previous one (see
+     * {@link BatchStore}). Existing files are replaced. The failure to upload
+     * one file does not abort the operation.</p>
+     *
+     * @param files the contents of the files, by path; all paths must belong
+     * to the same file system
+     * @return the files which could not be uploaded, with the reason why;
+     * empty if all files were uploaded
+     * @throws IOException I/O error when communicating with the FTP server,
+     * or interrupted
+     */
+    public Map<Path, IOException> storeFiles(final Map<Path, byte[]> files)
+        throws IOException
+    {
+        if (files.isEmpty())
+            return Collections.emptyMap();
+        final FtpFileSystem fs = (FtpFileSystem) files.keySet().iterator()
+            .next().getFileSystem();
+        final BatchStore batch = new BatchStore(agentQueues.get(fs));
+        for (final Map.Entry<Path, byte[]> entry: files.entrySet()) {
+            if (entry.getKey().getFileSystem() != fs)
+                throw new IllegalArgumentException("files must belong to the "
+                    + "same file system");
+            batch.add(entry.getKey().toRealPath().toString(),
+                entry.getValue());
+        }
+
+        try {
+            return toPaths(fs, batch.run());
+        } finally {
+            for (final Path path: files.keySet())
+                invalidate(fs, path);
+        }
     }
 
     @Override
@@ -244,7 +740,16 @@ public final class FtpFileSystemProvider
         final CopyOption... options)
         throws IOException
     {
-        throw new IllegalStateException();
+        if (target.getFileSystem() == FileSystems.getDefault()) {
+            copyToLocal(source, target, options);
+            return;
+        }
+        if (target.getFileSystem().provider() == this
+            && target.getFileSystem() != source.getFileSystem()) {
+            copyBetweenServers(source, target, options);
+            return;
+        }
+        throw new UnsupportedOperationException();
     }
 
     @Override
@@ -252,7 +757,54 @@ public final class FtpFileSystemProvider
         final CopyOption... options)
         throws IOException
     {
-        throw new IllegalStateException();
+        boolean replaceExisting = false;
+        boolean atomic = false;
+
+        for (final CopyOption option: options) {
+            if (option == StandardCopyOption.REPLACE_EXISTING)
+                replaceExisting = true;
+            else if (option == StandardCopyOption.ATOMIC_MOVE)
+                atomic = true;
+            else if (option != LinkOption.NOFOLLOW_LINKS)
+                throw new UnsupportedOperationException("unsupported copy "
+                    + "option " + option);
+        }
+
+        final FtpFileSystem fs = (FtpFileSystem) source.getFileSystem();
+        final String from = source.toRealPath().toString();
+        final String to = target.toRealPath().toString();
+
+        if (target.getFileSystem() != fs) {
+            if (atomic)
+                throw new AtomicMoveNotSupportedException(from, to,
+                    "not on the same FTP server");
+            throw new UnsupportedOperationException("moves are only "
+                + "supported within one FTP server");
+        }
+        if (from.equals(to))
+            return;
+
+        /*
+         * A server side rename is atomic. When the target exists, whether it
+         * is replaced depends on the server: the usual FTP servers replace
+         * regular files.
+         */
+        final FtpAgentQueue queue = agentQueues.get(fs);
+        try (
+            final FtpAgent agent = queue.getAgent();
+        ) {
+            if (!(atomic || replaceExisting))
+                try {
+                    agent.getFileView(to);
+                    throw new FileAlreadyExistsException(to);
+                } catch (NoSuchFileException ignored) {
+                    // fine
+                }
+            agent.rename(from, to);
+        } finally {
+            invalidate(fs, source);
+            invalidate(fs, target);
+        }
     }
 
     @Override
@@ -283,16 +835,9 @@ public final class FtpFileSystemProvider
     public void checkAccess(final Path path, final AccessMode... modes)
         throws IOException
     {
-        final FtpAgentQueue queue = agentQueues.get(path.getFileSystem());
-        final String name = path.toRealPath().toString();
-        final List<AccessMode> modeList = Arrays.asList(modes);
-        try (
-            final FtpAgent agent = queue.getAgent();
-        ) {
-            final FtpFileView view = agent.getFileView(name);
-            if (!view.getAccess().containsAll(modeList))
-                throw new AccessDeniedException(name);
-        }
+        final FtpFileView view = getFileView(path);
+        if (!view.getAccess().containsAll(Arrays.asList(modes)))
+            throw new AccessDeniedException(path.toRealPath().toString());
     }
 
     @Override
@@ -301,17 +846,8 @@ public final class FtpFileSystemProvider
     {
         if (type != BasicFileAttributeView.class)
             return null;
-        final FtpAgentQueue queue = agentQueues.get(path.getFileSystem());
-        final String name;
         try {
-            name = path.toRealPath(options).toString();
-        } catch (IOException ignored) {
-            return null;
-        }
-        try (
-            final FtpAgent agent = queue.getAgent();
-        ) {
-            final FtpFileView view = agent.getFileView(name);
+            final FtpFileView view = getFileView(path);
             return type.isAssignableFrom(view.getClass()) ? type.cast(view)
                 : null;
         } catch (IOException e) {
@@ -325,16 +861,10 @@ public final class FtpFileSystemProvider
         final Class<A> type, final LinkOption... options)
         throws IOException
     {
-        final FtpAgentQueue queue = agentQueues.get(path.getFileSystem());
-        final String name = path.toRealPath().toString();
-        try (
-            final FtpAgent agent = queue.getAgent();
-        ) {
-            final BasicFileAttributes attributes
-                = agent.getFileView(name).readAttributes();
-            return type.isAssignableFrom(attributes.getClass())
-                ? type.cast(attributes) : null;
-        }
+        final BasicFileAttributes attributes
+            = getFileView(path).readAttributes();
+        return type.isAssignableFrom(attributes.getClass())
+            ? type.cast(attributes) : null;
     }
 
     @Override
@@ -344,15 +874,7 @@ public final class FtpFileSystemProvider
     {
         final Set<BasicFileAttributesEnum> set
             = AttributeUtil.getAttributes(attributes);
-        final FtpAgentQueue queue = agentQueues.get(path.getFileSystem());
-        final String file = path.toRealPath().toString();
-        final BasicFileAttributes attrs;
-
-        try (
-            final FtpAgent agent = queue.getAgent();
-        ) {
-            attrs = agent.getFileView(file).readAttributes();
-        }
+        final BasicFileAttributes attrs = getFileView(path).readAttributes();
 
         final Map<String, Object> ret = new HashMap<>();
         for (final BasicFileAttributesEnum attr: set)
@@ -369,16 +891,488 @@ public final class FtpFileSystemProvider
         throw new IllegalStateException();
     }
 
+    /*
+     * Copy a remote file to the default filesystem
+     *
+     * The data is written directly into a FileChannel; large files are
+     * downloaded in several segments in parallel (see SegmentedDownload).
+     */
+    private void copyToLocal(final Path source, final Path target,
+        final CopyOption... options)
+        throws IOException
+    {
+        boolean replaceExisting = false;
+        boolean copyAttributes = false;
+        TransferStatistics statistics = null;
+
+        for (final CopyOption option: options) {
+            if (option == StandardCopyOption.REPLACE_EXISTING)
+                replaceExisting = true;
+            else if (option == StandardCopyOption.COPY_ATTRIBUTES)
+                copyAttributes = true;
+            else if (option instanceof TransferStatistics)
+                statistics = (TransferStatistics) option;
+            else if (option != LinkOption.NOFOLLOW_LINKS
+                && option != FtpOpenOption.PRIORITY
+                && !(option instanceof BandwidthLimit))
+                throw new UnsupportedOperationException("unsupported copy "
+                    + "option " + option);
+        }
+
+        final FtpFileSystem fs = (FtpFileSystem) source.getFileSystem();
+        final FtpConfiguration cfg = fs.getConfiguration();
+        final FtpAgentQueue queue = agentQueues.get(fs);
+        final Path realPath = source.toRealPath();
+        final BasicFileAttributes attributes
+            = getFileView(source).readAttributes();
+
+        if (replaceExisting)
+            Files.deleteIfExists(target);
+        else if (Files.exists(target, LinkOption.NOFOLLOW_LINKS))
+            throw new FileAlreadyExistsException(target.toString());
+
+        if (attributes.isDirectory()) {
+            Files.createDirectory(target);
+        } else {
+            final SegmentedDownload download = new SegmentedDownload(queue,
+                bufferPool, cfg.getMinSegmentSize(), cfg.getMaxSegments());
+            final long start = System.nanoTime();
+            try (
+                final FileChannel channel = FileChannel.open(target,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            ) {
+                download.download(realPath, attributes.size(), channel,
+                    getBandwidthLimiters(fs,
+                        Arrays.asList((Object[]) options)));
+            } catch (IOException e) {
+                Files.deleteIfExists(target);
+                throw e;
+            }
+            if (statistics != null)
+                statistics.record(attributes.size(),
+                    System.nanoTime() - start);
+        }
+
+        if (copyAttributes)
+            Files.setLastModifiedTime(target, attributes.lastModifiedTime());
+    }
+
+    /*
+     * Copy a file from one FTP server to another
+     *
+     * The data goes directly from one server to the other if they allow it;
+     * otherwise, it is relayed (see ServerToServerCopy). File times cannot be
+     * set on an FTP server: COPY_ATTRIBUTES is accepted, but has no effect.
+     */
+    private void copyBetweenServers(final Path source, final Path target,
+        final CopyOption... options)
+        throws IOException
+    {
+        boolean replaceExisting = false;
+        TransferStatistics statistics = null;
+
+        for (final CopyOption option: options) {
+            if (option == StandardCopyOption.REPLACE_EXISTING)
+                replaceExisting = true;
+            else if (option instanceof TransferStatistics)
+                statistics = (TransferStatistics) option;
+            else if (option != LinkOption.NOFOLLOW_LINKS
+                && option != StandardCopyOption.COPY_ATTRIBUTES
+                && option != FtpOpenOption.PRIORITY
+                && !(option instanceof BandwidthLimit))
+                throw new UnsupportedOperationException("unsupported copy "
+                    + "option " + option);
+        }
+
+        final FtpFileSystem sourceFs = (FtpFileSystem) source.getFileSystem();
+        final FtpFileSystem targetFs = (FtpFileSystem) target.getFileSystem();
+        final Path realSource = source.toRealPath();
+        final Path realTarget = target.toRealPath();
+        final String sourceName = realSource.toString();
+        final String targetName = realTarget.toString();
+
+        /*
+         * Agents of both file systems are always taken in the same order, so
+         * that copies in opposite directions cannot deadlock
+         */
+        final FtpAgentQueue sourceQueue = agentQueues.get(sourceFs);
+        final FtpAgentQueue targetQueue = agentQueues.get(targetFs);
+        final FtpAgent sourceAgent;
+        final FtpAgent targetAgent;
+        if (sourceFs.getUri().compareTo(targetFs.getUri()) < 0) {
+            sourceAgent = sourceQueue.getAgent();
+            targetAgent = getAgent(targetQueue, sourceAgent);
+        } else {
+            targetAgent = targetQueue.getAgent();
+            sourceAgent = getAgent(sourceQueue, targetAgent);
+        }
+
+        final BasicFileAttributes attributes;
+        boolean handedOver = false;
+
+        try {
+            if ("/".equals(targetName))
+                throw new FileAlreadyExistsException(targetName);
+            attributes = "/".equals(sourceName) ? null
+                : findEntry(sourceAgent, sourceName);
+            if (attributes == null && !"/".equals(sourceName))
+                throw new NoSuchFileException(sourceName);
+            final BasicFileAttributes existing
+                = findEntry(targetAgent, targetName);
+            if (existing != null) {
+                if (!replaceExisting)
+                    throw new FileAlreadyExistsException(targetName);
+                if (existing.isDirectory())
+                    targetAgent.delete(targetName, true);
+            }
+            if (attributes == null || attributes.isDirectory()) {
+                targetAgent.createDirectory(targetName);
+                return;
+            }
+            handedOver = true;
+        } finally {
+            if (!handedOver) {
+                sourceAgent.close();
+                targetAgent.close();
+                invalidate(targetFs, realTarget);
+            }
+        }
+
+        final int prefetchDepth = sourceFs.getConfiguration()
+            .getPrefetchDepth();
+        final ServerToServerCopy copy = new ServerToServerCopy(bufferPool,
+            prefetchDepth == 0 ? RELAY_PREFETCH_DEPTH : prefetchDepth);
+        final long start = System.nanoTime();
+        try {
+            copy.copy(sourceAgent, realSource, targetAgent, realTarget,
+                getBandwidthLimiters(sourceFs,
+                    Arrays.asList((Object[]) options)));
+        } finally {
+            invalidate(targetFs, realTarget);
+        }
+        if (statistics != null)
+            statistics.record(attributes.size(), System.nanoTime() - start);
+    }
+
     void unregister(final FtpFileSystem fs) {
+        final UploadSpool spool;
+        final FtpAgentQueue queue;
+        final StagingArea stagingArea;
+
         synchronized (fileSystems) {
-            final URI uri = fs.getUri();
-            final FtpAgentQueue queue = agentQueues.get(fs);
-            fileSystems.remove(uri);
+            fileSystems.remove(fs.getUri());
+            spool = uploadSpools.remove(fs);
+            queue = agentQueues.remove(fs);
+            stagingArea = stagingAreas.remove(fs);
+            attributeCaches.remove(fs);
+            listingCaches.remove(fs);
+            missingEntries.remove(fs);
+            attributeLookups.remove(fs);
+            listingLookups.remove(fs);
+            blockCaches.remove(fs);
+        }
+
+        /*
+         * Closing the spool waits for pending uploads: do not hold the lock
+         * meanwhile. Uploads need agents, so close the agent queue last.
+         */
+        try {
+            spool.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            stagingArea.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            queue.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /*
+     * The limiters which apply to a transfer: the one of the file system
+     * unless the transfer has priority, and the one requested for this
+     * transfer, if any
+     */
+    private static List<BandwidthLimiter> getBandwidthLimiters(
+        final FtpFileSystem fs, final List<Object> options)
+    {
+        final List<BandwidthLimiter> ret = new ArrayList<>(2);
+        final BandwidthLimiter fsLimiter = fs.getBandwidthLimiter();
+
+        if (fsLimiter != null && !options.contains(FtpOpenOption.PRIORITY))
+            ret.add(fsLimiter);
+        for (final Object option: options)
+            if (option instanceof BandwidthLimit)
+                ret.add(new BandwidthLimiter(
+                    ((BandwidthLimit) option).getBytesPerSecond()));
+        return ret;
+    }
+
+    /*
+     * Get an agent while already holding another one; the latter is released
+     * if no agent can be obtained
+     */
+    private static FtpAgent getAgent(final FtpAgentQueue queue,
+        final FtpAgent held)
+        throws IOException
+    {
+        try {
+            return queue.getAgent();
+        } catch (IOException e) {
+            held.close();
+            throw e;
+        }
+    }
+
+    /*
+     * Whether an entry is a directory, according to the listing of its parent
+     * directory
+     */
+    private static boolean isDirectory(final FtpAgent agent, final String name)
+        throws IOException
+    {
+        if ("/".equals(name))
+            return true;
+        final BasicFileAttributes attributes = findEntry(agent, name);
+        if (attributes == null)
+            throw new NoSuchFileException(name);
+        return attributes.isDirectory();
+    }
+
+    /*
+     * The attributes of an entry, according to the listing of its parent
+     * directory; null if there is no such entry. The entry must not be the
+     * root directory.
+     */
+    private static BasicFileAttributes findEntry(final FtpAgent agent,
+        final String name)
+        throws IOException
+    {
+        final int index = name.lastIndexOf('/');
+        final String parent = index == 0 ? "/" : name.substring(0, index);
+        return agent.getDirectoryEntries(parent)
+            .get(name.substring(index + 1));
+    }
+
+    private static Map<Path, IOException> toPaths(final FtpFileSystem fs,
+        final Map<String, IOException> failures)
+    {
+        final Map<Path, IOException> ret = new LinkedHashMap<>();
+        for (final Map.Entry<String, IOException> entry: failures.entrySet())
+            ret.put(fs.getPath(entry.getKey()), entry.getValue());
+        return ret;
+    }
+
+    private BasicFileAttributes getRegularFileAttributes(final Path path)
+        throws IOException
+    {
+        final BasicFileAttributes attributes
+            = getFileView(path).readAttributes();
+        if (!attributes.isRegularFile())
+            throw new AccessDeniedException(path.toRealPath().toString());
+        return attributes;
+    }
+
+    /*
+     * The view of an entry; it is taken from the attribute cache of its file
+     * system, or from the cached listing of its parent directory, if
+     * possible. Otherwise, the server is asked, and the answer is cached,
+     * including when the entry does not exist; concurrent requests for the
+     * same entry share one request to the server.
+     */
+    private FtpFileView getFileView(final Path path)
+        throws IOException
+    {
+        final FtpFileSystem fs = (FtpFileSystem) path.getFileSystem();
+        final PathCache<FtpFileView> cache = attributeCaches.get(fs);
+        final PathCache<Boolean> missing = missingEntries.get(fs);
+        final Path realPath = path.toRealPath().normalize();
+        final String name = realPath.toString();
+        FtpFileView view = cache.get(name);
+        if (view != null)
+            return view;
+        if (missing.get(name) != null)
+            throw new NoSuchFileException(name);
+
+        final Path parent = realPath.getParent();
+        if (parent != null) {
+            final Map<String, FtpFileView> listing
+                = listingCaches.get(fs).get(parent.toString());
+            if (listing != null) {
+                view = listing.get(realPath.getFileName().toString());
+                if (view == null)
+                    throw new NoSuchFileException(name);
+                return view;
+            }
+        }
+
+        final FtpAgentQueue queue = agentQueues.get(fs);
+        return attributeLookups.get(fs).execute(name,
+            new Callable<FtpFileView>()
+            {
+                @Override
+                public FtpFileView call()
+                    throws IOException
+                {
+                    final FtpFileView ret;
+                    try (
+                        final FtpAgent agent = queue.getAgent();
+                    ) {
+                        ret = agent.getFileView(name);
+                    } catch (NoSuchFileException e) {
+                        missing.put(name, Boolean.TRUE);
+                        throw e;
+                    }
+                    cache.put(name, ret);
+                    return ret;
+                }
+            });
+    }
+
+    /*
+     * The entries of a directory, by name; they are taken from the listing
+     * cache of its file system if possible, and put into it otherwise.
+     * Concurrent requests for the same directory share one listing. A listing
+     * which has expired recently enough is used anyway, and refreshed in the
+     * background.
+     */
+    private Map<String, FtpFileView> getDirectoryViews(final Path dir)
+        throws IOException
+    {
+        final FtpFileSystem fs = (FtpFileSystem) dir.getFileSystem();
+        final PathCache<Map<String, FtpFileView>> cache = listingCaches.get(fs);
+        final String name = dir.toString();
+        Map<String, FtpFileView> cached = cache.get(name);
+        if (cached != null)
+            return cached;
+        cached = cache.getStale(name);
+        if (cached != null) {
+            revalidate(fs, dir);
+            return cached;
+        }
+        return listDirectory(fs, dir);
+    }
+
+    /*
+     * Refresh a listing in the background. Failures are ignored: the stale
+     * listing is then used until it has expired for too long, and the next
+     * listing is done on the request path.
+     */
+    private void revalidate(final FtpFileSystem fs, final Path dir)
+    {
+        revalidator.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final PathCache<Map<String, FtpFileView>> cache
+                    = listingCaches.get(fs);
+                if (cache == null || cache.get(dir.toString()) != null)
+                    return;
+                try {
+                    listDirectory(fs, dir);
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    private Map<String, FtpFileView> listDirectory(final FtpFileSystem fs,
+        final Path dir)
+        throws IOException
+    {
+        final PathCache<Map<String, FtpFileView>> cache = listingCaches.get(fs);
+        final PathCache<Boolean> missing = missingEntries.get(fs);
+        final FtpAgentQueue queue = agentQueues.get(fs);
+        final String name = dir.toString();
+
+        return listingLookups.get(fs).execute(name,
+            new Callable<Map<String, FtpFileView>>()
+            {
+                @Override
+                public Map<String, FtpFileView> call()
+                    throws IOException
+                {
+                    final Map<String, FtpFileView> ret;
+                    try (
+                        final FtpAgent agent = queue.getAgent();
+                    ) {
+                        ret = Collections.unmodifiableMap(
+                            agent.getDirectoryViews(name));
+                    }
+                    cache.put(name, ret);
+                    for (final String entry: ret.keySet())
+                        missing.invalidate(dir.resolve(entry).toString());
+                    return ret;
+                }
+            });
+    }
+
+    /*
+     * Remove an entry, everything below it, and its parent directory (the
+     * modification time and listing of which change) from the caches. The
+     * entry and its parents may also have been created: they are not known
+     * to be missing anymore.
+     */
+    private void invalidate(final FtpFileSystem fs, final Path path)
+    {
+        final PathCache<FtpFileView> attributeCache = attributeCaches.get(fs);
+        final PathCache<Map<String, FtpFileView>> listingCache
+            = listingCaches.get(fs);
+        final PathCache<Boolean> missing = missingEntries.get(fs);
+        if (attributeCache == null || listingCache == null || missing == null)
+            return;
+        final Path realPath = path.toAbsolutePath().normalize();
+        final String name = realPath.toString();
+        attributeCache.invalidateTree(name);
+        listingCache.invalidateTree(name);
+        missing.invalidateTree(name);
+        final Path parent = realPath.getParent();
+        if (parent != null) {
+            attributeCache.invalidate(parent.toString());
+            listingCache.invalidate(parent.toString());
+        }
+        for (Path ancestor = parent; ancestor != null;
+            ancestor = ancestor.getParent())
+            missing.invalidate(ancestor.toString());
+    }
+
+    /*
+     * An output stream removing the file it writes to from the attribute
+     * cache when it is closed
+     */
+    private final class InvalidatingOutputStream
+        extends FilterOutputStream
+    {
+        private final FtpFileSystem fs;
+        private final Path path;
+
+        private InvalidatingOutputStream(final FtpFileSystem fs,
+            final Path path, final OutputStream out)
+        {
+            super(out);
+            this.fs = fs;
+            this.path = path;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
             try {
-                queue.close();
-            } catch (IOException ignored) {
+                out.close();
+            } finally {
+                invalidate(fs, path);
             }
-            agentQueues.remove(fs);
         }
     }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package com.github.fge.ftpfs;
+
+import java.nio.file.CopyOption;
+import java.nio.file.FileSystem;
+import java.nio.file.OpenOption;
+
+/**
+ * FTP specific options to open files or copy them
+ */
+public enum FtpOpenOption
+    implements OpenOption, CopyOption
+{
+    /**
+     * Interactive transfer: not subject to the bandwidth limit of the file
+     * system
+     *
+     * <p>Use this for small, latency sensitive reads which should not wait
+     * behind bulk transfers. A {@link BandwidthLimit} for this transfer, if
+     * any, still applies.</p>
+     */
+    PRIORITY,
+
+    /**
+     * Random access through a local copy
+     *
+     * <p>When opening a channel or an input stream with this option, the
+     * remote file is downloaded in the background to a local temporary file,
+     * and reads are served from a memory mapping of this file; they only wait
+     * for the data they need to have arrived. The local copy is kept for
+     * later reuse, as long as the size and modification time of the remote
+     * file do not change, within the limit set by {@link
+     * FtpConfiguration.Builder#setStagingCapacity(long)}.</p>
+     *
+     * @see FtpFileSystemProvider#getContentCacheStatistics(FileSystem)
+     */
+    STAGED,
+
+    /**
+     * Resumable upload
+     *
+     * <p>When opening an output stream with this option, a failed data
+     * connection does not fail the upload: the upload is resumed on another
+     * agent, from the size of the remote file as reported by the server,
+     * following the retry policy of the file system.</p>
+     *
+     * @see FtpConfiguration.Builder#setReplayBufferSize(int)
+     */
+    RESUME,
+
+    /**
+     * Write behind upload
+     *
+     * <p>When opening an output stream with this option, written data is
+     * spooled locally, and closing the stream returns immediately: the upload
+     * is done in the background, and is resumable. Until it is done, reads of
+     * the file still see its previous contents.</p>
+     *
+     * <p>Failed uploads are reported by {@link
+     * FtpFileSystemProvider#awaitUploads(java.nio.file.FileSystem)}, which
+     * waits for all uploads of streams closed so far.</p>
+     *
+     * @see FtpConfiguration.Builder#setSpoolCapacity(long)
+     */
+    DEFERRED
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.file.CopyOption;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transfer statistics, as a {@link CopyOption}
+ *
+ * <p>Pass an instance of this class as an option to {@link
+ * FtpFileSystemProvider#copy(Path, Path, CopyOption...)}; once the copy is
+ * complete, it will contain the number of bytes transferred and the time
+ * spent transferring them. The same instance can be used for several copies,
+ * in which case the values accumulate.</p>
+ */
+@ThreadSafe
+public final class TransferStatistics
+    implements CopyOption
+{
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+    /**
+     * Get the total number of bytes transferred
+     *
+     * @return the number of bytes
+     */
+    public long getBytes()
+    {
+        return bytes.get();
+    }
+
+    /**
+     * Get the total time spent transferring data
+     *
+     * @param unit the time unit to use
+     * @return the elapsed time in the given unit
+     */
+    public long getElapsedTime(final TimeUnit unit)
+    {
+        return unit.convert(nanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the average transfer rate
+     *
+     * @return the number of bytes per second (0 if nothing was transferred)
+     */
+    public double getBytesPerSecond()
+    {
+        final long elapsed = nanos.get();
+        if (elapsed == 0L)
+            return 0.0;
+        return (double) bytes.get() * TimeUnit.SECONDS.toNanos(1L) / elapsed;
+    }
+
+    void record(final long transferred, final long elapsedNanos)
+    {
+        bytes.addAndGet(transferred);
+        nanos.addAndGet(elapsedNanos);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d bytes in %d ms (%.0f bytes/s)", bytes.get(),
+            TimeUnit.NANOSECONDS.toMillis(nanos.get()), getBytesPerSecond());
+    }
+}
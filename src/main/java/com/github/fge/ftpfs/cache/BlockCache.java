@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.cache;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A cache of fixed size blocks of remote files, held off heap
+ *
+ * <p>Blocks are identified by the path of the file, its modification time,
+ * its size and the index of the block in the file; a block of a file which
+ * has been modified is therefore never returned, even if the modification
+ * time, which servers report to the second, has not changed. All blocks have
+ * the same size, except the last block of a file, which may be shorter.
+ * Blocks are stored in direct buffers, carved out of larger slabs which are
+ * allocated lazily, up to the capacity of the cache, and are never freed.</p>
+ *
+ * <p>Eviction follows a segmented LRU policy, which resists scans: a new
+ * block enters a probationary segment, and is only moved to the protected
+ * segment when it is read again. When the protected segment is full, its least
+ * recently used block goes back to the probationary segment. When the cache is
+ * full, the least recently used block of the probationary segment is evicted.
+ * A sequential read of a large file therefore does not evict blocks read
+ * repeatedly.</p>
+ */
+@ThreadSafe
+public final class BlockCache
+{
+    private static final int SLAB_SIZE = 16 * 1024 * 1024;
+
+    /*
+     * Share of the blocks which the protected segment can hold, in percent
+     */
+    private static final int PROTECTED_SHARE = 80;
+
+    private final int blockSize;
+    private final long capacity;
+    private final int maxBlocks;
+    private final int maxProtected;
+    private final int blocksPerSlab;
+    private final ByteBuffer[] slabs;
+
+    @GuardedBy("this")
+    private final Map<BlockKey, Block> probation
+        = new LinkedHashMap<>(16, 0.75f, true);
+    @GuardedBy("this")
+    private final Map<BlockKey, Block> protectedBlocks
+        = new LinkedHashMap<>(16, 0.75f, true);
+    @GuardedBy("this")
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    @GuardedBy("this")
+    private int allocatedSlots = 0;
+    @GuardedBy("this")
+    private long hits = 0L;
+    @GuardedBy("this")
+    private long misses = 0L;
+
+    /**
+     * Constructor
+     *
+     * @param blockSize the size of one block
+     * @param capacity the maximum amount of memory to use for blocks
+     */
+    public BlockCache(final int blockSize, final long capacity)
+    {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("illegal block size "
+                + blockSize);
+        if (capacity < blockSize)
+            throw new IllegalArgumentException("capacity must be at least the "
+                + "size of one block");
+        this.blockSize = blockSize;
+        this.capacity = capacity;
+        maxBlocks = (int) Math.min(capacity / blockSize, Integer.MAX_VALUE);
+        maxProtected = (int) ((long) maxBlocks * PROTECTED_SHARE / 100L);
+        blocksPerSlab = Math.min(maxBlocks, Math.max(1,
+            SLAB_SIZE / blockSize));
+        slabs = new ByteBuffer[(maxBlocks + blocksPerSlab - 1)
+            / blocksPerSlab];
+    }
+
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Read from the block containing a given position of a file
+     *
+     * <p>Data is only read from this block: fewer bytes than requested may be
+     * read even if the file has more.</p>
+     *
+     * @param path the path of the file
+     * @param lastModified the modification time of the file
+     * @param size the size of the file
+     * @param position the position in the file
+     * @param dst the buffer to read into
+     * @return the number of bytes read, or -1 if the block is not cached
+     */
+    public synchronized int read(@Nonnull final String path,
+        @Nonnull final FileTime lastModified, final long size,
+        final long position, @Nonnull final ByteBuffer dst)
+    {
+        if (position < 0L || position >= size) {
+            misses++;
+            return -1;
+        }
+        final BlockKey key = new BlockKey(path, lastModified, size,
+            position / blockSize);
+        Block block = protectedBlocks.get(key);
+        if (block == null) {
+            block = probation.remove(key);
+            if (block == null) {
+                misses++;
+                return -1;
+            }
+            protect(key, block);
+        }
+        hits++;
+        final int offset = (int) (position % blockSize);
+        final int len = Math.min(dst.remaining(), block.length - offset);
+        final ByteBuffer src = slabs[block.slot / blocksPerSlab].duplicate();
+        final int start = (block.slot % blocksPerSlab) * blockSize + offset;
+        src.limit(start + len).position(start);
+        dst.put(src);
+        return len;
+    }
+
+    /**
+     * Put a block of a file into the cache
+     *
+     * <p>Nothing is done if the block is already cached.</p>
+     *
+     * @param path the path of the file
+     * @param lastModified the modification time of the file
+     * @param size the size of the file
+     * @param index the index of the block in the file
+     * @param buf the array holding the contents of the block
+     * @param off the offset of the block in the array
+     * @param len the length of the block: the block size, or what remains of
+     * the file for its last block
+     */
+    public synchronized void put(@Nonnull final String path,
+        @Nonnull final FileTime lastModified, final long size,
+        final long index, @Nonnull final byte[] buf, final int off,
+        final int len)
+    {
+        Objects.requireNonNull(path, "path is null");
+        Objects.requireNonNull(lastModified, "modification time is null");
+        if (index < 0L || index >= (size + blockSize - 1) / blockSize)
+            throw new IllegalArgumentException("illegal block index " + index);
+        if (len != Math.min(blockSize, size - index * blockSize))
+            throw new IllegalArgumentException("illegal block length " + len);
+        final BlockKey key = new BlockKey(path, lastModified, size, index);
+        if (protectedBlocks.containsKey(key) || probation.containsKey(key))
+            return;
+
+        final int slot = takeSlot();
+        final ByteBuffer dst = slabs[slot / blocksPerSlab].duplicate();
+        dst.position((slot % blocksPerSlab) * blockSize);
+        dst.put(buf, off, len);
+        probation.put(key, new Block(slot, len));
+    }
+
+    /**
+     * Get the number of cached blocks
+     *
+     * @return the number of blocks
+     */
+    public synchronized int getBlocks()
+    {
+        return probation.size() + protectedBlocks.size();
+    }
+
+    /**
+     * Get the number of reads served from the cache
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Get the number of reads of blocks which were not cached
+     *
+     * @return the number of misses
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    @GuardedBy("this")
+    private void protect(final BlockKey key, final Block block)
+    {
+        protectedBlocks.put(key, block);
+        if (protectedBlocks.size() <= maxProtected)
+            return;
+        final Iterator<Map.Entry<BlockKey, Block>> iterator
+            = protectedBlocks.entrySet().iterator();
+        final Map.Entry<BlockKey, Block> eldest = iterator.next();
+        iterator.remove();
+        probation.put(eldest.getKey(), eldest.getValue());
+    }
+
+    /*
+     * A free slot, allocating a new slab if needed; if all slots are in use,
+     * the least recently used block of the probationary segment (or of the
+     * protected segment if the former is empty) is evicted
+     */
+    @GuardedBy("this")
+    private int takeSlot()
+    {
+        if (freeSlots.isEmpty() && allocatedSlots < maxBlocks)
+            allocateSlab();
+        if (!freeSlots.isEmpty())
+            return freeSlots.pop();
+        final Map<BlockKey, Block> segment = probation.isEmpty()
+            ? protectedBlocks : probation;
+        final Iterator<Block> iterator = segment.values().iterator();
+        final int ret = iterator.next().slot;
+        iterator.remove();
+        return ret;
+    }
+
+    @GuardedBy("this")
+    private void allocateSlab()
+    {
+        final int count = Math.min(blocksPerSlab, maxBlocks - allocatedSlots);
+        slabs[allocatedSlots / blocksPerSlab]
+            = ByteBuffer.allocateDirect(count * blockSize);
+        for (int i = count - 1; i >= 0; i--)
+            freeSlots.push(allocatedSlots + i);
+        allocatedSlots += count;
+    }
+
+    private static final class Block
+    {
+        private final int slot;
+        private final int length;
+
+        private Block(final int slot, final int length)
+        {
+            this.slot = slot;
+            this.length = length;
+        }
+    }
+
+    private static final class BlockKey
+    {
+        private final String path;
+        private final FileTime lastModified;
+        private final long size;
+        private final long index;
+
+        private BlockKey(final String path, final FileTime lastModified,
+            final long size, final long index)
+        {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.index = index;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int ret = path.hashCode() * 31 + lastModified.hashCode();
+            ret = ret * 31 + (int) (size ^ (size >>> 32));
+            return ret * 31 + (int) (index ^ (index >>> 32));
+        }
+
+        @Override
+        public boolean equals(final Object obj)
+        {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof BlockKey))
+                return false;
+            final BlockKey other = (BlockKey) obj;
+            return index == other.index && size == other.size
+                && path.equals(other.path)
+                && lastModified.equals(other.lastModified);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.cache;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of values by remote path, the entries of which expire
+ *
+ * <p>Entries expire a fixed time after they were put into the cache. The
+ * number of entries is bounded: when the cache is full, the least recently
+ * used entry is evicted.</p>
+ *
+ * <p>Paths are expected to be absolute and normalized. A cache with a time
+ * to live of 0 never holds anything.</p>
+ *
+ * <p>A cache may also be given a maximum staleness: expired entries are then
+ * kept for this long after they expire, and can still be obtained using
+ * {@link #getStale(String)}.</p>
+ *
+ * @param <V> the type of values
+ */
+@ThreadSafe
+public final class PathCache<V>
+{
+    private final long ttl;
+    private final long maxStaleness;
+
+    @GuardedBy("this")
+    private final Map<String, CachedValue<V>> entries;
+
+    /**
+     * Constructor
+     *
+     * @param ttl the time to live of entries
+     * @param unit the time unit
+     * @param maxEntries the maximum number of entries
+     */
+    public PathCache(final long ttl, @Nonnull final TimeUnit unit,
+        final int maxEntries)
+    {
+        this(ttl, 0L, unit, maxEntries);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ttl the time to live of entries
+     * @param maxStaleness the time during which expired entries are kept
+     * @param unit the time unit
+     * @param maxEntries the maximum number of entries
+     */
+    public PathCache(final long ttl, final long maxStaleness,
+        @Nonnull final TimeUnit unit, final int maxEntries)
+    {
+        if (ttl < 0L)
+            throw new IllegalArgumentException("illegal time to live " + ttl);
+        if (maxStaleness < 0L)
+            throw new IllegalArgumentException("illegal maximum staleness "
+                + maxStaleness);
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("illegal maximum number of "
+                + "entries " + maxEntries);
+        Objects.requireNonNull(unit, "unit is null");
+        this.ttl = unit.toNanos(ttl);
+        this.maxStaleness = unit.toNanos(maxStaleness);
+        entries = new LinkedHashMap<String, CachedValue<V>>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(
+                final Map.Entry<String, CachedValue<V>> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Get the value for a path
+     *
+     * @param path the path
+     * @return the value, or null if there is none or if it has expired
+     */
+    public synchronized V get(@Nonnull final String path)
+    {
+        final CachedValue<V> entry = getEntry(path);
+        if (entry == null || System.nanoTime() - entry.expiry >= 0L)
+            return null;
+        return entry.value;
+    }
+
+    /**
+     * Get the value for a path, even if it has expired
+     *
+     * @param path the path
+     * @return the value, or null if there is none or if it has expired for
+     * longer than the maximum staleness
+     */
+    public synchronized V getStale(@Nonnull final String path)
+    {
+        final CachedValue<V> entry = getEntry(path);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Put the value for a path, replacing the previous one if any
+     *
+     * @param path the path
+     * @param value the value
+     */
+    public synchronized void put(@Nonnull final String path,
+        @Nonnull final V value)
+    {
+        Objects.requireNonNull(path, "path is null");
+        Objects.requireNonNull(value, "value is null");
+        if (ttl == 0L)
+            return;
+        entries.put(path, new CachedValue<>(value, System.nanoTime() + ttl));
+    }
+
+    /**
+     * Remove the value for a path
+     *
+     * @param path the path
+     */
+    public synchronized void invalidate(@Nonnull final String path)
+    {
+        entries.remove(path);
+    }
+
+    /**
+     * Remove the values for a path and all paths below it
+     *
+     * @param path the path
+     */
+    public synchronized void invalidateTree(@Nonnull final String path)
+    {
+        if ("/".equals(path)) {
+            entries.clear();
+            return;
+        }
+        final String prefix = path + '/';
+        final Iterator<String> iterator = entries.keySet().iterator();
+        String key;
+        while (iterator.hasNext()) {
+            key = iterator.next();
+            if (key.equals(path) || key.startsWith(prefix))
+                iterator.remove();
+        }
+    }
+
+    /**
+     * Get the number of entries, including expired entries not removed yet
+     *
+     * @return the number of entries
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    @GuardedBy("this")
+    private CachedValue<V> getEntry(final String path)
+    {
+        final CachedValue<V> entry = entries.get(path);
+        if (entry == null)
+            return null;
+        if (System.nanoTime() - entry.expiry - maxStaleness >= 0L) {
+            entries.remove(path);
+            return null;
+        }
+        return entry;
+    }
+
+    private static final class CachedValue<V>
+    {
+        private final V value;
+        private final long expiry;
+
+        private CachedValue(final V value, final long expiry)
+        {
+            this.value = value;
+            this.expiry = expiry;
+        }
+    }
+}
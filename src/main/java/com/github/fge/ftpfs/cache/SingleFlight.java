@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.cache;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalescing of concurrent identical remote operations
+ *
+ * <p>Operations are identified by a key, typically a path. When an operation
+ * is requested while an operation with the same key is in flight, it is not
+ * executed: the caller waits for the operation in flight, and is given its
+ * result (or its failure) instead.</p>
+ *
+ * <p>Results are not kept once the operation completes; see {@link
+ * PathCache} for this.</p>
+ *
+ * @param <V> the type of results
+ */
+@ThreadSafe
+public final class SingleFlight<V>
+{
+    private final ConcurrentMap<String, FutureTask<V>> inFlight
+        = new ConcurrentHashMap<>();
+
+    /**
+     * Execute an operation, or wait for the operation in flight with the
+     * same key
+     *
+     * @param key the key
+     * @param operation the operation
+     * @return the result of the operation
+     * @throws IOException the operation failed, or the wait was interrupted
+     */
+    public V execute(@Nonnull final String key,
+        @Nonnull final Callable<V> operation)
+        throws IOException
+    {
+        Objects.requireNonNull(key, "key is null");
+        Objects.requireNonNull(operation, "operation is null");
+        final FutureTask<V> task = new FutureTask<>(operation);
+        final FutureTask<V> running = inFlight.putIfAbsent(key, task);
+        if (running != null)
+            return getResult(running);
+        try {
+            task.run();
+        } finally {
+            inFlight.remove(key, task);
+        }
+        return getResult(task);
+    }
+
+    /**
+     * Get the number of operations in flight
+     *
+     * @return the number of operations
+     */
+    public int getInFlight()
+    {
+        return inFlight.size();
+    }
+
+    private static <V> V getResult(final FutureTask<V> task)
+        throws IOException
+    {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted!", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -22,9 +22,13 @@ import com.github.fge.ftpfs.FtpConfiguration;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Base implementation for an {@link FtpAgent}
@@ -54,20 +58,87 @@ public abstract class AbstractFtpAgent
      * Open a raw input stream to a remote file
      *
      * @param file path to the remote file
+     * @param offset the offset at which to start reading
      * @return an input stream
      * @throws NoSuchFileException file does not exist
      * @throws AccessDeniedException cannot open the file for reading
      * @throws IOException cannot create the input stream
      */
-    protected abstract InputStream openInputStream(final String file)
+    protected abstract InputStream openInputStream(final String file,
+        final long offset)
+        throws IOException;
+
+    /**
+     * Open a raw output stream to a remote file
+     *
+     * @param file path to the remote file
+     * @param append whether to append to the file
+     * @return an output stream
+     * @throws AccessDeniedException cannot open the file for writing
+     * @throws IOException cannot create the output stream
+     */
+    protected abstract OutputStream openOutputStream(final String file,
+        final boolean append)
         throws IOException;
 
     @Override
     public final FtpInputStream getInputStream(final Path path)
         throws IOException
     {
-        final InputStream stream = openInputStream(path.toString());
-        return new FtpInputStream(this, stream);
+        return getInputStream(path, 0L);
+    }
+
+    @Override
+    public final FtpInputStream getInputStream(final Path path,
+        final long offset)
+        throws IOException
+    {
+        final InputStream stream = openInputStream(path.toString(), offset);
+        return new FtpInputStream(this, stream, queue, path, offset,
+            cfg.getRetryPolicy());
+    }
+
+    @Override
+    public final FtpOutputStream getOutputStream(final Path path,
+        final boolean append)
+        throws IOException
+    {
+        final OutputStream stream = openOutputStream(path.toString(), append);
+        return new FtpOutputStream(this, stream, cfg.getWriteBufferSize());
+    }
+
+    @Override
+    public final FtpOutputStream getResumableOutputStream(final Path path,
+        final boolean append)
+        throws IOException
+    {
+        /*
+         * When appending, the size of the remote file before the upload is
+         * needed to know how much of the upload the server has on resume
+         */
+        long base = 0L;
+        if (append)
+            try {
+                base = getSize(path.toString());
+            } catch (NoSuchFileException ignored) {
+                // APPE creates the file
+            }
+        final OutputStream stream = openOutputStream(path.toString(), append);
+        return new FtpOutputStream(this, stream, cfg.getWriteBufferSize(),
+            queue, path, cfg.getRetryPolicy(), cfg.getReplayBufferSize(),
+            base);
+    }
+
+    @Override
+    public final Map<String, BasicFileAttributes> getDirectoryEntries(
+        final String dir)
+        throws IOException
+    {
+        final Map<String, BasicFileAttributes> ret = new LinkedHashMap<>();
+        for (final Map.Entry<String, FtpFileView> entry:
+            getDirectoryViews(dir).entrySet())
+            ret.put(entry.getKey(), entry.getValue().readAttributes());
+        return ret;
     }
 
     @Override
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package com.github.fge.ftpfs.io;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A token bucket limiting the rate of data transfers
+ *
+ * <p>Tokens (bytes) are added to the bucket at the configured rate, up to one
+ * second worth of data. A transfer takes as many tokens as it has read bytes;
+ * when the bucket does not hold enough tokens, the missing tokens are reserved
+ * anyway, and the caller waits for the time needed to refill them.</p>
+ *
+ * <p>Reservations are granted in arrival order, and transfers only ever
+ * reserve one chunk at a time (see {@link ThrottledInputStream}): all active
+ * transfers sharing a limiter therefore get an equal share of the rate.</p>
+ */
+@ThreadSafe
+public final class BandwidthLimiter
+{
+    private static final double NANOS_PER_SECOND
+        = (double) TimeUnit.SECONDS.toNanos(1L);
+
+    private final long bytesPerSecond;
+
+    private final Lock lock = new ReentrantLock(true);
+    @GuardedBy("lock")
+    private double tokens;
+    @GuardedBy("lock")
+    private long lastRefill;
+
+    /**
+     * Constructor
+     *
+     * @param bytesPerSecond the rate, in bytes per second
+     */
+    public BandwidthLimiter(final long bytesPerSecond)
+    {
+        if (bytesPerSecond <= 0L)
+            throw new IllegalArgumentException("illegal rate "
+                + bytesPerSecond);
+        this.bytesPerSecond = bytesPerSecond;
+        tokens = bytesPerSecond;
+        lastRefill = System.nanoTime();
+    }
+
+    public long getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Take tokens from the bucket, waiting if necessary
+     *
+     * @param bytes the number of tokens to take
+     * @throws IOException interrupted while waiting
+     */
+    public void acquire(final int bytes)
+        throws IOException
+    {
+        final long waitNanos;
+
+        lock.lock();
+        try {
+            final long now = System.nanoTime();
+            tokens = Math.min(bytesPerSecond,
+                tokens + (now - lastRefill) * bytesPerSecond / NANOS_PER_SECOND);
+            lastRefill = now;
+            tokens -= bytes;
+            waitNanos = tokens >= 0.0 ? 0L
+                : (long) (-tokens * NANOS_PER_SECOND / bytesPerSecond);
+        } finally {
+            lock.unlock();
+        }
+
+        if (waitNanos == 0L)
+            return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted!", e);
+        }
+    }
+}
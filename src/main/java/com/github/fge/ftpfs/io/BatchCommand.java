@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+/**
+ * FTP commands which can be sent in batches
+ *
+ * <p>Each of these commands takes one path as an argument and does not open
+ * a data connection; a batch of them can therefore be pipelined on the
+ * control connection.</p>
+ *
+ * @see FtpAgent#executeBatch(BatchCommand, java.util.List)
+ */
+public enum BatchCommand
+{
+    /**
+     * Delete a file
+     */
+    DELE,
+    /**
+     * Delete an empty directory
+     */
+    RMD,
+    /**
+     * Create a directory
+     */
+    MKD
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A batch upload of small files over one control connection
+ *
+ * <p>When uploading small files, most of the time is spent waiting for
+ * replies to commands and setting up data connections, not transferring
+ * data. Files are therefore queued, then uploaded together by one agent,
+ * which pipelines the setup of each transfer with the end of the previous
+ * one (see {@link FtpAgent#storeBatch(Map)}).</p>
+ *
+ * <p>The contents of queued files are held in memory until the batch is
+ * run.</p>
+ */
+@NotThreadSafe
+public final class BatchStore
+{
+    private final FtpAgentQueue queue;
+
+    private Map<String, byte[]> files = new LinkedHashMap<>();
+    private long queuedBytes = 0L;
+
+    /**
+     * Constructor
+     *
+     * @param queue the agent queue
+     */
+    public BatchStore(@Nonnull final FtpAgentQueue queue)
+    {
+        this.queue = Objects.requireNonNull(queue, "queue is null");
+    }
+
+    /**
+     * Queue a file for upload
+     *
+     * <p>If a file is already queued at this path, its contents are
+     * replaced.</p>
+     *
+     * @param path the path of the remote file
+     * @param contents the contents of the file
+     */
+    public void add(@Nonnull final String path, @Nonnull final byte[] contents)
+    {
+        Objects.requireNonNull(path, "path is null");
+        Objects.requireNonNull(contents, "contents is null");
+        final byte[] previous = files.put(path, contents);
+        if (previous != null)
+            queuedBytes -= previous.length;
+        queuedBytes += contents.length;
+    }
+
+    /**
+     * Queue a local file for upload
+     *
+     * <p>The local file is read immediately.</p>
+     *
+     * @param path the path of the remote file
+     * @param source the local file
+     * @throws IOException the local file could not be read
+     */
+    public void add(@Nonnull final String path, @Nonnull final Path source)
+        throws IOException
+    {
+        add(path, Files.readAllBytes(source));
+    }
+
+    /**
+     * Get the number of queued files
+     *
+     * @return the number of files
+     */
+    public int getQueuedFiles()
+    {
+        return files.size();
+    }
+
+    /**
+     * Get the total size of queued files
+     *
+     * @return the size, in bytes
+     */
+    public long getQueuedBytes()
+    {
+        return queuedBytes;
+    }
+
+    /**
+     * Upload all queued files
+     *
+     * <p>On success, the queue is emptied, even if some files could not be
+     * uploaded. If an I/O error occurs, the files are kept in the queue; since
+     * uploads replace existing files, the batch can be run again.</p>
+     *
+     * @return the failures, by path; empty if all files were uploaded
+     * @throws IOException I/O error when communicating with the FTP server,
+     * or interrupted while waiting for an agent
+     */
+    public Map<String, IOException> run()
+        throws IOException
+    {
+        if (files.isEmpty())
+            return Collections.emptyMap();
+
+        final Map<String, IOException> ret;
+        try (
+            final FtpAgent agent = queue.getAgent();
+        ) {
+            ret = agent.storeBatch(files);
+        }
+        files = new LinkedHashMap<>();
+        queuedBytes = 0L;
+        return ret;
+    }
+}
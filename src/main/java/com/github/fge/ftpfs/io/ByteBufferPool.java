@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import com.github.fge.ftpfs.FtpFileSystemProvider;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A bounded pool of reusable byte buffers
+ *
+ * <p>One instance of this class is shared by all transfers of a {@link
+ * FtpFileSystemProvider}. Buffers all have the same size; they are carved out
+ * of larger slabs, which are allocated lazily, and are never freed.</p>
+ *
+ * <p>The pool has a memory cap: when all buffers which the cap allows are in
+ * use, {@link #acquire()} blocks until one is released. This bounds the
+ * amount of data held in memory by transfers in progress.</p>
+ *
+ * <p>Buffers are backed by an array: data connections are {@link
+ * java.io.InputStream}s, which read into arrays. Users of a buffer must take
+ * {@link ByteBuffer#arrayOffset()} into account.</p>
+ */
+@ThreadSafe
+public final class ByteBufferPool
+{
+    private static final int SLAB_SIZE = 4 * 1024 * 1024;
+
+    private final int bufferSize;
+    private final long capacity;
+    private final int buffersPerSlab;
+    private final Semaphore permits;
+
+    @GuardedBy("this")
+    private final Deque<ByteBuffer> free = new ArrayDeque<>();
+    @GuardedBy("this")
+    private int allocated = 0;
+
+    /**
+     * Constructor
+     *
+     * @param bufferSize the size of one buffer
+     * @param capacity the maximum amount of memory to use for buffers
+     */
+    public ByteBufferPool(final int bufferSize, final long capacity)
+    {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("illegal buffer size "
+                + bufferSize);
+        if (capacity < bufferSize)
+            throw new IllegalArgumentException("capacity must be at least the "
+                + "size of one buffer");
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        final long maxBuffers = Math.min(capacity / bufferSize,
+            Integer.MAX_VALUE);
+        buffersPerSlab = (int) Math.min(maxBuffers,
+            Math.max(1, SLAB_SIZE / bufferSize));
+        permits = new Semaphore((int) maxBuffers, true);
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Get the number of buffers which can be acquired without blocking
+     *
+     * @return the number of buffers
+     */
+    public int getAvailableBuffers()
+    {
+        return permits.availablePermits();
+    }
+
+    /**
+     * Acquire one buffer, blocking if the memory cap has been reached
+     *
+     * <p>The returned buffer is cleared.</p>
+     *
+     * @return a buffer
+     * @throws IOException interrupted while waiting for a buffer
+     */
+    public ByteBuffer acquire()
+        throws IOException
+    {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted!", e);
+        }
+        return take();
+    }
+
+    /**
+     * Acquire one buffer if one is available without blocking
+     *
+     * @return a buffer, or {@code null} if the memory cap has been reached
+     */
+    public ByteBuffer tryAcquire()
+    {
+        return permits.tryAcquire() ? take() : null;
+    }
+
+    /**
+     * Give a buffer back to the pool
+     *
+     * @param buffer the buffer, as obtained from this pool
+     */
+    public void release(final ByteBuffer buffer)
+    {
+        if (buffer.capacity() != bufferSize)
+            throw new IllegalArgumentException("buffer does not belong to "
+                + "this pool");
+        buffer.clear();
+        synchronized (this) {
+            free.push(buffer);
+        }
+        permits.release();
+    }
+
+    private synchronized ByteBuffer take()
+    {
+        if (free.isEmpty())
+            allocateSlab();
+        return free.pop();
+    }
+
+    @GuardedBy("this")
+    private void allocateSlab()
+    {
+        final long maxBuffers = capacity / bufferSize;
+        final int count = (int) Math.min(buffersPerSlab,
+            maxBuffers - allocated);
+        final byte[] slab = new byte[count * bufferSize];
+        ByteBuffer buffer;
+        for (int i = 0; i < count; i++) {
+            buffer = ByteBuffer.wrap(slab, i * bufferSize, bufferSize);
+            free.push(buffer.slice());
+        }
+        allocated += count;
+    }
+}
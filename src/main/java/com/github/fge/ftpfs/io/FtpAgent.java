@@ -24,13 +24,18 @@ import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.AccessMode;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 
 /**
  * One FTP client as used by an {@link FtpFileSystemProvider} instance
@@ -72,21 +77,28 @@ public interface FtpAgent
         throws IOException;
 
     /**
-     * Obtain the list of directory entries for a remote FTP directory
+     * Open an {@link InputStream} to a remote file for download
      *
-     * @param dir the directory
-     * @return the list of names
-     * @throws NotDirectoryException entry is not a directory
-     * @throws AccessDeniedException user cannot list entries in this directory
+     * @param path the path of the file to download
+     * @return the matching input stream
+     * @throws NoSuchFileException file does not exist
+     * @throws AccessDeniedException cannot read the file
      * @throws IOException I/O error when communicating with FTP server
+     *
+     * @see #completeTransfer()
      */
-    List<String> getDirectoryNames(final String dir)
+    FtpInputStream getInputStream(final Path path)
         throws IOException;
 
     /**
-     * Open an {@link InputStream} to a remote file for download
+     * Open an {@link InputStream} to a remote file for download, starting at
+     * a given offset
+     *
+     * <p>The offset is sent to the server as a {@code REST} command before the
+     * file is retrieved.</p>
      *
      * @param path the path of the file to download
+     * @param offset the offset at which to start the download
      * @return the matching input stream
      * @throws NoSuchFileException file does not exist
      * @throws AccessDeniedException cannot read the file
@@ -94,9 +106,232 @@ public interface FtpAgent
      *
      * @see #completeTransfer()
      */
-    FtpInputStream getInputStream(final Path path)
+    FtpInputStream getInputStream(final Path path, final long offset)
+        throws IOException;
+
+    /**
+     * Open an {@link OutputStream} to a remote file for upload
+     *
+     * <p>The file is uploaded using a {@code STOR} command, or an {@code APPE}
+     * command when appending.</p>
+     *
+     * @param path the path of the file to upload
+     * @param append whether to append to the file instead of replacing it
+     * @return the matching output stream
+     * @throws AccessDeniedException cannot write the file
+     * @throws IOException I/O error when communicating with FTP server
+     *
+     * @see #completeTransfer()
+     */
+    FtpOutputStream getOutputStream(final Path path, final boolean append)
+        throws IOException;
+
+    /**
+     * Open a resumable {@link OutputStream} to a remote file for upload
+     *
+     * <p>Same as {@link #getOutputStream(Path, boolean)}, except that the
+     * returned stream resumes the upload if the data connection fails.</p>
+     *
+     * @param path the path of the file to upload
+     * @param append whether to append to the file instead of replacing it
+     * @return the matching output stream
+     * @throws AccessDeniedException cannot write the file
+     * @throws IOException I/O error when communicating with FTP server
+     *
+     * @see FtpOutputStream
+     */
+    FtpOutputStream getResumableOutputStream(final Path path,
+        final boolean append)
         throws IOException;
 
+    /**
+     * Get the size of a remote file as currently known by the server
+     *
+     * <p>The server is asked using a {@code SIZE} command, or an {@code MLST}
+     * command if the former is not supported.</p>
+     *
+     * @param file the path of the file
+     * @return the size of the file
+     * @throws NoSuchFileException file does not exist
+     * @throws IOException I/O error when communicating with FTP server
+     */
+    long getSize(final String file)
+        throws IOException;
+
+    /**
+     * Create a directory on the remote server ({@code MKD})
+     *
+     * @param dir the path of the directory
+     * @throws FileAlreadyExistsException an entry by that name already exists
+     * @throws AccessDeniedException the directory could not be created
+     * @throws IOException I/O error when communicating with FTP server
+     */
+    void createDirectory(final String dir)
+        throws IOException;
+
+    /**
+     * Rename an entry on the remote server ({@code RNFR}, then {@code RNTO})
+     *
+     * @param from the path of the entry to rename
+     * @param to the new path of the entry
+     * @throws NoSuchFileException the entry to rename does not exist
+     * @throws AccessDeniedException the entry could not be renamed
+     * @throws IOException I/O error when communicating with FTP server
+     */
+    void rename(final String from, final String to)
+        throws IOException;
+
+    /**
+     * Delete a file ({@code DELE}) or an empty directory ({@code RMD})
+     *
+     * @param name the path of the entry to delete
+     * @param directory whether the entry is a directory
+     * @throws NoSuchFileException the entry does not exist
+     * @throws DirectoryNotEmptyException the directory is not empty
+     * @throws AccessDeniedException the entry could not be deleted
+     * @throws IOException I/O error when communicating with FTP server
+     */
+    void delete(final String name, final boolean directory)
+        throws IOException;
+
+    /**
+     * Obtain the entries of a remote FTP directory, along with their
+     * attributes
+     *
+     * <p>This takes one listing only, whatever the number of entries.</p>
+     *
+     * @param dir the directory
+     * @return a map of attributes, by entry name
+     * @throws NotDirectoryException entry is not a directory
+     * @throws AccessDeniedException user cannot list entries in this directory
+     * @throws IOException I/O error when communicating with FTP server
+     */
+    Map<String, BasicFileAttributes> getDirectoryEntries(final String dir)
+        throws IOException;
+
+    /**
+     * Obtain the entries of a remote FTP directory, along with their views
+     *
+     * <p>Same as {@link #getDirectoryEntries(String)}, except that the views
+     * also give access to the privileges of the current FTP user.</p>
+     *
+     * @param dir the directory
+     * @return a map of views, by entry name
+     * @throws NotDirectoryException entry is not a directory
+     * @throws AccessDeniedException user cannot list entries in this directory
+     * @throws IOException I/O error when communicating with FTP server
+     */
+    Map<String, FtpFileView> getDirectoryViews(final String dir)
+        throws IOException;
+
+    /**
+     * Execute one command for each path of a list
+     *
+     * <p>Commands are pipelined: they are sent to the server without waiting
+     * for the reply to the previous command, and replies are read afterwards.
+     * A batch therefore only costs a few round trips.</p>
+     *
+     * <p>The failure of one command does not prevent the following commands
+     * from being executed.</p>
+     *
+     * @param command the command
+     * @param paths the list of paths
+     * @return the failures, by path; empty if all commands succeeded
+     * @throws IOException I/O error when communicating with FTP server; the
+     * outcome of the batch is then unknown
+     */
+    Map<String, IOException> executeBatch(final BatchCommand command,
+        final List<String> paths)
+        throws IOException;
+
+    /**
+     * Upload a batch of files over this agent's control connection
+     *
+     * <p>This is meant for small files, for which the cost of an upload is
+     * mostly that of command round trips and data connection setup: the
+     * commands setting up the transfer of one file are sent before the
+     * server has acknowledged the end of the transfer of the previous
+     * file.</p>
+     *
+     * <p>The failure of one upload does not prevent the following files from
+     * being uploaded.</p>
+     *
+     * @param files the contents of the files, by path; files are uploaded in
+     * the iteration order of the map
+     * @return the failures, by path; empty if all files were uploaded
+     * @throws IOException I/O error when communicating with FTP server; the
+     * outcome of the batch is then unknown, and the agent disconnects
+     */
+    Map<String, IOException> storeBatch(final Map<String, byte[]> files)
+        throws IOException;
+
+    /**
+     * Have the server listen for a data connection ({@code PASV})
+     *
+     * <p>This is the first step of a server to server transfer: the returned
+     * address is given to the other server using {@link
+     * #openActivePort(String)}.</p>
+     *
+     * @return the address, in the {@code h1,h2,h3,h4,p1,p2} form used by
+     * {@code PORT}; null if the server refuses passive mode
+     * @throws IOException I/O error when communicating with FTP server
+     *
+     * @see #beginReceive(String)
+     */
+    String openPassivePort()
+        throws IOException;
+
+    /**
+     * Have the server connect to the given address for the next data
+     * connection ({@code PORT})
+     *
+     * @param address the address, as returned by {@link #openPassivePort()}
+     * @return false if the server refuses this address
+     * @throws IOException I/O error when communicating with FTP server
+     *
+     * @see #beginSend(String)
+     */
+    boolean openActivePort(final String address)
+        throws IOException;
+
+    /**
+     * Start sending a file over the data connection set up by {@link
+     * #openActivePort(String)} ({@code RETR})
+     *
+     * <p>This method returns as soon as the transfer has started; use {@link
+     * #completeTransfer()} to wait for its end.</p>
+     *
+     * @param file the path of the file to send
+     * @return false if the data connection could not be established
+     * @throws AccessDeniedException cannot read the file
+     * @throws IOException I/O error when communicating with FTP server
+     */
+    boolean beginSend(final String file)
+        throws IOException;
+
+    /**
+     * Start receiving a file over the data connection set up by {@link
+     * #openPassivePort()} ({@code STOR})
+     *
+     * <p>This method returns as soon as the server waits for the data; use
+     * {@link #completeTransfer()} to wait for the end of the transfer.</p>
+     *
+     * @param file the path of the file to receive
+     * @throws AccessDeniedException cannot write the file
+     * @throws IOException I/O error when communicating with FTP server
+     */
+    void beginReceive(final String file)
+        throws IOException;
+
+    /**
+     * Abort a transfer started by {@link #beginSend(String)} or {@link
+     * #beginReceive(String)}
+     *
+     * <p>The state of the control connection is unknown after an abort: the
+     * agent disconnects, and will reconnect when it is next used.</p>
+     */
+    void abortTransfer();
+
     /**
      * Report whether this agent is not usable anymore
      *
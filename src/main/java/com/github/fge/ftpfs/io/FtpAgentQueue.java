@@ -93,6 +93,19 @@ public final class FtpAgentQueue
         }
     }
 
+    /**
+     * Get the number of agents currently available in this queue
+     *
+     * <p>Note that this is only a snapshot; the value may have changed by the
+     * time this method returns.</p>
+     *
+     * @return the number of available agents
+     */
+    public int getAvailableAgents()
+    {
+        return initialized.get() ? queue.size() : maxAgents;
+    }
+
     /**
      * Push an FTP agent back into the queue
      *
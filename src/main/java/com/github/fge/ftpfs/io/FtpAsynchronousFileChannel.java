@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import com.github.fge.ftpfs.cache.BlockCache;
+
+import javax.annotation.Nonnull;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A read only {@link AsynchronousFileChannel} over an FTP file
+ *
+ * <p>Each read is a positioned read, executed by an {@link ExecutorService}:
+ * an agent is taken from the queue, and a data connection is opened at the
+ * requested position using a {@code REST} command.</p>
+ *
+ * <p>When a read ends before the end of the file, its data connection is kept
+ * open (only one per channel); if the next read starts where this one ended,
+ * it will reuse it instead of opening a new one. Sequential reads therefore
+ * all use the same data connection.</p>
+ *
+ * <p>If a {@link BlockCache} is used, a read only returns data from the block
+ * containing its position; the block is read from the cache if possible, and
+ * downloaded as a whole and put into the cache otherwise.</p>
+ */
+public final class FtpAsynchronousFileChannel
+    extends AsynchronousFileChannel
+{
+    private final FtpAgentQueue queue;
+    private final Path path;
+    private final long size;
+    private final BlockCache blockCache;
+    private final String name;
+    private final FileTime lastModified;
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+
+    private final AtomicReference<IdleStream> idle
+        = new AtomicReference<>();
+    private volatile boolean open = true;
+
+    /**
+     * Constructor
+     *
+     * @param queue the agent queue
+     * @param path the path to the remote file
+     * @param size the size of the remote file
+     * @param executor the executor to run reads; if null, a private executor
+     * is created, and shut down when the channel is closed
+     */
+    public FtpAsynchronousFileChannel(@Nonnull final FtpAgentQueue queue,
+        @Nonnull final Path path, final long size,
+        final ExecutorService executor)
+    {
+        this(queue, path, size, executor, null, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param queue the agent queue
+     * @param path the path to the remote file
+     * @param size the size of the remote file
+     * @param executor the executor to run reads; if null, a private executor
+     * is created, and shut down when the channel is closed
+     * @param blockCache the block cache; null if none
+     * @param lastModified the modification time of the remote file; only
+     * used with a block cache
+     */
+    public FtpAsynchronousFileChannel(@Nonnull final FtpAgentQueue queue,
+        @Nonnull final Path path, final long size,
+        final ExecutorService executor, final BlockCache blockCache,
+        final FileTime lastModified)
+    {
+        this.queue = Objects.requireNonNull(queue, "queue is null");
+        this.path = Objects.requireNonNull(path, "path is null");
+        if (blockCache != null)
+            Objects.requireNonNull(lastModified, "modification time is null");
+        this.size = size;
+        this.blockCache = blockCache;
+        name = path.toString();
+        this.lastModified = lastModified;
+        ownExecutor = executor == null;
+        this.executor = ownExecutor
+            ? Executors.newCachedThreadPool(new DaemonThreadFactory())
+            : executor;
+    }
+
+    @Override
+    public long size()
+        throws IOException
+    {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public AsynchronousFileChannel truncate(final long size)
+        throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public void force(final boolean metaData)
+        throws IOException
+    {
+        ensureOpen();
+    }
+
+    @Override
+    public <A> void lock(final long position, final long size,
+        final boolean shared, final A attachment,
+        final CompletionHandler<FileLock, ? super A> handler)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Future<FileLock> lock(final long position, final long size,
+        final boolean shared)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FileLock tryLock(final long position, final long size,
+        final boolean shared)
+        throws IOException
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <A> void read(final ByteBuffer dst, final long position,
+        final A attachment,
+        final CompletionHandler<Integer, ? super A> handler)
+    {
+        Objects.requireNonNull(handler, "handler is null");
+        final Callable<Integer> read = newRead(dst, position);
+        submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final int ret;
+                try {
+                    ret = read.call();
+                } catch (Throwable t) {
+                    handler.failed(t, attachment);
+                    return;
+                }
+                handler.completed(ret, attachment);
+            }
+        });
+    }
+
+    @Override
+    public Future<Integer> read(final ByteBuffer dst, final long position)
+    {
+        final FutureTask<Integer> task = new FutureTask<>(newRead(dst,
+            position));
+        submit(task);
+        return task;
+    }
+
+    @Override
+    public <A> void write(final ByteBuffer src, final long position,
+        final A attachment,
+        final CompletionHandler<Integer, ? super A> handler)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public Future<Integer> write(final ByteBuffer src, final long position)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (!open)
+            return;
+        open = false;
+        if (ownExecutor)
+            executor.shutdown();
+        final IdleStream stream = idle.getAndSet(null);
+        if (stream != null)
+            stream.stream.close();
+    }
+
+    private void ensureOpen()
+        throws ClosedChannelException
+    {
+        if (!open)
+            throw new ClosedChannelException();
+    }
+
+    /*
+     * Once the channel is closed, a private executor is shut down; the read
+     * then runs in the caller thread, and fails immediately.
+     */
+    private void submit(final Runnable task)
+    {
+        if (open)
+            try {
+                executor.execute(task);
+                return;
+            } catch (RejectedExecutionException e) {
+                if (open)
+                    throw e;
+            }
+        task.run();
+    }
+
+    private Callable<Integer> newRead(final ByteBuffer dst,
+        final long position)
+    {
+        if (position < 0L)
+            throw new IllegalArgumentException("illegal position " + position);
+        if (dst.isReadOnly())
+            throw new IllegalArgumentException("read only buffer");
+        return new Callable<Integer>()
+        {
+            @Override
+            public Integer call()
+                throws IOException
+            {
+                ensureOpen();
+                return doRead(dst, position);
+            }
+        };
+    }
+
+    private int doRead(final ByteBuffer dst, final long position)
+        throws IOException
+    {
+        if (position >= size)
+            return -1;
+        final int len = (int) Math.min(dst.remaining(), size - position);
+        if (len == 0)
+            return 0;
+        if (blockCache != null)
+            return readBlock(dst, position);
+
+        if (dst.hasArray()) {
+            readAt(position, dst.array(), dst.arrayOffset() + dst.position(),
+                len);
+            dst.position(dst.position() + len);
+        } else {
+            final byte[] buf = new byte[len];
+            readAt(position, buf, 0, len);
+            dst.put(buf);
+        }
+        return len;
+    }
+
+    private int readBlock(final ByteBuffer dst, final long position)
+        throws IOException
+    {
+        final int ret = blockCache.read(name, lastModified, size, position,
+            dst);
+        if (ret != -1)
+            return ret;
+
+        final int blockSize = blockCache.getBlockSize();
+        final long start = position - position % blockSize;
+        final byte[] block = new byte[(int) Math.min(blockSize,
+            size - start)];
+        readAt(start, block, 0, block.length);
+        blockCache.put(name, lastModified, size, start / blockSize, block,
+            0, block.length);
+
+        final int offset = (int) (position - start);
+        final int len = Math.min(dst.remaining(), block.length - offset);
+        dst.put(block, offset, len);
+        return len;
+    }
+
+    private void readAt(final long position, final byte[] buf, final int off,
+        final int len)
+        throws IOException
+    {
+        final FtpInputStream stream = openAt(position);
+        boolean reuse = false;
+        try {
+            readFully(stream, buf, off, len);
+            reuse = position + len < size;
+        } finally {
+            if (reuse && open && idle.compareAndSet(null,
+                new IdleStream(stream, position + len)))
+                closeIdleStreamIfClosed();
+            else
+                stream.close();
+        }
+        if (!open)
+            throw new AsynchronousCloseException();
+    }
+
+    /*
+     * The channel may have been closed after a read checked that it was open,
+     * but before that read made its stream idle: close() has already closed
+     * the idle stream then, if any, and will not do it again.
+     */
+    private void closeIdleStreamIfClosed()
+        throws IOException
+    {
+        if (open)
+            return;
+        final IdleStream stream = idle.getAndSet(null);
+        if (stream != null)
+            stream.stream.close();
+    }
+
+    private FtpInputStream openAt(final long position)
+        throws IOException
+    {
+        /*
+         * An idle data connection at the wrong position is closed before
+         * taking a new agent, since it holds an agent of its own
+         */
+        final IdleStream candidate = idle.getAndSet(null);
+        if (candidate != null) {
+            if (candidate.position == position)
+                return candidate.stream;
+            candidate.stream.close();
+        }
+
+        final FtpAgent agent = queue.getAgent();
+        try {
+            return agent.getInputStream(path, position);
+        } catch (IOException e) {
+            agent.close();
+            throw e;
+        }
+    }
+
+    private static void readFully(final FtpInputStream stream,
+        final byte[] buf, final int off, final int len)
+        throws IOException
+    {
+        int done = 0;
+        int n;
+        while (done < len) {
+            n = stream.read(buf, off + done, len - done);
+            if (n == -1)
+                throw new EOFException("unexpected end of data connection");
+            done += n;
+        }
+    }
+
+    private static final class IdleStream
+    {
+        private final FtpInputStream stream;
+        private final long position;
+
+        private IdleStream(final FtpInputStream stream, final long position)
+        {
+            this.stream = stream;
+            this.position = position;
+        }
+    }
+
+    private static final class DaemonThreadFactory
+        implements ThreadFactory
+    {
+        @Override
+        public Thread newThread(final Runnable r)
+        {
+            final Thread ret = new Thread(r, "ftp-async-channel");
+            ret.setDaemon(true);
+            return ret;
+        }
+    }
+}
@@ -19,22 +19,44 @@
 package com.github.fge.ftpfs.io;
 
 import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.Objects;
 
 /**
  * A wrapped FTP data connection
+ *
+ * <p>When created with a {@link RetryPolicy}, this stream keeps track of the
+ * number of bytes read so far. If the data connection fails (either with an
+ * I/O error, or because the transfer is not reported as complete by the server
+ * once the end of the stream is reached), a new agent is taken from the queue
+ * and the download is restarted at the current offset, using a {@code REST}
+ * command. The caller sees no gap in the data.</p>
  */
 public final class FtpInputStream
     extends InputStream
 {
-    private final FtpAgent agent;
-    private final InputStream stream;
+    private final FtpAgentQueue queue;
+    private final Path path;
+    private final RetryPolicy retryPolicy;
+
+    @GuardedBy("this")
+    private FtpAgent agent;
+    private InputStream stream;
+    private long offset;
+    @GuardedBy("this")
+    private boolean completed = false;
+    @GuardedBy("this")
+    private boolean closed = false;
 
     /**
      * Constructor
      *
+     * <p>A stream created using this constructor does not resume failed
+     * transfers.</p>
+     *
      * @param agent the agent to use
      * @param stream the FTP data connection as a stream
      */
@@ -43,34 +65,97 @@ public final class FtpInputStream
     {
         this.agent = Objects.requireNonNull(agent, "agent is null");
         this.stream = Objects.requireNonNull(stream, "input stream is null");
+        queue = null;
+        path = null;
+        retryPolicy = RetryPolicy.NONE;
+    }
+
+    /**
+     * Constructor for a resumable stream
+     *
+     * @param agent the agent to use
+     * @param stream the FTP data connection as a stream
+     * @param queue the queue to obtain new agents from when resuming
+     * @param path the path to the remote file
+     * @param offset the offset at which the data connection started
+     * @param retryPolicy the retry policy
+     */
+    public FtpInputStream(@Nonnull final FtpAgent agent,
+        @Nonnull final InputStream stream, @Nonnull final FtpAgentQueue queue,
+        @Nonnull final Path path, final long offset,
+        @Nonnull final RetryPolicy retryPolicy)
+    {
+        this.agent = Objects.requireNonNull(agent, "agent is null");
+        this.stream = Objects.requireNonNull(stream, "input stream is null");
+        this.queue = Objects.requireNonNull(queue, "queue is null");
+        this.path = Objects.requireNonNull(path, "path is null");
+        this.offset = offset;
+        this.retryPolicy = Objects.requireNonNull(retryPolicy,
+            "retry policy is null");
+    }
+
+    /**
+     * Get the offset in the remote file of the next byte to be read
+     *
+     * @return the offset
+     */
+    public long getOffset()
+    {
+        return offset;
     }
 
     @Override
     public int read()
         throws IOException
     {
-        return stream.read();
+        int attempt = 0;
+        int ret;
+        while (true)
+            try {
+                ret = stream.read();
+                if (ret == -1)
+                    checkCompleted();
+                else
+                    offset++;
+                return ret;
+            } catch (IOException e) {
+                attempt = resume(e, attempt);
+            }
     }
 
     @Override
     public int read(final byte[] b)
         throws IOException
     {
-        return stream.read(b);
+        return read(b, 0, b.length);
     }
 
     @Override
     public int read(final byte[] b, final int off, final int len)
         throws IOException
     {
-        return stream.read(b, off, len);
+        int attempt = 0;
+        int ret;
+        while (true)
+            try {
+                ret = stream.read(b, off, len);
+                if (ret == -1)
+                    checkCompleted();
+                else
+                    offset += ret;
+                return ret;
+            } catch (IOException e) {
+                attempt = resume(e, attempt);
+            }
     }
 
     @Override
     public long skip(final long n)
         throws IOException
     {
-        return stream.skip(n);
+        final long ret = stream.skip(n);
+        offset += ret;
+        return ret;
     }
 
     @Override
@@ -105,22 +190,97 @@ public final class FtpInputStream
      * <p>This first closes the underlying data stream, then checks the
      * FTP transfer status before finally closing the agent.</p>
      *
+     * <p>This method may be called from a thread other than the one reading
+     * from this stream; this unblocks the reading thread, and no attempt is
+     * made at resuming the transfer.</p>
+     *
      * @throws IOException failure to close the stream, or FTP command did not
      * complete properly
      * @see FtpAgent#completeTransfer()
      */
     @Override
-    public void close()
+    public synchronized void close()
         throws IOException
     {
+        closed = true;
+        release();
+    }
+
+    @GuardedBy("this")
+    private void release()
+        throws IOException
+    {
+        if (agent == null)
+            return;
+        final FtpAgent toClose = agent;
+        agent = null;
         try {
             stream.close();
         } catch (IOException ignored) {
         }
+        if (!completed)
+            try {
+                toClose.completeTransfer();
+            } catch (IOException ignored) {
+            }
+        toClose.close();
+    }
+
+    /*
+     * Only relevant for resumable streams: a connection may be cut without an
+     * I/O error being reported on the data connection; in this case, the
+     * server will report the transfer as failed.
+     */
+    private synchronized void checkCompleted()
+        throws IOException
+    {
+        if (queue == null || completed || agent == null)
+            return;
+        completed = true;
+        agent.completeTransfer();
+    }
+
+    private int resume(final IOException cause, final int attempt)
+        throws IOException
+    {
+        synchronized (this) {
+            if (queue == null || closed || !retryPolicy.canRetry(attempt))
+                throw cause;
+            release();
+        }
+
+        int retries = attempt;
+        while (retryPolicy.canRetry(retries)) {
+            retryPolicy.pause(retries++);
+            try {
+                reopen();
+                return retries;
+            } catch (IOException e) {
+                cause.addSuppressed(e);
+            }
+        }
+        throw cause;
+    }
+
+    private void reopen()
+        throws IOException
+    {
+        final FtpAgent newAgent = queue.getAgent();
+        final FtpInputStream newStream;
         try {
-            agent.completeTransfer();
-        } catch (IOException ignored) {
+            newStream = newAgent.getInputStream(path, offset);
+        } catch (IOException e) {
+            newAgent.close();
+            throw e;
+        }
+        synchronized (this) {
+            if (closed) {
+                newStream.close();
+                throw new IOException("stream closed");
+            }
+            agent = newAgent;
+            stream = newStream.stream;
+            completed = false;
         }
-        agent.close();
     }
 }
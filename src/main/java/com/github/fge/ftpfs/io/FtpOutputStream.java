@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package com.github.fge.ftpfs.io;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * A wrapped FTP data connection for uploads
+ *
+ * <p>Writes are accumulated into a buffer and only sent to the data
+ * connection when the buffer is full, so that the data connection always sees
+ * large writes.</p>
+ *
+ * <p>Closing this stream closes the data connection, then waits for the
+ * server to confirm that the transfer is complete (see {@link
+ * FtpAgent#completeTransfer()}); an incomplete transfer is reported as an
+ * {@link IOException}. The agent is then returned to its queue.</p>
+ *
+ * <p>When created with a {@link RetryPolicy}, this stream keeps the last
+ * bytes sent in a replay buffer. If the data connection fails (either with an
+ * I/O error, or because the transfer is not reported as complete by the server
+ * on close), a new agent is taken from the queue, the server is asked for the
+ * current size of the remote file, and the upload continues from there using
+ * an {@code APPE} command; the bytes the server did not receive are sent again
+ * from the replay buffer. If the server has lost more than the replay buffer
+ * can hold, the upload fails. A stream appending to a remote file needs the
+ * size the file had before the upload in order to resume.</p>
+ */
+public final class FtpOutputStream
+    extends OutputStream
+{
+    private final FtpAgentQueue queue;
+    private final Path path;
+    private final RetryPolicy retryPolicy;
+    private final byte[] replay;
+    private final long base;
+
+    private final byte[] buf;
+    private int count = 0;
+
+    @GuardedBy("this")
+    private FtpAgent agent;
+    private OutputStream stream;
+    private long written = 0L;
+
+    /**
+     * Constructor
+     *
+     * <p>A stream created using this constructor does not resume failed
+     * transfers.</p>
+     *
+     * @param agent the agent to use
+     * @param stream the FTP data connection as a stream
+     * @param bufferSize the size of the write buffer
+     */
+    public FtpOutputStream(@Nonnull final FtpAgent agent,
+        @Nonnull final OutputStream stream, final int bufferSize)
+    {
+        this.agent = Objects.requireNonNull(agent, "agent is null");
+        this.stream = Objects.requireNonNull(stream, "output stream is null");
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("illegal buffer size "
+                + bufferSize);
+        buf = new byte[bufferSize];
+        queue = null;
+        path = null;
+        retryPolicy = RetryPolicy.NONE;
+        replay = null;
+        base = 0L;
+    }
+
+    /**
+     * Constructor for a resumable stream
+     *
+     * @param agent the agent to use
+     * @param stream the FTP data connection as a stream
+     * @param bufferSize the size of the write buffer
+     * @param queue the queue to obtain new agents from when resuming
+     * @param path the path to the remote file
+     * @param retryPolicy the retry policy
+     * @param replaySize the size of the replay buffer
+     */
+    public FtpOutputStream(@Nonnull final FtpAgent agent,
+        @Nonnull final OutputStream stream, final int bufferSize,
+        @Nonnull final FtpAgentQueue queue, @Nonnull final Path path,
+        @Nonnull final RetryPolicy retryPolicy, final int replaySize)
+    {
+        this(agent, stream, bufferSize, queue, path, retryPolicy, replaySize,
+            0L);
+    }
+
+    /**
+     * Constructor for a resumable stream appending to a remote file
+     *
+     * @param agent the agent to use
+     * @param stream the FTP data connection as a stream
+     * @param bufferSize the size of the write buffer
+     * @param queue the queue to obtain new agents from when resuming
+     * @param path the path to the remote file
+     * @param retryPolicy the retry policy
+     * @param replaySize the size of the replay buffer
+     * @param base the size of the remote file before the upload
+     */
+    public FtpOutputStream(@Nonnull final FtpAgent agent,
+        @Nonnull final OutputStream stream, final int bufferSize,
+        @Nonnull final FtpAgentQueue queue, @Nonnull final Path path,
+        @Nonnull final RetryPolicy retryPolicy, final int replaySize,
+        final long base)
+    {
+        this.agent = Objects.requireNonNull(agent, "agent is null");
+        this.stream = Objects.requireNonNull(stream, "output stream is null");
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("illegal buffer size "
+                + bufferSize);
+        if (replaySize <= 0)
+            throw new IllegalArgumentException("illegal replay buffer size "
+                + replaySize);
+        if (base < 0L)
+            throw new IllegalArgumentException("illegal base offset " + base);
+        buf = new byte[bufferSize];
+        this.queue = Objects.requireNonNull(queue, "queue is null");
+        this.path = Objects.requireNonNull(path, "path is null");
+        this.retryPolicy = Objects.requireNonNull(retryPolicy,
+            "retry policy is null");
+        replay = new byte[replaySize];
+        this.base = base;
+    }
+
+    @Override
+    public synchronized void write(final int b)
+        throws IOException
+    {
+        ensureOpen();
+        if (count == buf.length)
+            flushBuffer();
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(final byte[] b, final int off,
+        final int len)
+        throws IOException
+    {
+        ensureOpen();
+        if (len >= buf.length) {
+            /*
+             * Large writes go directly to the data connection
+             */
+            flushBuffer();
+            send(b, off, len);
+            return;
+        }
+        if (len > buf.length - count)
+            flushBuffer();
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    @Override
+    public synchronized void flush()
+        throws IOException
+    {
+        ensureOpen();
+        flushBuffer();
+        int attempt = 0;
+        while (true)
+            try {
+                stream.flush();
+                return;
+            } catch (IOException e) {
+                attempt = resume(e, attempt);
+            }
+    }
+
+    @Override
+    public synchronized void close()
+        throws IOException
+    {
+        if (agent == null)
+            return;
+
+        IOException failure = null;
+        try {
+            flushBuffer();
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        int attempt = 0;
+        while (failure == null)
+            try {
+                finish();
+                return;
+            } catch (IOException e) {
+                try {
+                    attempt = resume(e, attempt);
+                } catch (IOException resumeFailure) {
+                    failure = resumeFailure;
+                }
+            }
+
+        if (agent != null)
+            release();
+        throw failure;
+    }
+
+    /*
+     * Close the data connection and check the transfer
+     */
+    @GuardedBy("this")
+    private void finish()
+        throws IOException
+    {
+        final FtpAgent toClose = agent;
+        IOException failure = null;
+
+        try {
+            stream.close();
+        } catch (IOException e) {
+            failure = e;
+        }
+        try {
+            toClose.completeTransfer();
+        } catch (IOException e) {
+            if (failure == null)
+                failure = e;
+            else
+                failure.addSuppressed(e);
+        }
+        agent = null;
+        toClose.close();
+        if (failure != null)
+            throw failure;
+    }
+
+    @GuardedBy("this")
+    private void ensureOpen()
+        throws IOException
+    {
+        if (agent == null)
+            throw new IOException("stream closed");
+    }
+
+    @GuardedBy("this")
+    private void flushBuffer()
+        throws IOException
+    {
+        if (count == 0)
+            return;
+        send(buf, 0, count);
+        count = 0;
+    }
+
+    /*
+     * Send data to the data connection; for a resumable stream, data is
+     * recorded into the replay buffer before being sent, by chunks no larger
+     * than the replay buffer.
+     */
+    @GuardedBy("this")
+    private void send(final byte[] b, final int off, final int len)
+        throws IOException
+    {
+        if (replay == null) {
+            stream.write(b, off, len);
+            written += len;
+            return;
+        }
+
+        final int chunkSize = Math.min(buf.length, replay.length);
+        int done = 0;
+        int n;
+
+        while (done < len) {
+            n = Math.min(chunkSize, len - done);
+            record(b, off + done, n);
+            try {
+                stream.write(b, off + done, n);
+            } catch (IOException e) {
+                // Resuming sends what is missing of this chunk
+                resume(e, 0);
+            }
+            done += n;
+        }
+    }
+
+    @GuardedBy("this")
+    private void record(final byte[] b, final int off, final int len)
+    {
+        final int start = (int) (written % replay.length);
+        final int first = Math.min(len, replay.length - start);
+        System.arraycopy(b, off, replay, start, first);
+        System.arraycopy(b, off + first, replay, 0, len - first);
+        written += len;
+    }
+
+    /*
+     * Resume the transfer: release the current agent, then try and resume on
+     * new agents until the retry policy gives up
+     */
+    @GuardedBy("this")
+    private int resume(final IOException cause, final int attempt)
+        throws IOException
+    {
+        if (replay == null || !retryPolicy.canRetry(attempt))
+            throw cause;
+        if (agent != null)
+            release();
+
+        int retries = attempt;
+        while (retryPolicy.canRetry(retries)) {
+            retryPolicy.pause(retries++);
+            try {
+                reopen();
+                return retries;
+            } catch (IOException e) {
+                cause.addSuppressed(e);
+            }
+        }
+        throw cause;
+    }
+
+    @GuardedBy("this")
+    private void release()
+    {
+        final FtpAgent toClose = agent;
+        agent = null;
+        try {
+            stream.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            toClose.completeTransfer();
+        } catch (IOException ignored) {
+        }
+        try {
+            toClose.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @GuardedBy("this")
+    private void reopen()
+        throws IOException
+    {
+        final FtpAgent newAgent = queue.getAgent();
+        FtpOutputStream newStream = null;
+
+        try {
+            final long remoteSize = newAgent.getSize(path.toString());
+            final long missing = base + written - remoteSize;
+            if (missing < 0L || missing > Math.min(written, replay.length))
+                throw new IOException("cannot resume upload of " + path
+                    + ": server has " + remoteSize + " bytes, " + written
+                    + " were sent after " + base);
+            newStream = newAgent.getOutputStream(path, true);
+            final int start
+                = (int) ((remoteSize - base) % replay.length);
+            final int first = (int) Math.min(missing, replay.length - start);
+            newStream.stream.write(replay, start, first);
+            newStream.stream.write(replay, 0, (int) missing - first);
+        } catch (IOException e) {
+            if (newStream != null)
+                try {
+                    newStream.stream.close();
+                    newAgent.completeTransfer();
+                } catch (IOException ignored) {
+                }
+            newAgent.close();
+            throw e;
+        }
+        agent = newAgent;
+        stream = newStream.stream;
+    }
+}
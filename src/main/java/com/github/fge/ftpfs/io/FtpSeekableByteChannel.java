@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import com.github.fge.ftpfs.cache.BlockCache;
+
+import javax.annotation.Nonnull;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Objects;
+
+/**
+ * A read only {@link SeekableByteChannel} over an FTP file
+ *
+ * <p>Sequential reads are all served from one single data connection. When
+ * the position is changed, the current data connection is kept as long as the
+ * new position lies a short distance ahead of it (the read ahead size);
+ * otherwise, it is closed and a new one is opened, using a {@code REST}
+ * command, at the new position.</p>
+ *
+ * <p>Data is read from the data connection by chunks of the read ahead size;
+ * small reads which are close to one another are therefore served from memory.
+ * The read ahead window is taken from the {@link ByteBufferPool} if it is not
+ * larger than the buffers of the pool, and given back when the channel is
+ * closed.</p>
+ *
+ * <p>If a {@link BlockCache} is used, its block size must be the read ahead
+ * size: the window is then always filled at a block boundary, from the cache
+ * if possible, and put into the cache otherwise.</p>
+ */
+public final class FtpSeekableByteChannel
+    implements SeekableByteChannel
+{
+    private final FtpAgentQueue queue;
+    private final Path path;
+    private final long size;
+    private final BlockCache blockCache;
+    private final String name;
+    private final FileTime lastModified;
+
+    private final ByteBufferPool bufferPool;
+    private final ByteBuffer windowBuffer;
+    private final byte[] window;
+    private final int windowOffset;
+    private final int windowSize;
+    private long windowStart = 0L;
+    private int windowLength = 0;
+
+    private FtpInputStream stream = null;
+    private long streamPosition = 0L;
+
+    private long position = 0L;
+    private boolean open = true;
+
+    /**
+     * Constructor
+     *
+     * @param queue the agent queue to use
+     * @param path the path to the remote file
+     * @param size the size of the remote file
+     * @param readAheadSize the read ahead size
+     * @param bufferPool the buffer pool
+     * @throws IOException interrupted while waiting for a buffer
+     */
+    public FtpSeekableByteChannel(@Nonnull final FtpAgentQueue queue,
+        @Nonnull final Path path, final long size, final int readAheadSize,
+        @Nonnull final ByteBufferPool bufferPool)
+        throws IOException
+    {
+        this(queue, path, size, readAheadSize, bufferPool, null, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param queue the agent queue to use
+     * @param path the path to the remote file
+     * @param size the size of the remote file
+     * @param readAheadSize the read ahead size
+     * @param bufferPool the buffer pool
+     * @param blockCache the block cache; null if none
+     * @param lastModified the modification time of the remote file; only
+     * used with a block cache
+     * @throws IOException interrupted while waiting for a buffer
+     */
+    public FtpSeekableByteChannel(@Nonnull final FtpAgentQueue queue,
+        @Nonnull final Path path, final long size, final int readAheadSize,
+        @Nonnull final ByteBufferPool bufferPool, final BlockCache blockCache,
+        final FileTime lastModified)
+        throws IOException
+    {
+        this.queue = Objects.requireNonNull(queue, "queue is null");
+        this.path = Objects.requireNonNull(path, "path is null");
+        if (size < 0L)
+            throw new IllegalArgumentException("illegal size " + size);
+        if (readAheadSize <= 0)
+            throw new IllegalArgumentException("illegal read ahead size "
+                + readAheadSize);
+        if (blockCache != null) {
+            if (blockCache.getBlockSize() != readAheadSize)
+                throw new IllegalArgumentException("block size differs from "
+                    + "read ahead size");
+            Objects.requireNonNull(lastModified, "modification time is null");
+        }
+        this.size = size;
+        this.blockCache = blockCache;
+        name = path.toString();
+        this.lastModified = lastModified;
+        this.bufferPool = Objects.requireNonNull(bufferPool,
+            "buffer pool is null");
+        if (readAheadSize <= bufferPool.getBufferSize()) {
+            windowBuffer = bufferPool.acquire();
+            window = windowBuffer.array();
+            windowOffset = windowBuffer.arrayOffset();
+        } else {
+            windowBuffer = null;
+            window = new byte[readAheadSize];
+            windowOffset = 0;
+        }
+        windowSize = readAheadSize;
+    }
+
+    @Override
+    public synchronized int read(final ByteBuffer dst)
+        throws IOException
+    {
+        ensureOpen();
+        if (position >= size)
+            return -1;
+        if (!dst.hasRemaining())
+            return 0;
+
+        if (!windowContains(position)) {
+            if (dst.remaining() >= windowSize && dst.hasArray())
+                return readDirect(dst);
+            fillWindow();
+        }
+
+        final int offset = (int) (position - windowStart);
+        final int len = Math.min(dst.remaining(), windowLength - offset);
+        dst.put(window, windowOffset + offset, len);
+        position += len;
+        return len;
+    }
+
+    @Override
+    public int write(final ByteBuffer src)
+        throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position()
+        throws IOException
+    {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(final long newPosition)
+        throws IOException
+    {
+        ensureOpen();
+        if (newPosition < 0L)
+            throw new IllegalArgumentException("illegal position "
+                + newPosition);
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size()
+        throws IOException
+    {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(final long size)
+        throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public synchronized void close()
+        throws IOException
+    {
+        if (!open)
+            return;
+        open = false;
+        try {
+            closeStream();
+        } finally {
+            if (windowBuffer != null)
+                bufferPool.release(windowBuffer);
+        }
+    }
+
+    private void ensureOpen()
+        throws ClosedChannelException
+    {
+        if (!open)
+            throw new ClosedChannelException();
+    }
+
+    private boolean windowContains(final long pos)
+    {
+        return pos >= windowStart && pos < windowStart + windowLength;
+    }
+
+    /*
+     * Position the data connection so that the window can be filled from it:
+     * we reuse the current connection if the requested position is at most one
+     * window ahead of it, we reopen it otherwise.
+     */
+    private void seekStream(final long target)
+        throws IOException
+    {
+        if (stream != null && target >= streamPosition
+            && target - streamPosition < windowSize)
+            return;
+        closeStream();
+        final FtpAgent agent = queue.getAgent();
+        try {
+            stream = agent.getInputStream(path, target);
+        } catch (IOException e) {
+            agent.close();
+            throw e;
+        }
+        streamPosition = target;
+    }
+
+    private void fillWindow()
+        throws IOException
+    {
+        if (blockCache == null) {
+            seekStream(position);
+            final int len = (int) Math.min(windowSize, size - streamPosition);
+            readFully(stream, window, windowOffset, len);
+            windowStart = streamPosition;
+            windowLength = len;
+            streamPosition += len;
+            return;
+        }
+
+        final long start = position - position % windowSize;
+        final int len = (int) Math.min(windowSize, size - start);
+        final ByteBuffer buf = ByteBuffer.wrap(window, windowOffset, len);
+        if (blockCache.read(name, lastModified, size, start, buf) != len) {
+            if (streamPosition != start)
+                closeStream();
+            seekStream(start);
+            readFully(stream, window, windowOffset, len);
+            streamPosition = start + len;
+            blockCache.put(name, lastModified, size, start / windowSize,
+                window, windowOffset, len);
+        }
+        windowStart = start;
+        windowLength = len;
+    }
+
+    private int readDirect(final ByteBuffer dst)
+        throws IOException
+    {
+        seekStream(position);
+        if (streamPosition < position) {
+            /*
+             * The gap is less than one window: read it into the window, and
+             * serve what remains of the window first
+             */
+            fillWindow();
+            return read(dst);
+        }
+        final int len = (int) Math.min(dst.remaining(), size - position);
+        readFully(stream, dst.array(), dst.arrayOffset() + dst.position(),
+            len);
+        dst.position(dst.position() + len);
+        streamPosition += len;
+        position += len;
+        return len;
+    }
+
+    private void closeStream()
+        throws IOException
+    {
+        if (stream == null)
+            return;
+        final FtpInputStream toClose = stream;
+        stream = null;
+        toClose.close();
+    }
+
+    private static void readFully(final InputStream in, final byte[] buf,
+        final int off, final int len)
+        throws IOException
+    {
+        int done = 0;
+        int n;
+        while (done < len) {
+            n = in.read(buf, off + done, len - done);
+            if (n == -1)
+                throw new EOFException("unexpected end of data connection");
+            done += n;
+        }
+    }
+}
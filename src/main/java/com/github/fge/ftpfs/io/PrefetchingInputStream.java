@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An input stream reading ahead of its consumer
+ *
+ * <p>A background thread reads from the wrapped stream into buffers taken
+ * from a {@link ByteBufferPool}, and queues them for the consumer. At most
+ * {@code depth} filled buffers are queued at any time; when this limit is
+ * reached, the background thread waits for the consumer to catch up.</p>
+ *
+ * <p>This means that network I/O and the processing of data by the consumer
+ * overlap. The time spent waiting by either side (the background thread
+ * because the queue is full, the consumer because it is empty) is recorded,
+ * and can be used to choose a suitable depth.</p>
+ */
+public final class PrefetchingInputStream
+    extends InputStream
+{
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final InputStream source;
+    private final ByteBufferPool bufferPool;
+    private final Semaphore slots;
+    private final BlockingQueue<ByteBuffer> filled
+        = new LinkedBlockingQueue<>();
+    private final Thread producer;
+
+    private final AtomicLong producerStall = new AtomicLong();
+    private final AtomicLong consumerStall = new AtomicLong();
+
+    private volatile boolean closed = false;
+    private volatile IOException error = null;
+
+    private ByteBuffer current = null;
+    private boolean eof = false;
+
+    /**
+     * Constructor
+     *
+     * <p>The background thread is started by this constructor.</p>
+     *
+     * @param source the stream to read from
+     * @param bufferPool the buffer pool
+     * @param depth the maximum number of buffers read ahead
+     */
+    public PrefetchingInputStream(@Nonnull final InputStream source,
+        @Nonnull final ByteBufferPool bufferPool, final int depth)
+    {
+        if (depth <= 0)
+            throw new IllegalArgumentException("illegal depth " + depth);
+        this.source = source;
+        this.bufferPool = bufferPool;
+        slots = new Semaphore(depth);
+        producer = new Thread(new Producer(), "ftp-prefetch");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * Get the time spent by the background thread waiting for room to read
+     * more data
+     *
+     * @param unit the time unit
+     * @return the stall time
+     */
+    public long getProducerStallTime(final TimeUnit unit)
+    {
+        return unit.convert(producerStall.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the time spent by the consumer waiting for data to be available
+     *
+     * @param unit the time unit
+     * @return the stall time
+     */
+    public long getConsumerStallTime(final TimeUnit unit)
+    {
+        return unit.convert(consumerStall.get(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int read()
+        throws IOException
+    {
+        if (!ensureData())
+            return -1;
+        return current.get() & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+        throws IOException
+    {
+        if (len == 0)
+            return 0;
+        if (!ensureData())
+            return -1;
+        final int ret = Math.min(len, current.remaining());
+        current.get(b, off, ret);
+        return ret;
+    }
+
+    @Override
+    public int available()
+        throws IOException
+    {
+        return current == null ? 0 : current.remaining();
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        producer.interrupt();
+        try {
+            source.close();
+        } finally {
+            try {
+                producer.join();
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+            recycle();
+            ByteBuffer buffer;
+            while ((buffer = filled.poll()) != null)
+                if (buffer != END)
+                    bufferPool.release(buffer);
+        }
+    }
+
+    private boolean ensureData()
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("stream closed");
+        if (current != null && current.hasRemaining())
+            return true;
+        if (eof)
+            return false;
+
+        recycle();
+        final long start = System.nanoTime();
+        final ByteBuffer buffer;
+        try {
+            buffer = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted!", e);
+        } finally {
+            consumerStall.addAndGet(System.nanoTime() - start);
+        }
+
+        if (buffer == END) {
+            eof = true;
+            if (error != null)
+                throw error;
+            return false;
+        }
+        current = buffer;
+        return true;
+    }
+
+    private void recycle()
+    {
+        if (current == null)
+            return;
+        bufferPool.release(current);
+        current = null;
+        slots.release();
+    }
+
+    private final class Producer
+        implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            ByteBuffer buffer = null;
+            long start;
+            try {
+                while (!closed) {
+                    start = System.nanoTime();
+                    slots.acquire();
+                    buffer = bufferPool.acquire();
+                    producerStall.addAndGet(System.nanoTime() - start);
+                    if (!fill(buffer))
+                        break;
+                    buffer.flip();
+                    filled.add(buffer);
+                    buffer = null;
+                }
+            } catch (IOException e) {
+                if (!closed)
+                    error = e;
+            } catch (InterruptedException ignored) {
+                // closed
+            } finally {
+                if (buffer != null) {
+                    bufferPool.release(buffer);
+                    slots.release();
+                }
+                filled.add(END);
+            }
+        }
+
+        /*
+         * Fill the buffer as long as data is immediately available; return
+         * false if the end of the stream has been reached and nothing was
+         * read.
+         */
+        private boolean fill(final ByteBuffer buffer)
+            throws IOException
+        {
+            final byte[] array = buffer.array();
+            final int offset = buffer.arrayOffset();
+            int n;
+
+            while (buffer.hasRemaining()) {
+                n = source.read(array, offset + buffer.position(),
+                    buffer.remaining());
+                if (n == -1)
+                    break;
+                buffer.position(buffer.position() + n);
+                if (source.available() == 0)
+                    break;
+            }
+            return buffer.position() > 0;
+        }
+    }
+}
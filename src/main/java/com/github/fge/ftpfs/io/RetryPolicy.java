@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import javax.annotation.concurrent.Immutable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A retry policy for interrupted transfers
+ *
+ * <p>A policy has a maximum number of retries and an initial delay; the delay
+ * doubles after each failed attempt.</p>
+ */
+@Immutable
+public final class RetryPolicy
+{
+    /**
+     * A policy which never retries
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(0, 0L,
+        TimeUnit.MILLISECONDS);
+
+    private final int maxRetries;
+    private final long delayMillis;
+
+    /**
+     * Constructor
+     *
+     * @param maxRetries the maximum number of retries
+     * @param delay the delay before the first retry
+     * @param unit the time unit of the delay
+     */
+    public RetryPolicy(final int maxRetries, final long delay,
+        final TimeUnit unit)
+    {
+        if (maxRetries < 0)
+            throw new IllegalArgumentException("illegal number of retries "
+                + maxRetries);
+        if (delay < 0L)
+            throw new IllegalArgumentException("illegal delay " + delay);
+        this.maxRetries = maxRetries;
+        delayMillis = unit.toMillis(delay);
+    }
+
+    public int getMaxRetries()
+    {
+        return maxRetries;
+    }
+
+    /**
+     * Tell whether a new attempt can be made
+     *
+     * @param attempt the number of retries already made
+     * @return true if another retry is allowed
+     */
+    public boolean canRetry(final int attempt)
+    {
+        return attempt < maxRetries;
+    }
+
+    /**
+     * Wait before a new attempt
+     *
+     * @param attempt the number of retries already made
+     * @throws IOException interrupted while waiting
+     */
+    public void pause(final int attempt)
+        throws IOException
+    {
+        final long delay = delayMillis << Math.min(attempt, 16);
+        if (delay == 0L)
+            return;
+        try {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted!", e);
+        }
+    }
+}
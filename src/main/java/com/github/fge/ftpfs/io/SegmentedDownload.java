@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import javax.annotation.Nonnull;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A download of one remote file, split into several segments fetched in
+ * parallel
+ *
+ * <p>The file is split into contiguous ranges; each range is fetched on its
+ * own agent, using a {@code REST} command to start at the beginning of the
+ * range; the data connection is closed as soon as the end of the range has
+ * been reached. Data is written directly at the matching offset of the target
+ * {@link FileChannel}.</p>
+ *
+ * <p>The number of segments depends on the size of the file (a segment is
+ * never smaller than the configured minimum size), on the configured maximum
+ * number of segments, and on the number of agents available in the queue at
+ * the time the download starts.</p>
+ */
+public final class SegmentedDownload
+{
+    private final FtpAgentQueue queue;
+    private final ByteBufferPool bufferPool;
+    private final long minSegmentSize;
+    private final int maxSegments;
+
+    /**
+     * Constructor
+     *
+     * @param queue the agent queue
+     * @param bufferPool the buffer pool
+     * @param minSegmentSize the minimum size of one segment
+     * @param maxSegments the maximum number of segments
+     */
+    public SegmentedDownload(@Nonnull final FtpAgentQueue queue,
+        @Nonnull final ByteBufferPool bufferPool, final long minSegmentSize,
+        final int maxSegments)
+    {
+        this.queue = Objects.requireNonNull(queue, "queue is null");
+        this.bufferPool = Objects.requireNonNull(bufferPool,
+            "buffer pool is null");
+        if (minSegmentSize <= 0L)
+            throw new IllegalArgumentException("illegal minimum segment size "
+                + minSegmentSize);
+        if (maxSegments <= 0)
+            throw new IllegalArgumentException("illegal maximum number of "
+                + "segments " + maxSegments);
+        this.minSegmentSize = minSegmentSize;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Compute the number of segments to use for a file of a given size
+     *
+     * @param size the size of the file
+     * @return the number of segments
+     */
+    public int getSegmentCount(final long size)
+    {
+        final long bySize = size / minSegmentSize;
+        final int available = queue.getAvailableAgents();
+        final long count = Math.min(bySize, Math.min(maxSegments, available));
+        return (int) Math.max(1L, count);
+    }
+
+    /**
+     * Download a file into a channel
+     *
+     * @param source the remote file
+     * @param size the size of the remote file
+     * @param target the channel to write into
+     * @throws IOException failed to download one segment, or failed to write
+     * to the target
+     */
+    public void download(final Path source, final long size,
+        final FileChannel target)
+        throws IOException
+    {
+        download(source, size, target,
+            Collections.<BandwidthLimiter>emptyList());
+    }
+
+    /**
+     * Download a file into a channel, subject to bandwidth limits
+     *
+     * <p>The limiters are shared by all segments: the download as a whole
+     * does not exceed their rate.</p>
+     *
+     * @param source the remote file
+     * @param size the size of the remote file
+     * @param target the channel to write into
+     * @param limiters the bandwidth limiters
+     * @throws IOException failed to download one segment, or failed to write
+     * to the target
+     */
+    public void download(final Path source, final long size,
+        final FileChannel target, final List<BandwidthLimiter> limiters)
+        throws IOException
+    {
+        download(source, size, target, limiters, null);
+    }
+
+    /**
+     * Download a file into a channel, subject to bandwidth limits, and
+     * reporting progress to a listener
+     *
+     * @param source the remote file
+     * @param size the size of the remote file
+     * @param target the channel to write into
+     * @param limiters the bandwidth limiters
+     * @param listener the listener (may be null)
+     * @throws IOException failed to download one segment, or failed to write
+     * to the target
+     */
+    public void download(final Path source, final long size,
+        final FileChannel target, final List<BandwidthLimiter> limiters,
+        final Listener listener)
+        throws IOException
+    {
+        final int count = getSegmentCount(size);
+
+        if (count == 1) {
+            new Segment(source, 0L, size, target, limiters, listener).call();
+            return;
+        }
+
+        final long segmentSize = size / count;
+        final List<Segment> segments = new ArrayList<>(count);
+        long start = 0L;
+
+        for (int i = 0; i < count - 1; i++) {
+            segments.add(new Segment(source, start, segmentSize, target,
+                limiters, listener));
+            start += segmentSize;
+        }
+        segments.add(new Segment(source, start, size - start, target,
+            limiters, listener));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(count);
+        try {
+            final List<Future<Void>> futures = executor.invokeAll(segments);
+            for (final Future<Void> future: futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted!", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException("segment download failed", cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A listener notified each time a range of the file has been written to
+     * the target
+     *
+     * <p>Segments are downloaded concurrently: implementations must be thread
+     * safe.</p>
+     */
+    public interface Listener
+    {
+        void rangeWritten(long position, long length);
+    }
+
+    private final class Segment
+        implements Callable<Void>
+    {
+        private final Path source;
+        private final long start;
+        private final long length;
+        private final FileChannel target;
+        private final List<BandwidthLimiter> limiters;
+        private final Listener listener;
+
+        private Segment(final Path source, final long start, final long length,
+            final FileChannel target, final List<BandwidthLimiter> limiters,
+            final Listener listener)
+        {
+            this.source = source;
+            this.start = start;
+            this.length = length;
+            this.target = target;
+            this.limiters = limiters;
+            this.listener = listener;
+        }
+
+        @Override
+        public Void call()
+            throws IOException
+        {
+            final ByteBuffer buffer = bufferPool.acquire();
+            try {
+                transfer(buffer);
+            } finally {
+                bufferPool.release(buffer);
+            }
+            return null;
+        }
+
+        private void transfer(final ByteBuffer buffer)
+            throws IOException
+        {
+            final byte[] buf = buffer.array();
+            final int offset = buffer.arrayOffset();
+            final int size = buffer.capacity();
+            long position = start;
+            long remaining = length;
+            int n;
+
+            final FtpAgent agent = queue.getAgent();
+            final FtpInputStream in;
+            try {
+                in = agent.getInputStream(source, start);
+            } catch (IOException e) {
+                agent.close();
+                throw e;
+            }
+
+            /*
+             * Closing the stream before the end of the file has been reached
+             * aborts the transfer; this is what we want.
+             */
+            try (
+                final InputStream stream = ThrottledInputStream.wrap(in,
+                    limiters);
+            ) {
+                while (remaining > 0L) {
+                    n = stream.read(buf, offset,
+                        (int) Math.min(size, remaining));
+                    if (n == -1)
+                        throw new EOFException("unexpected end of data "
+                            + "connection");
+                    buffer.clear().limit(n);
+                    while (buffer.hasRemaining())
+                        position += target.write(buffer, position);
+                    if (listener != null)
+                        listener.rangeWritten(position - n, n);
+                    remaining -= n;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Copy of a file from one FTP server to another
+ *
+ * <p>The copy is first attempted as a server to server transfer (also known
+ * as FXP): the target server is put in passive mode, and the source server is
+ * told to connect to it. The data then flows directly from one server to the
+ * other, and bandwidth limits do not apply.</p>
+ *
+ * <p>Many servers refuse to connect to, or accept connections from, another
+ * address than the one of the client. In this case, the file is relayed: it
+ * is downloaded from the source and uploaded to the target at the same time,
+ * a background thread reading ahead of the upload (see {@link
+ * PrefetchingInputStream}).</p>
+ */
+public final class ServerToServerCopy
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ByteBufferPool bufferPool;
+    private final int prefetchDepth;
+
+    /**
+     * Constructor
+     *
+     * @param bufferPool the buffer pool for relayed copies
+     * @param prefetchDepth the number of buffers read ahead in relayed copies
+     */
+    public ServerToServerCopy(@Nonnull final ByteBufferPool bufferPool,
+        final int prefetchDepth)
+    {
+        this.bufferPool = Objects.requireNonNull(bufferPool,
+            "buffer pool is null");
+        if (prefetchDepth <= 0)
+            throw new IllegalArgumentException("illegal depth "
+                + prefetchDepth);
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    /**
+     * Copy a file
+     *
+     * <p>This method takes ownership of both agents: they are released when
+     * it returns, whether the copy succeeds or not.</p>
+     *
+     * @param sourceAgent an agent of the source server
+     * @param source the path of the file on the source server
+     * @param targetAgent an agent of the target server
+     * @param target the path of the file on the target server
+     * @param limiters the bandwidth limiters for a relayed copy
+     * @return true if the file was transferred between the servers, false if
+     * it was relayed
+     * @throws IOException copy failed
+     */
+    public boolean copy(@Nonnull final FtpAgent sourceAgent,
+        @Nonnull final Path source, @Nonnull final FtpAgent targetAgent,
+        @Nonnull final Path target,
+        @Nonnull final List<BandwidthLimiter> limiters)
+        throws IOException
+    {
+        final boolean direct;
+        try {
+            direct = transfer(sourceAgent, source.toString(), targetAgent,
+                target.toString());
+        } catch (IOException e) {
+            sourceAgent.close();
+            targetAgent.close();
+            throw e;
+        }
+
+        if (direct) {
+            sourceAgent.close();
+            targetAgent.close();
+            return true;
+        }
+        /* An aborted transfer leaves the target agent disconnected */
+        if (targetAgent.isDead())
+            try {
+                targetAgent.connect();
+            } catch (IOException e) {
+                sourceAgent.close();
+                targetAgent.close();
+                throw e;
+            }
+        relay(sourceAgent, source, targetAgent, target, limiters);
+        return false;
+    }
+
+    /*
+     * Attempt a server to server transfer; return false if either server
+     * refuses it before any data was transferred
+     */
+    private static boolean transfer(final FtpAgent sourceAgent,
+        final String source, final FtpAgent targetAgent, final String target)
+        throws IOException
+    {
+        final String address = targetAgent.openPassivePort();
+        if (address == null || !sourceAgent.openActivePort(address))
+            return false;
+
+        targetAgent.beginReceive(target);
+        final boolean started;
+        try {
+            started = sourceAgent.beginSend(source);
+        } catch (IOException e) {
+            targetAgent.abortTransfer();
+            throw e;
+        }
+        if (!started) {
+            targetAgent.abortTransfer();
+            return false;
+        }
+
+        IOException failure = null;
+        try {
+            sourceAgent.completeTransfer();
+        } catch (IOException e) {
+            failure = e;
+        }
+        try {
+            targetAgent.completeTransfer();
+        } catch (IOException e) {
+            if (failure == null)
+                failure = e;
+            else
+                failure.addSuppressed(e);
+        }
+        if (failure != null)
+            throw failure;
+        return true;
+    }
+
+    private void relay(final FtpAgent sourceAgent, final Path source,
+        final FtpAgent targetAgent, final Path target,
+        final List<BandwidthLimiter> limiters)
+        throws IOException
+    {
+        final InputStream stream;
+        try {
+            stream = sourceAgent.getInputStream(source);
+        } catch (IOException e) {
+            sourceAgent.close();
+            targetAgent.close();
+            throw e;
+        }
+
+        final OutputStream out;
+        try {
+            out = targetAgent.getOutputStream(target, false);
+        } catch (IOException e) {
+            targetAgent.close();
+            stream.close();
+            throw e;
+        }
+
+        final byte[] buf = new byte[BUFFER_SIZE];
+        int n;
+
+        try (
+            final InputStream in = new PrefetchingInputStream(
+                ThrottledInputStream.wrap(stream, limiters), bufferPool,
+                prefetchDepth);
+            final OutputStream o = out;
+        ) {
+            while ((n = in.read(buf)) != -1)
+                o.write(buf, 0, n);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * An output stream writing to an {@link UploadSpool}
+ *
+ * <p>Data is kept in memory up to the memory threshold of the spool, and
+ * moved to a temporary file beyond that. Closing the stream hands it over to
+ * the spool for upload.</p>
+ */
+final class SpooledOutputStream
+    extends OutputStream
+{
+    private static final int INITIAL_SIZE = 8192;
+
+    private final UploadSpool spool;
+    private final Path path;
+    private final boolean append;
+    private final int memoryThreshold;
+
+    private byte[] memory = new byte[0];
+    private Path file = null;
+    private OutputStream fileStream = null;
+    private long size = 0L;
+    private boolean closed = false;
+    private boolean failed = false;
+
+    SpooledOutputStream(final UploadSpool spool, final Path path,
+        final boolean append, final int memoryThreshold)
+    {
+        this.spool = spool;
+        this.path = path;
+        this.append = append;
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    @Override
+    public void write(final int b)
+        throws IOException
+    {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("stream closed");
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return;
+
+        spool.reserve(len);
+        try {
+            if (fileStream == null && size + len <= memoryThreshold)
+                writeToMemory(b, off, len);
+            else
+                writeToFile(b, off, len);
+        } catch (IOException e) {
+            failed = true;
+            spool.release(len);
+            throw e;
+        }
+        size += len;
+    }
+
+    @Override
+    public void flush()
+        throws IOException
+    {
+        if (fileStream != null)
+            fileStream.flush();
+    }
+
+    /*
+     * Once closed, the stream belongs to the spool. If a write failed, what
+     * has been spooled so far is dropped instead: uploading it would replace
+     * the remote file with a truncated version.
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            if (fileStream != null)
+                fileStream.close();
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        } finally {
+            if (failed) {
+                spool.release(size);
+                discard();
+            } else
+                spool.submit(this);
+        }
+    }
+
+    Path getPath()
+    {
+        return path;
+    }
+
+    boolean isAppend()
+    {
+        return append;
+    }
+
+    long getSize()
+    {
+        return size;
+    }
+
+    InputStream openContents()
+        throws IOException
+    {
+        return file == null ? new ByteArrayInputStream(memory, 0, (int) size)
+            : Files.newInputStream(file);
+    }
+
+    void discard()
+    {
+        memory = null;
+        if (file != null)
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+                // Will be deleted along with the spool directory, if possible
+            }
+    }
+
+    private void writeToMemory(final byte[] b, final int off, final int len)
+    {
+        final int needed = (int) size + len;
+        if (needed > memory.length)
+            memory = Arrays.copyOf(memory, Math.min(memoryThreshold,
+                Math.max(needed, Math.max(INITIAL_SIZE, 2 * memory.length))));
+        System.arraycopy(b, off, memory, (int) size, len);
+    }
+
+    private void writeToFile(final byte[] b, final int off, final int len)
+        throws IOException
+    {
+        if (fileStream == null) {
+            file = spool.createSpoolFile();
+            fileStream = new BufferedOutputStream(Files.newOutputStream(file));
+            fileStream.write(memory, 0, (int) size);
+            memory = null;
+        }
+        fileStream.write(b, off, len);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package com.github.fge.ftpfs.io;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A local copy of a remote file, being downloaded or complete
+ *
+ * <p>The local file is created with its final size and mapped in memory
+ * right away. The ranges written so far by the download are recorded; a read
+ * waits until the range it needs has arrived.</p>
+ */
+@ThreadSafe
+final class StagedFile
+    implements SegmentedDownload.Listener
+{
+    /*
+     * A single mapping cannot exceed 2 GiB: map the file by regions of 1 GiB
+     */
+    private static final int REGION_SHIFT = 30;
+    private static final long REGION_SIZE = 1L << REGION_SHIFT;
+
+    private final Path remote;
+    private final long size;
+    private final FileTime lastModified;
+    private final Path local;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] regions;
+
+    /*
+     * Start offset to end offset of the ranges received so far
+     */
+    @GuardedBy("this")
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+    @GuardedBy("this")
+    private IOException failure = null;
+    @GuardedBy("this")
+    private boolean done = false;
+
+    // Both guarded by the StagingArea
+    int refs = 0;
+    boolean orphan = false;
+
+    StagedFile(final Path remote, final long size, final FileTime lastModified,
+        final Path local)
+        throws IOException
+    {
+        this.remote = remote;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.local = local;
+        channel = FileChannel.open(local, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        try {
+            if (size > 0L)
+                channel.write(ByteBuffer.allocate(1), size - 1L);
+            final int nrRegions = (int) ((size + REGION_SIZE - 1L)
+                >>> REGION_SHIFT);
+            regions = new MappedByteBuffer[nrRegions];
+            long start;
+            for (int i = 0; i < nrRegions; i++) {
+                start = (long) i << REGION_SHIFT;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                    Math.min(REGION_SIZE, size - start));
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    Path getRemote()
+    {
+        return remote;
+    }
+
+    FileChannel getChannel()
+    {
+        return channel;
+    }
+
+    long getSize()
+    {
+        return size;
+    }
+
+    boolean matches(final long size, final FileTime lastModified)
+    {
+        return this.size == size && this.lastModified.equals(lastModified);
+    }
+
+    @Override
+    public synchronized void rangeWritten(final long position,
+        final long length)
+    {
+        long start = position;
+        long end = position + length;
+
+        final Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> after;
+        while ((after = ranges.ceilingEntry(start)) != null
+            && after.getKey() <= end) {
+            end = Math.max(end, after.getValue());
+            ranges.remove(after.getKey());
+        }
+        ranges.put(start, end);
+        notifyAll();
+    }
+
+    synchronized void completed()
+    {
+        done = true;
+        notifyAll();
+    }
+
+    synchronized void failed(final IOException e)
+    {
+        failure = e;
+        done = true;
+        notifyAll();
+    }
+
+    synchronized boolean isDone()
+    {
+        return done;
+    }
+
+    synchronized boolean hasFailed()
+    {
+        return failure != null;
+    }
+
+    /**
+     * Read from the local copy, waiting for the data to arrive if necessary
+     *
+     * @param position the position in the file
+     * @param dst the buffer to read into
+     * @return the number of bytes read, or -1 if past the end of the file
+     * @throws IOException the download failed, or interrupted while waiting
+     */
+    int read(final long position, final ByteBuffer dst)
+        throws IOException
+    {
+        if (position >= size)
+            return -1;
+        final int index = (int) (position >>> REGION_SHIFT);
+        final int offset = (int) (position & (REGION_SIZE - 1L));
+        final ByteBuffer region = regions[index].duplicate();
+        final int len = Math.min(dst.remaining(),
+            region.capacity() - offset);
+
+        awaitRange(position, position + len);
+        region.position(offset).limit(offset + len);
+        dst.put(region);
+        return len;
+    }
+
+    void delete()
+    {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            Files.deleteIfExists(local);
+        } catch (IOException ignored) {
+            // Some platforms refuse to delete a file which is still mapped
+        }
+    }
+
+    private synchronized void awaitRange(final long start, final long end)
+        throws IOException
+    {
+        Map.Entry<Long, Long> entry;
+        while (true) {
+            entry = ranges.floorEntry(start);
+            if (entry != null && entry.getValue() >= end)
+                return;
+            if (failure != null)
+                throw new IOException("download of " + remote + " failed",
+                    failure);
+            if (done)
+                throw new IOException("download of " + remote + " is "
+                    + "incomplete");
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted!", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package com.github.fge.ftpfs.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A read only {@link SeekableByteChannel} over the local copy of a remote file
+ *
+ * @see StagingArea
+ */
+final class StagedSeekableByteChannel
+    implements SeekableByteChannel
+{
+    private final StagingArea area;
+    private final StagedFile file;
+
+    private long position = 0L;
+    private boolean open = true;
+
+    StagedSeekableByteChannel(final StagingArea area, final StagedFile file)
+    {
+        this.area = area;
+        this.file = file;
+    }
+
+    @Override
+    public synchronized int read(final ByteBuffer dst)
+        throws IOException
+    {
+        ensureOpen();
+        if (!dst.hasRemaining())
+            return position >= file.getSize() ? -1 : 0;
+        final int ret = file.read(position, dst);
+        if (ret > 0)
+            position += ret;
+        return ret;
+    }
+
+    @Override
+    public int write(final ByteBuffer src)
+        throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position()
+        throws IOException
+    {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(final long newPosition)
+        throws IOException
+    {
+        ensureOpen();
+        if (newPosition < 0L)
+            throw new IllegalArgumentException("illegal position "
+                + newPosition);
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size()
+        throws IOException
+    {
+        ensureOpen();
+        return file.getSize();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(final long size)
+        throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public synchronized void close()
+        throws IOException
+    {
+        if (!open)
+            return;
+        open = false;
+        area.release(file);
+    }
+
+    private void ensureOpen()
+        throws ClosedChannelException
+    {
+        if (!open)
+            throw new ClosedChannelException();
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package com.github.fge.ftpfs.io;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local copies of remote files, for random access
+ *
+ * <p>The first time a remote file is opened through this class, it is
+ * downloaded in the background into a local temporary file, using a {@link
+ * SegmentedDownload}; the returned channel reads from a memory mapping of the
+ * local file, and only waits for the ranges which have not arrived yet.
+ * Opening the same file again, as long as its size and modification time have
+ * not changed, reuses the local copy.</p>
+ *
+ * <p>The total size of local copies is bounded: when a channel is closed,
+ * copies which are not in use are deleted, least recently used first, until
+ * the total size is below the capacity again. Copies in use or still being
+ * downloaded are never deleted.</p>
+ *
+ * <p>The number of opens served by an existing copy (hits) and of opens
+ * which required a download (misses) are counted.</p>
+ */
+@ThreadSafe
+public final class StagingArea
+    implements Closeable
+{
+    private final FtpAgentQueue queue;
+    private final ByteBufferPool bufferPool;
+    private final long minSegmentSize;
+    private final int maxSegments;
+    private final long capacity;
+
+    private final ExecutorService executor
+        = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(final Runnable r)
+            {
+                final Thread ret = new Thread(r, "ftp-staging");
+                ret.setDaemon(true);
+                return ret;
+            }
+        });
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @GuardedBy("this")
+    private final Map<Path, StagedFile> files
+        = new LinkedHashMap<>(16, 0.75f, true);
+    @GuardedBy("this")
+    private long totalSize = 0L;
+    @GuardedBy("this")
+    private Path directory = null;
+    @GuardedBy("this")
+    private boolean closed = false;
+
+    /**
+     * Constructor
+     *
+     * @param queue the agent queue
+     * @param bufferPool the buffer pool
+     * @param minSegmentSize the minimum segment size for downloads
+     * @param maxSegments the maximum number of segments for downloads
+     * @param capacity the maximum total size of local copies not in use
+     */
+    public StagingArea(@Nonnull final FtpAgentQueue queue,
+        @Nonnull final ByteBufferPool bufferPool, final long minSegmentSize,
+        final int maxSegments, final long capacity)
+    {
+        this.queue = Objects.requireNonNull(queue, "queue is null");
+        this.bufferPool = Objects.requireNonNull(bufferPool,
+            "buffer pool is null");
+        if (capacity < 0L)
+            throw new IllegalArgumentException("illegal capacity " + capacity);
+        this.minSegmentSize = minSegmentSize;
+        this.maxSegments = maxSegments;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Open a channel over the local copy of a remote file
+     *
+     * @param path the (real) path of the remote file
+     * @param attributes the attributes of the remote file
+     * @param limiters the bandwidth limiters to use if the file has to be
+     * downloaded
+     * @return a read only channel
+     * @throws IOException failed to create the local copy
+     */
+    public SeekableByteChannel open(@Nonnull final Path path,
+        @Nonnull final BasicFileAttributes attributes,
+        @Nonnull final List<BandwidthLimiter> limiters)
+        throws IOException
+    {
+        final StagedFile file;
+        boolean created = false;
+
+        synchronized (this) {
+            if (closed)
+                throw new IOException("staging area is closed");
+            StagedFile staged = files.get(path);
+            if (staged != null && (staged.hasFailed()
+                || !staged.matches(attributes.size(),
+                attributes.lastModifiedTime()))) {
+                remove(staged);
+                staged = null;
+            }
+            if (staged == null) {
+                staged = new StagedFile(path, attributes.size(),
+                    attributes.lastModifiedTime(),
+                    Files.createTempFile(getDirectory(), "staged", ".bin"));
+                files.put(path, staged);
+                totalSize += staged.getSize();
+                created = true;
+            }
+            staged.refs++;
+            file = staged;
+        }
+
+        (created ? misses : hits).incrementAndGet();
+        if (created)
+            executor.execute(new Download(file, limiters));
+        return new StagedSeekableByteChannel(this, file);
+    }
+
+    /**
+     * Get the total size of the local copies
+     *
+     * @return the size, in bytes
+     */
+    public synchronized long getTotalSize()
+    {
+        return totalSize;
+    }
+
+    /**
+     * Get the number of opens served by an existing local copy
+     *
+     * @return the number of hits
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of opens which required a download
+     *
+     * @return the number of misses
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        final Path dir;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            for (final StagedFile file: files.values())
+                file.delete();
+            files.clear();
+            totalSize = 0L;
+            dir = directory;
+        }
+        executor.shutdownNow();
+        if (dir != null)
+            try {
+                Files.deleteIfExists(dir);
+            } catch (IOException ignored) {
+                // Copies still open on some platforms
+            }
+    }
+
+    synchronized void release(final StagedFile file)
+    {
+        file.refs--;
+        if (file.orphan && file.refs == 0)
+            file.delete();
+        evict();
+    }
+
+    @GuardedBy("this")
+    private Path getDirectory()
+        throws IOException
+    {
+        if (directory == null)
+            directory = Files.createTempDirectory("ftpfs-staging");
+        return directory;
+    }
+
+    /*
+     * Remove a copy from the map; it is deleted immediately if not in use,
+     * or when the last channel using it is closed
+     */
+    @GuardedBy("this")
+    private void remove(final StagedFile file)
+    {
+        files.remove(file.getRemote());
+        totalSize -= file.getSize();
+        if (file.refs == 0)
+            file.delete();
+        else
+            file.orphan = true;
+    }
+
+    @GuardedBy("this")
+    private void evict()
+    {
+        final Iterator<StagedFile> iterator = files.values().iterator();
+        StagedFile file;
+
+        while (totalSize > capacity && iterator.hasNext()) {
+            file = iterator.next();
+            if (file.refs > 0 || !file.isDone())
+                continue;
+            iterator.remove();
+            totalSize -= file.getSize();
+            file.delete();
+        }
+    }
+
+    private final class Download
+        implements Runnable
+    {
+        private final StagedFile file;
+        private final List<BandwidthLimiter> limiters;
+
+        private Download(final StagedFile file,
+            final List<BandwidthLimiter> limiters)
+        {
+            this.file = file;
+            this.limiters = limiters;
+        }
+
+        @Override
+        public void run()
+        {
+            final SegmentedDownload download = new SegmentedDownload(queue,
+                bufferPool, minSegmentSize, maxSegments);
+            try {
+                download.download(file.getRemote(), file.getSize(),
+                    file.getChannel(), limiters, file);
+                file.completed();
+            } catch (IOException e) {
+                file.failed(e);
+            } catch (RuntimeException e) {
+                // Readers must not wait forever
+                file.failed(new IOException("download failed", e));
+            } finally {
+                try {
+                    file.getChannel().close();
+                } catch (IOException ignored) {
+                }
+            }
+            synchronized (StagingArea.this) {
+                evict();
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package com.github.fge.ftpfs.io;
+
+import javax.annotation.Nonnull;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * An input stream whose reads are subject to one or more {@link
+ * BandwidthLimiter}s
+ *
+ * <p>Reads are split into chunks of at most {@link #CHUNK_SIZE} bytes, and
+ * each chunk is accounted for in all limiters once it has been read. This
+ * way, a transfer using large buffers cannot reserve a large share of a
+ * limiter shared with other transfers.</p>
+ */
+public final class ThrottledInputStream
+    extends FilterInputStream
+{
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    private final List<BandwidthLimiter> limiters;
+
+    /**
+     * Constructor
+     *
+     * @param in the stream to read from
+     * @param limiters the limiters
+     */
+    public ThrottledInputStream(@Nonnull final InputStream in,
+        @Nonnull final List<BandwidthLimiter> limiters)
+    {
+        super(Objects.requireNonNull(in, "stream is null"));
+        this.limiters = new ArrayList<>(Objects.requireNonNull(limiters,
+            "limiters are null"));
+    }
+
+    /**
+     * Wrap a stream, unless there are no limiters
+     *
+     * @param in the stream
+     * @param limiters the limiters
+     * @return the stream itself if there are no limiters, a throttled stream
+     * otherwise
+     */
+    public static InputStream wrap(@Nonnull final InputStream in,
+        @Nonnull final List<BandwidthLimiter> limiters)
+    {
+        return limiters.isEmpty() ? in : new ThrottledInputStream(in, limiters);
+    }
+
+    @Override
+    public int read()
+        throws IOException
+    {
+        final int ret = in.read();
+        if (ret != -1)
+            throttle(1);
+        return ret;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+        throws IOException
+    {
+        final int ret = in.read(b, off, Math.min(len, CHUNK_SIZE));
+        if (ret > 0)
+            throttle(ret);
+        return ret;
+    }
+
+    @Override
+    public long skip(final long n)
+        throws IOException
+    {
+        final long ret = in.skip(Math.min(n, CHUNK_SIZE));
+        if (ret > 0L)
+            throttle((int) ret);
+        return ret;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    private void throttle(final int bytes)
+        throws IOException
+    {
+        for (final BandwidthLimiter limiter: limiters)
+            limiter.acquire(bytes);
+    }
+}
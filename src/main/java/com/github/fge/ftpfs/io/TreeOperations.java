@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Recursive operations over remote directory trees
+ *
+ * <p>A tree is walked once, level by level, all directories of one level
+ * being listed in parallel. Entries are then processed in dependency order:
+ * for a deletion, all files first, then directories from the deepest level
+ * up; for a creation, directories from the top level down. At each step, the
+ * paths are split across agents, and each agent pipelines its commands (see
+ * {@link FtpAgent#executeBatch(BatchCommand, List)}).</p>
+ *
+ * <p>Failures do not abort the operation; they are collected by path. An
+ * entry which depends on a failed one (a directory not all the contents of
+ * which could be deleted, or the parent of which could not be created) is not
+ * attempted, and is reported as failed as well.</p>
+ */
+public final class TreeOperations
+{
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    private final FtpAgentQueue queue;
+    private final int concurrency;
+
+    /**
+     * Constructor
+     *
+     * @param queue the agent queue
+     * @param concurrency the number of agents to use in parallel
+     */
+    public TreeOperations(@Nonnull final FtpAgentQueue queue,
+        final int concurrency)
+    {
+        this.queue = Objects.requireNonNull(queue, "queue is null");
+        if (concurrency <= 0)
+            throw new IllegalArgumentException("illegal concurrency "
+                + concurrency);
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Delete a directory and all its contents
+     *
+     * @param dir the absolute path of the directory
+     * @return the failures, by path; empty if the whole tree was deleted
+     * @throws IOException interrupted
+     */
+    public Map<String, IOException> deleteRecursive(@Nonnull final String dir)
+        throws IOException
+    {
+        Objects.requireNonNull(dir, "dir is null");
+        final Map<String, IOException> failures = new TreeMap<>();
+        final List<List<String>> levels = new ArrayList<>();
+        final List<String> files = new ArrayList<>();
+        final Set<String> blocked = new HashSet<>();
+        final ExecutorService executor
+            = Executors.newFixedThreadPool(concurrency);
+
+        try {
+            List<String> level = new ArrayList<>();
+            level.add(dir);
+            while (!level.isEmpty()) {
+                levels.add(level);
+                level = listLevel(executor, level, files, failures);
+            }
+            for (final String failed: failures.keySet())
+                blocked.add(failed);
+
+            for (final String failed: runBatches(executor, BatchCommand.DELE,
+                files, failures))
+                blocked.add(getParent(failed));
+
+            List<String> toDelete;
+            for (int i = levels.size() - 1; i >= 0; i--) {
+                toDelete = new ArrayList<>();
+                for (final String path: levels.get(i))
+                    if (!blocked.contains(path))
+                        toDelete.add(path);
+                    else {
+                        if (!failures.containsKey(path))
+                            failures.put(path,
+                                new DirectoryNotEmptyException(path));
+                        blocked.add(getParent(path));
+                    }
+                for (final String failed: runBatches(executor,
+                    BatchCommand.RMD, toDelete, failures))
+                    blocked.add(getParent(failed));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return failures;
+    }
+
+    /**
+     * Create directories, along with all their missing parents
+     *
+     * <p>Directories which already exist are not considered failures.</p>
+     *
+     * @param dirs the absolute paths of the directories
+     * @return the failures, by path; empty if all directories exist
+     * @throws IOException interrupted
+     */
+    public Map<String, IOException> createDirectories(
+        @Nonnull final Collection<String> dirs)
+        throws IOException
+    {
+        Objects.requireNonNull(dirs, "dirs is null");
+        final Map<String, IOException> failures = new TreeMap<>();
+        final TreeMap<Integer, Set<String>> levels = new TreeMap<>();
+        final Set<String> blocked = new HashSet<>();
+        final ExecutorService executor
+            = Executors.newFixedThreadPool(concurrency);
+
+        Set<String> level;
+        int depth;
+        for (String dir: dirs)
+            for (; !"/".equals(dir); dir = getParent(dir)) {
+                depth = getDepth(dir);
+                level = levels.get(depth);
+                if (level == null) {
+                    level = new LinkedHashSet<>();
+                    levels.put(depth, level);
+                }
+                level.add(dir);
+            }
+
+        try {
+            List<String> toCreate;
+            Map<String, IOException> levelFailures;
+            for (final Set<String> paths: levels.values()) {
+                toCreate = new ArrayList<>();
+                for (final String path: paths)
+                    if (blocked.contains(getParent(path))) {
+                        failures.put(path, new FileSystemException(path, null,
+                            "parent directory could not be created"));
+                        blocked.add(path);
+                    } else
+                        toCreate.add(path);
+                levelFailures = new HashMap<>();
+                runBatches(executor, BatchCommand.MKD, toCreate,
+                    levelFailures);
+                checkExisting(executor, levelFailures);
+                failures.putAll(levelFailures);
+                blocked.addAll(levelFailures.keySet());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return failures;
+    }
+
+    /*
+     * List all directories of one level; return the directories of the next
+     * level, and add files to the list of files
+     */
+    private List<String> listLevel(final ExecutorService executor,
+        final List<String> dirs, final List<String> files,
+        final Map<String, IOException> failures)
+        throws IOException
+    {
+        final List<Callable<Map<String, BasicFileAttributes>>> tasks
+            = new ArrayList<>(dirs.size());
+        for (final String dir: dirs)
+            tasks.add(new Callable<Map<String, BasicFileAttributes>>()
+            {
+                @Override
+                public Map<String, BasicFileAttributes> call()
+                    throws IOException
+                {
+                    try (
+                        final FtpAgent agent = queue.getAgent();
+                    ) {
+                        return agent.getDirectoryEntries(dir);
+                    }
+                }
+            });
+
+        final List<IOException> errors = new ArrayList<>();
+        final List<Map<String, BasicFileAttributes>> listings
+            = invokeAll(executor, tasks, errors);
+        final List<String> ret = new ArrayList<>();
+        Map<String, BasicFileAttributes> listing;
+        String child;
+
+        for (int i = 0; i < listings.size(); i++) {
+            listing = listings.get(i);
+            if (listing == null) {
+                failures.put(dirs.get(i), errors.get(i));
+                continue;
+            }
+            for (final Map.Entry<String, BasicFileAttributes> entry:
+                listing.entrySet()) {
+                child = resolve(dirs.get(i), entry.getKey());
+                if (entry.getValue().isDirectory())
+                    ret.add(child);
+                else
+                    files.add(child);
+            }
+        }
+        return ret;
+    }
+
+    /*
+     * Run one command over a list of paths, split in batches across agents;
+     * failures are added to the map, and the failed paths are returned
+     */
+    private List<String> runBatches(final ExecutorService executor,
+        final BatchCommand command, final List<String> paths,
+        final Map<String, IOException> failures)
+        throws IOException
+    {
+        final int size = paths.size();
+        if (size == 0)
+            return new ArrayList<>();
+        final int batchSize = Math.min(MAX_BATCH_SIZE,
+            (size + concurrency - 1) / concurrency);
+        final List<Callable<Map<String, IOException>>> tasks
+            = new ArrayList<>();
+        final List<List<String>> batches = new ArrayList<>();
+        List<String> batch;
+
+        for (int start = 0; start < size; start += batchSize) {
+            batch = new ArrayList<>(paths.subList(start,
+                Math.min(size, start + batchSize)));
+            batches.add(batch);
+            tasks.add(newBatch(command, batch));
+        }
+
+        final List<IOException> errors = new ArrayList<>();
+        final List<Map<String, IOException>> results
+            = invokeAll(executor, tasks, errors);
+        final List<String> ret = new ArrayList<>();
+
+        /*
+         * A batch which failed as a whole (dead agent, for instance) counts as
+         * a failure for each of its paths
+         */
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i) != null) {
+                ret.addAll(results.get(i).keySet());
+                failures.putAll(results.get(i));
+                continue;
+            }
+            for (final String path: batches.get(i)) {
+                ret.add(path);
+                failures.put(path, errors.get(i));
+            }
+        }
+        return ret;
+    }
+
+    private Callable<Map<String, IOException>> newBatch(
+        final BatchCommand command, final List<String> batch)
+    {
+        return new Callable<Map<String, IOException>>()
+        {
+            @Override
+            public Map<String, IOException> call()
+                throws IOException
+            {
+                try (
+                    final FtpAgent agent = queue.getAgent();
+                ) {
+                    return agent.executeBatch(command, batch);
+                }
+            }
+        };
+    }
+
+    /*
+     * MKD also fails if the directory already exists: such failures are
+     * removed from the map. One listing of the parent directory is used for
+     * all failures with the same parent.
+     */
+    private void checkExisting(final ExecutorService executor,
+        final Map<String, IOException> failures)
+        throws IOException
+    {
+        final Set<String> parentSet = new LinkedHashSet<>();
+        for (final String path: failures.keySet())
+            parentSet.add(getParent(path));
+        if (parentSet.isEmpty())
+            return;
+        final List<String> parents = new ArrayList<>(parentSet);
+
+        final List<Callable<Map<String, BasicFileAttributes>>> tasks
+            = new ArrayList<>(parents.size());
+        for (final String parent: parents)
+            tasks.add(new Callable<Map<String, BasicFileAttributes>>()
+            {
+                @Override
+                public Map<String, BasicFileAttributes> call()
+                    throws IOException
+                {
+                    try (
+                        final FtpAgent agent = queue.getAgent();
+                    ) {
+                        return agent.getDirectoryEntries(parent);
+                    }
+                }
+            });
+
+        final List<Map<String, BasicFileAttributes>> results
+            = invokeAll(executor, tasks, new ArrayList<IOException>());
+        final Map<String, Map<String, BasicFileAttributes>> listings
+            = new HashMap<>();
+        for (int i = 0; i < parents.size(); i++)
+            listings.put(parents.get(i), results.get(i));
+
+        final List<String> existing = new ArrayList<>();
+        Map<String, BasicFileAttributes> listing;
+        BasicFileAttributes attributes;
+
+        for (final String path: failures.keySet()) {
+            listing = listings.get(getParent(path));
+            if (listing == null)
+                continue;
+            attributes = listing.get(getFileName(path));
+            if (attributes == null)
+                continue;
+            if (attributes.isDirectory())
+                existing.add(path);
+            else
+                failures.put(path, new FileAlreadyExistsException(path));
+        }
+        for (final String path: existing)
+            failures.remove(path);
+    }
+
+    /*
+     * Run all tasks; the result of a failed task is null. The list of errors
+     * is filled in the same order as the results (null for a success).
+     */
+    private static <T> List<T> invokeAll(final ExecutorService executor,
+        final List<Callable<T>> tasks, final List<IOException> errors)
+        throws IOException
+    {
+        final List<T> ret = new ArrayList<>(tasks.size());
+        final List<Future<T>> futures;
+
+        try {
+            futures = executor.invokeAll(tasks);
+            for (final Future<T> future: futures)
+                try {
+                    ret.add(future.get());
+                    errors.add(null);
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    ret.add(null);
+                    errors.add(cause instanceof IOException
+                        ? (IOException) cause : new IOException(cause));
+                }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted!", e);
+        }
+        return ret;
+    }
+
+    private static String resolve(final String dir, final String name)
+    {
+        return dir.endsWith("/") ? dir + name : dir + '/' + name;
+    }
+
+    private static String getParent(final String path)
+    {
+        final int index = path.lastIndexOf('/');
+        return index <= 0 ? "/" : path.substring(0, index);
+    }
+
+    private static String getFileName(final String path)
+    {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static int getDepth(final String path)
+    {
+        int ret = 0;
+        for (int i = 0; i < path.length(); i++)
+            if (path.charAt(i) == '/')
+                ret++;
+        return ret;
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Write behind uploads
+ *
+ * <p>Output streams opened by this class write to a local spool: in memory
+ * for small files, in a temporary file otherwise. Closing such a stream does
+ * not wait for the upload; the spooled data is uploaded in the background, by
+ * a fixed number of threads, each using its own agent. Uploads to the same
+ * path are done one after the other, in the order the streams were closed.
+ * </p>
+ *
+ * <p>The spool is bounded: when it is full, writers wait until pending uploads
+ * make room. Writers never wait for data which is still being written, so a
+ * single file larger than the spool does not block forever.</p>
+ *
+ * <p>{@link #awaitUploads()} is a barrier: it waits for all uploads of
+ * streams closed before it is called, and reports failed uploads.</p>
+ *
+ * <p>A {@link Listener} can be notified of each upload as it finishes.</p>
+ */
+@ThreadSafe
+public final class UploadSpool
+    implements Closeable
+{
+    private final FtpAgentQueue queue;
+    private final ByteBufferPool bufferPool;
+    private final long capacity;
+    private final int memoryThreshold;
+    private final ExecutorService executor;
+    private final Listener listener;
+
+    @GuardedBy("this")
+    private long spooledBytes = 0L;
+    @GuardedBy("this")
+    private long pendingBytes = 0L;
+    @GuardedBy("this")
+    private final Map<String, Deque<Upload>> uploads = new HashMap<>();
+    @GuardedBy("this")
+    private final SortedSet<Long> unfinished = new TreeSet<>();
+    @GuardedBy("this")
+    private long nextSequence = 0L;
+    @GuardedBy("this")
+    private final List<IOException> failures = new ArrayList<>();
+    @GuardedBy("this")
+    private Path directory = null;
+    @GuardedBy("this")
+    private boolean closed = false;
+
+    /**
+     * Constructor
+     *
+     * @param queue the agent queue
+     * @param bufferPool the buffer pool
+     * @param capacity the maximum amount of spooled data, in bytes
+     * @param memoryThreshold the size above which a file is spooled to disk
+     * @param concurrency the number of uploads to run in parallel
+     */
+    public UploadSpool(@Nonnull final FtpAgentQueue queue,
+        @Nonnull final ByteBufferPool bufferPool, final long capacity,
+        final int memoryThreshold, final int concurrency)
+    {
+        this(queue, bufferPool, capacity, memoryThreshold, concurrency, null);
+    }
+
+    /**
+     * Constructor with a listener
+     *
+     * @param queue the agent queue
+     * @param bufferPool the buffer pool
+     * @param capacity the maximum amount of spooled data, in bytes
+     * @param memoryThreshold the size above which a file is spooled to disk
+     * @param concurrency the number of uploads to run in parallel
+     * @param listener the listener (may be null)
+     */
+    public UploadSpool(@Nonnull final FtpAgentQueue queue,
+        @Nonnull final ByteBufferPool bufferPool, final long capacity,
+        final int memoryThreshold, final int concurrency,
+        final Listener listener)
+    {
+        this.queue = Objects.requireNonNull(queue, "queue is null");
+        this.bufferPool = Objects.requireNonNull(bufferPool,
+            "buffer pool is null");
+        if (capacity <= 0L)
+            throw new IllegalArgumentException("illegal capacity " + capacity);
+        if (memoryThreshold < 0)
+            throw new IllegalArgumentException("illegal memory threshold "
+                + memoryThreshold);
+        if (concurrency <= 0)
+            throw new IllegalArgumentException("illegal concurrency "
+                + concurrency);
+        this.capacity = capacity;
+        this.memoryThreshold = memoryThreshold;
+        this.listener = listener;
+        executor = Executors.newFixedThreadPool(concurrency,
+            new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(final Runnable r)
+                {
+                    final Thread ret = new Thread(r, "ftp-upload");
+                    ret.setDaemon(true);
+                    return ret;
+                }
+            });
+    }
+
+    /**
+     * Open a write behind output stream to a remote file
+     *
+     * @param path the (real) path of the remote file
+     * @param append whether to append to the remote file instead of replacing
+     * it
+     * @return an output stream
+     * @throws IOException the spool is closed
+     */
+    public OutputStream open(@Nonnull final Path path, final boolean append)
+        throws IOException
+    {
+        Objects.requireNonNull(path, "path is null");
+        synchronized (this) {
+            if (closed)
+                throw new IOException("upload spool is closed");
+        }
+        return new SpooledOutputStream(this, path, append, memoryThreshold);
+    }
+
+    /**
+     * Wait for the uploads of all streams closed so far
+     *
+     * <p>Uploads which failed since the last call are reported as suppressed
+     * exceptions of the thrown exception.</p>
+     *
+     * @throws IOException one or more uploads failed, or interrupted
+     */
+    public void awaitUploads()
+        throws IOException
+    {
+        final List<IOException> failed;
+        synchronized (this) {
+            waitFor(nextSequence - 1L);
+            failed = new ArrayList<>(failures);
+            failures.clear();
+        }
+        if (failed.isEmpty())
+            return;
+        final IOException e = new IOException(failed.size()
+            + " deferred uploads failed");
+        for (final IOException failure: failed)
+            e.addSuppressed(failure);
+        throw e;
+    }
+
+    /**
+     * Get the amount of spooled data, being written or waiting for upload
+     *
+     * @return the amount, in bytes
+     */
+    public synchronized long getSpooledBytes()
+    {
+        return spooledBytes;
+    }
+
+    /**
+     * Close this spool
+     *
+     * <p>Pending uploads are waited for first; failed uploads are reported as
+     * by {@link #awaitUploads()}.</p>
+     *
+     * @throws IOException one or more uploads failed, or interrupted
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        try {
+            awaitUploads();
+        } finally {
+            executor.shutdownNow();
+            final Path dir;
+            synchronized (this) {
+                dir = directory;
+            }
+            if (dir != null)
+                try {
+                    Files.deleteIfExists(dir);
+                } catch (IOException ignored) {
+                    // Streams still open
+                }
+        }
+    }
+
+    /*
+     * Reserve room for data about to be written. Only wait for closed
+     * streams to be uploaded: waiting for streams still open could
+     * deadlock.
+     */
+    synchronized void reserve(final long size)
+        throws IOException
+    {
+        try {
+            while (spooledBytes + size > capacity && pendingBytes > 0L)
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted!", e);
+        }
+        spooledBytes += size;
+    }
+
+    synchronized void release(final long size)
+    {
+        spooledBytes -= size;
+        notifyAll();
+    }
+
+    synchronized Path createSpoolFile()
+        throws IOException
+    {
+        if (directory == null)
+            directory = Files.createTempDirectory("ftpfs-spool");
+        return Files.createTempFile(directory, "spool", ".bin");
+    }
+
+    synchronized void submit(final SpooledOutputStream stream)
+    {
+        /*
+         * A stream opened before the spool was closed, and closed after
+         */
+        if (executor.isShutdown()) {
+            spooledBytes -= stream.getSize();
+            stream.discard();
+            failures.add(new IOException("deferred upload of "
+                + stream.getPath() + " failed: upload spool is closed"));
+            return;
+        }
+        final Upload upload = new Upload(stream, nextSequence++);
+        final String key = stream.getPath().toString();
+        unfinished.add(upload.sequence);
+        pendingBytes += stream.getSize();
+
+        Deque<Upload> deque = uploads.get(key);
+        if (deque != null) {
+            deque.add(upload);
+            return;
+        }
+        deque = new ArrayDeque<>();
+        deque.add(upload);
+        uploads.put(key, deque);
+        executor.execute(upload);
+    }
+
+    @GuardedBy("this")
+    private void waitFor(final long sequence)
+        throws IOException
+    {
+        try {
+            while (!unfinished.isEmpty() && unfinished.first() <= sequence)
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted!", e);
+        }
+    }
+
+    private synchronized void finished(final Upload upload,
+        final IOException failure)
+    {
+        final long size = upload.stream.getSize();
+        final String key = upload.stream.getPath().toString();
+        spooledBytes -= size;
+        pendingBytes -= size;
+        unfinished.remove(upload.sequence);
+        if (failure != null)
+            failures.add(failure);
+
+        final Deque<Upload> deque = uploads.get(key);
+        deque.remove();
+        if (deque.isEmpty())
+            uploads.remove(key);
+        else
+            executor.execute(deque.element());
+        notifyAll();
+    }
+
+    /**
+     * A listener notified each time an upload has finished, successfully or
+     * not
+     *
+     * <p>The listener is notified before the upload is reported as finished
+     * to {@link #awaitUploads()}. Uploads run concurrently: implementations
+     * must be thread safe.</p>
+     */
+    public interface Listener
+    {
+        void uploadFinished(Path path);
+    }
+
+    private final class Upload
+        implements Runnable
+    {
+        private final SpooledOutputStream stream;
+        private final long sequence;
+
+        private Upload(final SpooledOutputStream stream, final long sequence)
+        {
+            this.stream = stream;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run()
+        {
+            IOException failure = null;
+            try {
+                upload();
+            } catch (IOException e) {
+                failure = new IOException("deferred upload of "
+                    + stream.getPath() + " failed", e);
+            } catch (RuntimeException e) {
+                failure = new IOException("deferred upload of "
+                    + stream.getPath() + " failed", e);
+            } finally {
+                stream.discard();
+                notifyListener();
+                finished(this, failure);
+            }
+        }
+
+        private void notifyListener()
+        {
+            if (listener == null)
+                return;
+            try {
+                listener.uploadFinished(stream.getPath());
+            } catch (RuntimeException ignored) {
+                // the upload itself is over
+            }
+        }
+
+        private void upload()
+            throws IOException
+        {
+            final ByteBuffer buffer = bufferPool.acquire();
+            try {
+                upload(buffer);
+            } finally {
+                bufferPool.release(buffer);
+            }
+        }
+
+        private void upload(final ByteBuffer buffer)
+            throws IOException
+        {
+            final byte[] buf = buffer.array();
+            final int offset = buffer.arrayOffset();
+            final int size = buffer.capacity();
+            int n;
+
+            try (
+                final InputStream in = stream.openContents();
+            ) {
+                final FtpAgent agent = queue.getAgent();
+                final OutputStream out;
+                try {
+                    out = agent.getResumableOutputStream(stream.getPath(),
+                        stream.isAppend());
+                } catch (IOException e) {
+                    agent.close();
+                    throw e;
+                }
+                try (
+                    final OutputStream o = out;
+                ) {
+                    while ((n = in.read(buf, offset, size)) != -1)
+                        o.write(buf, offset, n);
+                }
+            }
+        }
+    }
+}
@@ -19,55 +19,101 @@
 package com.github.fge.ftpfs.io.commonsnetimpl;
 
 import com.github.fge.ftpfs.io.AbstractFtpAgent;
+import com.github.fge.ftpfs.io.BatchCommand;
 import com.github.fge.ftpfs.io.FtpAgentQueue;
 import com.github.fge.ftpfs.FtpConfiguration;
 import com.github.fge.ftpfs.io.FtpFileView;
 import org.apache.commons.net.ftp.FTP;
-import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPConnectionClosedException;
 import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
 
 import javax.annotation.concurrent.NotThreadSafe;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.AccessMode;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystemException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @NotThreadSafe
 public final class CommonsNetFtpAgent
     extends AbstractFtpAgent
 {
-    private final FTPClient ftpClient;
+    /*
+     * The address in a PASV reply, which is also the argument of PORT
+     */
+    private static final Pattern ADDRESS
+        = Pattern.compile("\\d{1,3}(?:,\\d{1,3}){5}");
+
+    private final PipeliningFtpClient ftpClient;
 
     public CommonsNetFtpAgent(final FtpAgentQueue queue,
         final FtpConfiguration cfg)
     {
         super(queue, cfg);
-        ftpClient = new FTPClient();
+        ftpClient = new PipeliningFtpClient();
         ftpClient.setAutodetectUTF8(true);
     }
 
     @Override
     public FtpFileView getFileView(final String name)
         throws IOException
+    {
+        return new CommonsNetFtpFileView(getEntry(name));
+    }
+
+    @Override
+    public EnumSet<AccessMode> getAccess(final String name)
+        throws IOException
+    {
+        return calculateAccess(getEntry(name));
+    }
+
+    @Override
+    public Map<String, FtpFileView> getDirectoryViews(final String dir)
+        throws IOException
+    {
+        final Map<String, FtpFileView> ret = new LinkedHashMap<>();
+        for (final FTPFile file: listDirectory(dir))
+            ret.put(file.getName(), new CommonsNetFtpFileView(file));
+        return ret;
+    }
+
+    @Override
+    protected InputStream openInputStream(final String file,
+        final long offset)
+        throws IOException
     {
         try {
             ftpClient.setFileType(FTP.ASCII_FILE_TYPE);
-            final FTPFile[] files = ftpClient.listFiles(name);
+            final FTPFile[] files = ftpClient.listFiles(file);
             if (files.length == 0)
-                throw new NoSuchFileException(name);
-            if (files.length == 1)
-                return new CommonsNetFtpFileView(files[0]);
-            for (final FTPFile file: files)
-                if (".".equals(file.getName()))
-                    return new CommonsNetFtpFileView(file);
-            throw new IllegalStateException();
+                throw new AccessDeniedException(file);
+            if (files.length > 1)
+                throw new IOException(file + " is a directory");
+            if (files[0].isDirectory())
+                throw new AccessDeniedException(file);
+            ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+            if (offset > 0L)
+                ftpClient.setRestartOffset(offset);
+            final InputStream ret = ftpClient.retrieveFileStream(file);
+            if (ret == null)
+                throw new IOException("cannot open stream to file (server " +
+                    "reply " + ftpClient.getReplyCode());
+            return ret;
         } catch (FTPConnectionClosedException e) {
             status = Status.DEAD;
             throw new IOException("service unavailable", e);
@@ -75,20 +121,112 @@ public final class CommonsNetFtpAgent
     }
 
     @Override
-    public EnumSet<AccessMode> getAccess(final String name)
+    protected OutputStream openOutputStream(final String file,
+        final boolean append)
         throws IOException
     {
         try {
+            ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+            ftpClient.setSendDataSocketBufferSize(cfg.getWriteBufferSize());
+            final OutputStream ret = append ? ftpClient.appendFileStream(file)
+                : ftpClient.storeFileStream(file);
+            if (ret == null)
+                throw new AccessDeniedException(file, null, "cannot open "
+                    + "stream to file (server reply " + ftpClient.getReplyCode()
+                    + ")");
+            return ret;
+        } catch (FTPConnectionClosedException e) {
+            status = Status.DEAD;
+            throw new IOException("service unavailable", e);
+        }
+    }
+
+    @Override
+    public long getSize(final String file)
+        throws IOException
+    {
+        try {
+            ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+            if (ftpClient.sendCommand("SIZE", file) == FTPReply.FILE_STATUS)
+                return Long.parseLong(ftpClient.getReplyString().substring(4)
+                    .trim());
+            final FTPFile entry = ftpClient.mlistFile(file);
+            if (entry == null)
+                throw new NoSuchFileException(file);
+            return entry.getSize();
+        } catch (NumberFormatException e) {
+            throw new IOException("malformed SIZE reply from server", e);
+        } catch (FTPConnectionClosedException e) {
+            status = Status.DEAD;
+            throw new IOException("service unavailable", e);
+        }
+    }
+
+    @Override
+    public void createDirectory(final String dir)
+        throws IOException
+    {
+        try {
+            if (ftpClient.makeDirectory(dir))
+                return;
+            final int reply = ftpClient.getReplyCode();
+            /*
+             * An empty directory may be listed as nothing at all: only a
+             * change of working directory tells it apart from no entry
+             */
+            if (ftpClient.changeWorkingDirectory(dir))
+                throw new FileAlreadyExistsException(dir);
+            ftpClient.setFileType(FTP.ASCII_FILE_TYPE);
+            if (ftpClient.listFiles(dir).length != 0)
+                throw new FileAlreadyExistsException(dir);
+            throw new AccessDeniedException(dir, null, "cannot create "
+                + "directory (server reply " + reply + ")");
+        } catch (FTPConnectionClosedException e) {
+            status = Status.DEAD;
+            throw new IOException("service unavailable", e);
+        }
+    }
+
+    @Override
+    public void rename(final String from, final String to)
+        throws IOException
+    {
+        try {
+            if (ftpClient.rename(from, to))
+                return;
+            final int reply = ftpClient.getReplyCode();
+            ftpClient.setFileType(FTP.ASCII_FILE_TYPE);
+            if (ftpClient.listFiles(from).length == 0)
+                throw new NoSuchFileException(from);
+            throw new AccessDeniedException(from, to, "cannot rename (server "
+                + "reply " + reply + ")");
+        } catch (FTPConnectionClosedException e) {
+            status = Status.DEAD;
+            throw new IOException("service unavailable", e);
+        }
+    }
+
+    @Override
+    public void delete(final String name, final boolean directory)
+        throws IOException
+    {
+        try {
+            if (directory ? ftpClient.removeDirectory(name)
+                : ftpClient.deleteFile(name))
+                return;
+            final int reply = ftpClient.getReplyCode();
             ftpClient.setFileType(FTP.ASCII_FILE_TYPE);
             final FTPFile[] files = ftpClient.listFiles(name);
-            if (files.length == 0)
+            /*
+             * Some servers list an empty directory as nothing at all: this
+             * only means that the entry does not exist for files
+             */
+            if (files.length == 0 && !directory)
                 throw new NoSuchFileException(name);
-            if (files.length == 1)
-                return calculateAccess(files[0]);
-            for (final FTPFile file: files)
-                if (".".equals(file.getName()))
-                    return calculateAccess(file);
-            throw new IllegalStateException();
+            if (directory && hasEntries(files))
+                throw new DirectoryNotEmptyException(name);
+            throw new AccessDeniedException(name, null, "cannot delete "
+                + "(server reply " + reply + ")");
         } catch (FTPConnectionClosedException e) {
             status = Status.DEAD;
             throw new IOException("service unavailable", e);
@@ -96,22 +234,20 @@ public final class CommonsNetFtpAgent
     }
 
     @Override
-    public List<String> getDirectoryNames(final String dir)
+    public Map<String, IOException> executeBatch(final BatchCommand command,
+        final List<String> paths)
         throws IOException
     {
         try {
-            ftpClient.setFileType(FTP.ASCII_FILE_TYPE);
-            final FTPFile[] files = ftpClient.listFiles(dir);
-            if (files.length == 0)
-                throw new NoSuchFileException(dir);
-            if (files.length == 1)
-                handleFailedDirectoryList(dir, files[0]);
-            final List<String> ret = new ArrayList<>(files.length);
-            String name;
-            for (final FTPFile file: files) {
-                name = file.getName();
-                if (!(".".equals(name) || "..".equals(name)))
-                    ret.add(name);
+            final int[] replies = ftpClient.pipeline(command.name(), paths);
+            final Map<String, IOException> ret = new LinkedHashMap<>();
+            String path;
+            for (int i = 0; i < replies.length; i++) {
+                if (FTPReply.isPositiveCompletion(replies[i]))
+                    continue;
+                path = paths.get(i);
+                ret.put(path, new FileSystemException(path, null, command
+                    + " failed (server reply " + replies[i] + ")"));
             }
             return ret;
         } catch (FTPConnectionClosedException e) {
@@ -121,30 +257,108 @@ public final class CommonsNetFtpAgent
     }
 
     @Override
-    protected InputStream openInputStream(final String file)
+    public Map<String, IOException> storeBatch(final Map<String, byte[]> files)
         throws IOException
     {
+        final List<String> names = new ArrayList<>(files.keySet());
+        final int[] replies;
         try {
-            ftpClient.setFileType(FTP.ASCII_FILE_TYPE);
-            final FTPFile[] files = ftpClient.listFiles(file);
-            if (files.length == 0)
-                throw new AccessDeniedException(file);
-            if (files.length > 1)
-                throw new IOException(file + " is a directory");
-            if (files[0].isDirectory())
-                throw new AccessDeniedException(file);
             ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
-            final InputStream ret = ftpClient.retrieveFileStream(file);
-            if (ret == null)
-                throw new IOException("cannot open stream to file (server " +
-                    "reply " + ftpClient.getReplyCode());
-            return ret;
+            replies = ftpClient.store(names, new ArrayList<>(files.values()));
+        } catch (FTPConnectionClosedException e) {
+            status = Status.DEAD;
+            throw new IOException("service unavailable", e);
+        } catch (IOException e) {
+            abortTransfer();
+            throw e;
+        }
+
+        final Map<String, IOException> ret = new LinkedHashMap<>();
+        String name;
+        for (int i = 0; i < replies.length; i++) {
+            if (FTPReply.isPositiveCompletion(replies[i]))
+                continue;
+            name = names.get(i);
+            ret.put(name, new FileSystemException(name, null,
+                "STOR failed (server reply " + replies[i] + ")"));
+        }
+        return ret;
+    }
+
+    @Override
+    public String openPassivePort()
+        throws IOException
+    {
+        try {
+            ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+            if (ftpClient.pasv() != FTPReply.ENTERING_PASSIVE_MODE)
+                return null;
+            final Matcher matcher
+                = ADDRESS.matcher(ftpClient.getReplyString());
+            return matcher.find() ? matcher.group() : null;
+        } catch (FTPConnectionClosedException e) {
+            status = Status.DEAD;
+            throw new IOException("service unavailable", e);
+        }
+    }
+
+    @Override
+    public boolean openActivePort(final String address)
+        throws IOException
+    {
+        try {
+            ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+            return FTPReply.isPositiveCompletion(
+                ftpClient.sendCommand("PORT", address));
+        } catch (FTPConnectionClosedException e) {
+            status = Status.DEAD;
+            throw new IOException("service unavailable", e);
+        }
+    }
+
+    @Override
+    public boolean beginSend(final String file)
+        throws IOException
+    {
+        try {
+            final int reply = ftpClient.sendCommand("RETR", file);
+            if (FTPReply.isPositivePreliminary(reply))
+                return true;
+            if (reply == FTPReply.CANNOT_OPEN_DATA_CONNECTION)
+                return false;
+            throw new AccessDeniedException(file, null, "cannot send file "
+                + "(server reply " + reply + ")");
+        } catch (FTPConnectionClosedException e) {
+            status = Status.DEAD;
+            throw new IOException("service unavailable", e);
+        }
+    }
+
+    @Override
+    public void beginReceive(final String file)
+        throws IOException
+    {
+        try {
+            final int reply = ftpClient.sendCommand("STOR", file);
+            if (!FTPReply.isPositivePreliminary(reply))
+                throw new AccessDeniedException(file, null, "cannot receive "
+                    + "file (server reply " + reply + ")");
         } catch (FTPConnectionClosedException e) {
             status = Status.DEAD;
             throw new IOException("service unavailable", e);
         }
     }
 
+    @Override
+    public void abortTransfer()
+    {
+        status = Status.DEAD;
+        try {
+            ftpClient.disconnect();
+        } catch (IOException ignored) {
+        }
+    }
+
     @Override
     public void connect()
         throws IOException
@@ -177,8 +391,104 @@ public final class CommonsNetFtpAgent
     public void completeTransfer()
         throws IOException
     {
-        if (!ftpClient.completePendingCommand())
-            throw new IOException("non finalized read from FTP server");
+        try {
+            if (!ftpClient.completePendingCommand())
+                throw new IOException("non finalized transfer with FTP "
+                    + "server");
+        } catch (FTPConnectionClosedException e) {
+            status = Status.DEAD;
+            throw new IOException("service unavailable", e);
+        }
+    }
+
+    /*
+     * The entries of a directory, without "." and ".."
+     */
+    private List<FTPFile> listDirectory(final String dir)
+        throws IOException
+    {
+        try {
+            ftpClient.setFileType(FTP.ASCII_FILE_TYPE);
+            final FTPFile[] files = ftpClient.listFiles(dir);
+            /*
+             * Not all servers list "." and "..": no entry may mean an empty
+             * directory, and a single file may be the only entry of the
+             * directory or the file itself. Only entering the directory tells.
+             */
+            final boolean ambiguous = files.length == 0
+                || files.length == 1 && !files[0].isDirectory();
+            if (ambiguous && !ftpClient.changeWorkingDirectory(dir)) {
+                if (files.length == 0)
+                    throw new NoSuchFileException(dir);
+                throw new NotDirectoryException(dir);
+            }
+            final List<FTPFile> ret = new ArrayList<>(files.length);
+            String name;
+            for (final FTPFile file: files) {
+                name = file.getName();
+                if (!(".".equals(name) || "..".equals(name)))
+                    ret.add(file);
+            }
+            return ret;
+        } catch (FTPConnectionClosedException e) {
+            status = Status.DEAD;
+            throw new IOException("service unavailable", e);
+        }
+    }
+
+    /*
+     * The listing entry of a file or directory, looked up in the listing of
+     * its parent directory: the listing of the entry itself cannot tell a file
+     * from a directory holding a single file of the same name.
+     */
+    private FTPFile getEntry(final String name)
+        throws IOException
+    {
+        if ("/".equals(name))
+            return rootEntry();
+        final int index = name.lastIndexOf('/');
+        final String parent = index <= 0 ? "/" : name.substring(0, index);
+        final String fileName = name.substring(index + 1);
+        try {
+            for (final FTPFile file: listDirectory(parent))
+                if (fileName.equals(file.getName()))
+                    return file;
+        } catch (NoSuchFileException ignored) {
+            // no parent directory, no entry
+        } catch (NotDirectoryException ignored) {
+            // the parent is a file, no entry
+        }
+        throw new NoSuchFileException(name);
+    }
+
+    /*
+     * The root directory has no parent to be listed in: its "." entry is used
+     * if the server lists one. Otherwise, it can be listed and entered, which
+     * is all that is known about it.
+     */
+    private FTPFile rootEntry()
+        throws IOException
+    {
+        try {
+            ftpClient.setFileType(FTP.ASCII_FILE_TYPE);
+            for (final FTPFile file: ftpClient.listFiles("/"))
+                if (".".equals(file.getName()))
+                    return file;
+        } catch (FTPConnectionClosedException e) {
+            status = Status.DEAD;
+            throw new IOException("service unavailable", e);
+        }
+
+        final FTPFile ret = new FTPFile();
+        ret.setName("/");
+        ret.setType(FTPFile.DIRECTORY_TYPE);
+        final Calendar timestamp = Calendar.getInstance();
+        timestamp.setTimeInMillis(0L);
+        ret.setTimestamp(timestamp);
+        ret.setPermission(FTPFile.USER_ACCESS, FTPFile.READ_PERMISSION, true);
+        ret.setPermission(FTPFile.USER_ACCESS, FTPFile.EXECUTE_PERMISSION,
+            true);
+        return ret;
     }
 
     private static EnumSet<AccessMode> calculateAccess(final FTPFile file)
@@ -193,11 +503,14 @@ public final class CommonsNetFtpAgent
         return ret;
     }
 
-    private static void handleFailedDirectoryList(final String dir,
-        final FTPFile file)
-        throws FileSystemException
+    private static boolean hasEntries(final FTPFile[] files)
     {
-        throw file.isDirectory() ? new AccessDeniedException(dir)
-            : new NotDirectoryException(dir);
+        String name;
+        for (final FTPFile file: files) {
+            name = file.getName();
+            if (!(".".equals(name) || "..".equals(name)))
+                return true;
+        }
+        return false;
     }
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io.commonsnetimpl;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An {@link FTPClient} able to pipeline commands
+ *
+ * <p>{@link FTPClient#sendCommand(String, String)} waits for the reply to a
+ * command before returning; here, commands are written to the control
+ * connection by windows, and the replies for a whole window are read
+ * afterwards. The window is bounded so that neither side can block on a full
+ * socket buffer while the other one is writing.</p>
+ *
+ * <p>Uploads of small files can also be pipelined: see {@link #store(List,
+ * List)}.</p>
+ */
+final class PipeliningFtpClient
+    extends FTPClient
+{
+    private static final int WINDOW = 64;
+
+    /*
+     * The port in a PASV reply: the last two numbers of h1,h2,h3,h4,p1,p2
+     */
+    private static final Pattern PASSIVE_PORT
+        = Pattern.compile("\\d{1,3}(?:,\\d{1,3}){3},(\\d{1,3}),(\\d{1,3})");
+
+    /**
+     * Send one command for each argument, and collect the reply codes
+     *
+     * @param command the command
+     * @param args the arguments
+     * @return the reply codes, in the order of the arguments
+     * @throws IOException I/O error on the control connection
+     */
+    int[] pipeline(final String command, final List<String> args)
+        throws IOException
+    {
+        if (_controlOutput_ == null)
+            throw new IOException("not connected");
+
+        final int size = args.size();
+        final int[] ret = new int[size];
+        int end;
+
+        for (int start = 0; start < size; start = end) {
+            end = Math.min(size, start + WINDOW);
+            for (int i = start; i < end; i++)
+                _controlOutput_.write(command + ' ' + args.get(i) + "\r\n");
+            _controlOutput_.flush();
+            for (int i = start; i < end; i++)
+                ret[i] = getReply();
+        }
+        return ret;
+    }
+
+    /**
+     * Upload files, pipelining the setup of each transfer with the end of the
+     * previous one
+     *
+     * <p>For each file, {@code PASV} and {@code STOR} are sent together as
+     * soon as the data of the previous file has been written; the final reply
+     * for the previous file is only read afterwards. The data connection is
+     * opened to the host of the control connection, whatever the address in
+     * the {@code PASV} reply.</p>
+     *
+     * <p>Commands are never sent while a data connection is open, since some
+     * servers reset the current data connection on {@code PASV}.</p>
+     *
+     * @param names the paths of the files
+     * @param contents the contents of the files, in the same order
+     * @return the reply codes, in the order of the files: the final reply to
+     * {@code STOR}, or the reply to the command which failed
+     * @throws IOException I/O error on the control connection or on a data
+     * connection; the state of the control connection is then unknown
+     */
+    int[] store(final List<String> names, final List<byte[]> contents)
+        throws IOException
+    {
+        if (_controlOutput_ == null)
+            throw new IOException("not connected");
+
+        final int size = names.size();
+        final int[] ret = new int[size];
+        boolean pending = false;
+        int reply;
+
+        for (int i = 0; i < size; i++) {
+            _controlOutput_.write("PASV\r\nSTOR " + names.get(i) + "\r\n");
+            _controlOutput_.flush();
+            if (pending)
+                ret[i - 1] = getReply();
+            reply = getReply();
+            if (reply != FTPReply.ENTERING_PASSIVE_MODE) {
+                ret[i] = reply;
+                if (FTPReply.isPositivePreliminary(getReply()))
+                    getReply();
+                pending = false;
+                continue;
+            }
+            pending = transfer(parsePassivePort(), contents.get(i));
+            if (!pending)
+                ret[i] = getReplyCode();
+        }
+        if (pending)
+            ret[size - 1] = getReply();
+        return ret;
+    }
+
+    /*
+     * Connect to the passive port, then read the reply to STOR; if the server
+     * accepts the transfer, write the data and return true.
+     */
+    private boolean transfer(final int port, final byte[] data)
+        throws IOException
+    {
+        try (
+            final Socket socket = _socketFactory_.createSocket();
+        ) {
+            socket.connect(new InetSocketAddress(getRemoteAddress(), port),
+                getConnectTimeout());
+            if (!FTPReply.isPositivePreliminary(getReply()))
+                return false;
+            try (
+                final OutputStream out = socket.getOutputStream();
+            ) {
+                out.write(data);
+            }
+            return true;
+        }
+    }
+
+    private int parsePassivePort()
+        throws IOException
+    {
+        final Matcher matcher = PASSIVE_PORT.matcher(getReplyString());
+        if (!matcher.find())
+            throw new IOException("malformed PASV reply: "
+                + getReplyString().trim());
+        return Integer.parseInt(matcher.group(1)) * 256
+            + Integer.parseInt(matcher.group(2));
+    }
+}
@@ -316,7 +316,7 @@ public final class SlashPath
         if (absolute ^ other.absolute)
             return false;
         if (other.components.isEmpty())
-            return false;
+            return absolute;
         return Collections.indexOfSubList(components, other.components) == 0;
     }
 
@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package com.github.fge.ftpfs.util;
+
+import com.github.fge.ftpfs.FtpOpenOption;
+import com.github.fge.ftpfs.io.BandwidthLimiter;
+import com.github.fge.ftpfs.io.ThrottledInputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upload of a local directory tree to an FTP file system
+ *
+ * <p>The local tree is walked first. Remote directories are then created
+ * level by level (all directories of one level in parallel, since they only
+ * depend on the previous level); finally, files are uploaded in parallel, each
+ * on its own agent.</p>
+ *
+ * <p>Failures do not stop the upload: all failures are collected, and
+ * reported at the end as suppressed exceptions of one single {@link
+ * IOException}.</p>
+ *
+ * <p>Sample usage:</p>
+ *
+ * <pre>
+ *     BulkUpload.newBuilder(localDir, ftpDir).setConcurrency(3)
+ *         .setBandwidthLimit(1024L * 1024L).build().run();
+ * </pre>
+ */
+public final class BulkUpload
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path source;
+    private final Path target;
+    private final int concurrency;
+    private final BandwidthLimiter limiter;
+    private final ProgressListener listener;
+    private final OpenOption[] openOptions;
+
+    private final AtomicLong filesDone = new AtomicLong();
+    private final AtomicLong bytesDone = new AtomicLong();
+    private long filesTotal;
+    private long bytesTotal;
+
+    public static Builder newBuilder(@Nonnull final Path source,
+        @Nonnull final Path target)
+    {
+        return new Builder(source, target);
+    }
+
+    private BulkUpload(final Builder builder)
+    {
+        source = builder.source;
+        target = builder.target;
+        concurrency = builder.concurrency;
+        limiter = builder.bandwidthLimit == 0L ? null
+            : new BandwidthLimiter(builder.bandwidthLimit);
+        listener = builder.listener;
+        openOptions = builder.resumable
+            ? new OpenOption[] { StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, FtpOpenOption.RESUME }
+            : new OpenOption[] { StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING };
+    }
+
+    /**
+     * Run the upload
+     *
+     * @throws IOException failed to walk the local tree, or one or more
+     * entries failed to upload
+     */
+    public void run()
+        throws IOException
+    {
+        final Walker walker = new Walker();
+        Files.walkFileTree(source, walker);
+        filesTotal = walker.files.size();
+        bytesTotal = walker.bytes;
+
+        final List<IOException> failures = new ArrayList<>();
+        final ExecutorService executor
+            = Executors.newFixedThreadPool(concurrency);
+
+        try {
+            for (final List<Path> level: walker.directories.values())
+                failures.addAll(runAll(executor, directoryTasks(level)));
+            failures.addAll(runAll(executor, fileTasks(walker.files)));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (failures.isEmpty())
+            return;
+        final IOException e = new IOException(failures.size()
+            + " entries failed to upload");
+        for (final IOException failure: failures)
+            e.addSuppressed(failure);
+        throw e;
+    }
+
+    private List<Callable<Void>> directoryTasks(final List<Path> level)
+    {
+        final List<Callable<Void>> ret = new ArrayList<>(level.size());
+        for (final Path dir: level)
+            ret.add(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                    throws IOException
+                {
+                    try {
+                        Files.createDirectory(toTarget(dir));
+                    } catch (FileAlreadyExistsException ignored) {
+                        // fine
+                    }
+                    return null;
+                }
+            });
+        return ret;
+    }
+
+    private List<Callable<Void>> fileTasks(final List<Path> files)
+    {
+        final List<Callable<Void>> ret = new ArrayList<>(files.size());
+        for (final Path file: files)
+            ret.add(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                    throws IOException
+                {
+                    upload(file);
+                    return null;
+                }
+            });
+        return ret;
+    }
+
+    private void upload(final Path file)
+        throws IOException
+    {
+        final List<BandwidthLimiter> limiters = limiter == null
+            ? Collections.<BandwidthLimiter>emptyList()
+            : Collections.singletonList(limiter);
+        final byte[] buf = new byte[BUFFER_SIZE];
+        long size = 0L;
+        int n;
+
+        try (
+            final InputStream in = ThrottledInputStream.wrap(
+                Files.newInputStream(file), limiters);
+            final OutputStream out = Files.newOutputStream(toTarget(file),
+                openOptions);
+        ) {
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+                size += n;
+            }
+        } catch (IOException e) {
+            throw new IOException("failed to upload " + file, e);
+        }
+
+        final long files = filesDone.incrementAndGet();
+        final long bytes = bytesDone.addAndGet(size);
+        if (listener != null)
+            listener.progress(files, filesTotal, bytes, bytesTotal);
+    }
+
+    /*
+     * Map a local path to the target; name by name, since both file systems
+     * may not use the same separator
+     */
+    private Path toTarget(final Path local)
+    {
+        Path ret = target;
+        for (final Path name: source.relativize(local))
+            if (!name.toString().isEmpty())
+                ret = ret.resolve(name.toString());
+        return ret;
+    }
+
+    private static List<IOException> runAll(final ExecutorService executor,
+        final List<Callable<Void>> tasks)
+        throws IOException
+    {
+        final List<IOException> ret = new ArrayList<>();
+        final List<Future<Void>> futures;
+
+        try {
+            futures = executor.invokeAll(tasks);
+            for (final Future<Void> future: futures)
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    ret.add(cause instanceof IOException ? (IOException) cause
+                        : new IOException(cause));
+                }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted!", e);
+        }
+        return ret;
+    }
+
+    /**
+     * A listener notified each time a file has been uploaded
+     *
+     * <p>Files are uploaded in parallel: implementations must be thread safe.
+     * </p>
+     */
+    @ThreadSafe
+    public interface ProgressListener
+    {
+        void progress(long filesDone, long filesTotal, long bytesDone,
+            long bytesTotal);
+    }
+
+    private static final class Walker
+        extends SimpleFileVisitor<Path>
+    {
+        /*
+         * Directories by depth
+         */
+        private final TreeMap<Integer, List<Path>> directories
+            = new TreeMap<>();
+        private final List<Path> files = new ArrayList<>();
+        private long bytes = 0L;
+        private int depth = 0;
+
+        @Override
+        public FileVisitResult preVisitDirectory(final Path dir,
+            final BasicFileAttributes attrs)
+        {
+            List<Path> level = directories.get(depth);
+            if (level == null) {
+                level = new ArrayList<>();
+                directories.put(depth, level);
+            }
+            level.add(dir);
+            depth++;
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(final Path file,
+            final BasicFileAttributes attrs)
+        {
+            if (attrs.isRegularFile()) {
+                files.add(file);
+                bytes += attrs.size();
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(final Path dir,
+            final IOException exc)
+            throws IOException
+        {
+            depth--;
+            if (exc != null)
+                throw exc;
+            return FileVisitResult.CONTINUE;
+        }
+    }
+
+    public static final class Builder
+    {
+        private final Path source;
+        private final Path target;
+        private int concurrency = 5;
+        private long bandwidthLimit = 0L;
+        private ProgressListener listener = null;
+        private boolean resumable = false;
+
+        private Builder(final Path source, final Path target)
+        {
+            this.source = Objects.requireNonNull(source,
+                "source cannot be null");
+            this.target = Objects.requireNonNull(target,
+                "target cannot be null");
+        }
+
+        /**
+         * Set the maximum number of concurrent transfers
+         *
+         * <p>The default is 5, the number of agents of a file system. Using
+         * more than that only makes transfers wait for an agent.</p>
+         *
+         * @param concurrency the number of transfers
+         * @return this
+         */
+        public Builder setConcurrency(final int concurrency)
+        {
+            if (concurrency <= 0)
+                throw new IllegalArgumentException("illegal concurrency "
+                    + concurrency);
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        /**
+         * Set the bandwidth limit for the whole upload
+         *
+         * <p>A value of 0 (the default) means no limit.</p>
+         *
+         * @param bandwidthLimit the limit, in bytes per second
+         * @return this
+         */
+        public Builder setBandwidthLimit(final long bandwidthLimit)
+        {
+            if (bandwidthLimit < 0L)
+                throw new IllegalArgumentException("illegal bandwidth limit "
+                    + bandwidthLimit);
+            this.bandwidthLimit = bandwidthLimit;
+            return this;
+        }
+
+        public Builder setProgressListener(
+            @Nonnull final ProgressListener listener)
+        {
+            this.listener = Objects.requireNonNull(listener,
+                "listener cannot be null");
+            return this;
+        }
+
+        /**
+         * Make file uploads resumable
+         *
+         * <p>Uploads then use {@link FtpOpenOption#RESUME}, and failed data
+         * connections are handled according to the retry policy of the target
+         * file system. This requires that the target be an FTP file system.
+         * </p>
+         *
+         * @param resumable whether uploads should be resumable
+         * @return this
+         */
+        public Builder setResumable(final boolean resumable)
+        {
+            this.resumable = resumable;
+            return this;
+        }
+
+        public BulkUpload build()
+        {
+            return new BulkUpload(this);
+        }
+    }
+}
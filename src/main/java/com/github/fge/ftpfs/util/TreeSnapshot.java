@@ -0,0 +1,607 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A snapshot of the entries of a directory tree: names, types, sizes and
+ * modification times
+ *
+ * <p>A snapshot is taken by walking the tree level by level, all directories
+ * of one level being listed in parallel; on an FTP file system, this costs
+ * one listing per directory. It can be saved to a file and loaded again
+ * later, so that a large tree does not have to be walked again on each
+ * startup; parts of the tree can then be refreshed as needed, using {@link
+ * #refresh(Path, int)}.</p>
+ *
+ * <p>Queries are answered from the snapshot only, without any I/O.</p>
+ *
+ * <p>Sample usage:</p>
+ *
+ * <pre>
+ *     TreeSnapshot snapshot = Files.exists(file)
+ *         ? TreeSnapshot.load(root, file) : TreeSnapshot.take(root, 5);
+ *     snapshot = snapshot.refresh(root.resolve("incoming"), 5);
+ *     snapshot.save(file);
+ *     for (final Path path: snapshot.find(root,
+ *         TreeSnapshot.nameMatches(".*\\.csv")))
+ *         System.out.println(path);
+ * </pre>
+ *
+ * <p>Entries are stored by their path relative to the root of the tree;
+ * snapshot files only record these relative paths, and the path of the root
+ * as a string.</p>
+ */
+@Immutable
+public final class TreeSnapshot
+{
+    private static final int MAGIC = 0x46545053; // "FTPS"
+    private static final int VERSION = 1;
+
+    private static final byte DIRECTORY = 'd';
+    private static final byte REGULAR_FILE = 'f';
+    private static final byte SYMBOLIC_LINK = 'l';
+    private static final byte OTHER = 'o';
+
+    private final Path root;
+    private final FileTime creationTime;
+    private final SortedMap<String, Entry> entries;
+
+    private TreeSnapshot(final Path root, final FileTime creationTime,
+        final SortedMap<String, Entry> entries)
+    {
+        this.root = root;
+        this.creationTime = creationTime;
+        this.entries = entries;
+    }
+
+    /**
+     * Take a snapshot of a directory tree
+     *
+     * @param root the root of the tree
+     * @param concurrency the maximum number of directories listed in parallel
+     * @return the snapshot
+     * @throws NotDirectoryException the root is not a directory
+     * @throws IOException failed to list one or more directories (see the
+     * suppressed exceptions)
+     */
+    public static TreeSnapshot take(@Nonnull final Path root,
+        final int concurrency)
+        throws IOException
+    {
+        Objects.requireNonNull(root, "root is null");
+        if (concurrency <= 0)
+            throw new IllegalArgumentException("illegal concurrency "
+                + concurrency);
+        final FileTime creationTime
+            = FileTime.fromMillis(System.currentTimeMillis());
+        final TreeSnapshot ret = new TreeSnapshot(root, creationTime,
+            new TreeMap<String, Entry>());
+        if (!Files.readAttributes(root, BasicFileAttributes.class)
+            .isDirectory())
+            throw new NotDirectoryException(root.toString());
+        ret.walk(root, concurrency);
+        return ret;
+    }
+
+    /**
+     * Load a snapshot from a file
+     *
+     * @param root the root of the tree
+     * @param file the file, as written by {@link #save(Path)}
+     * @return the snapshot
+     * @throws IOException failed to read the file, or the file is not a
+     * snapshot of this root
+     */
+    public static TreeSnapshot load(@Nonnull final Path root,
+        @Nonnull final Path file)
+        throws IOException
+    {
+        Objects.requireNonNull(root, "root is null");
+        final SortedMap<String, Entry> entries = new TreeMap<>();
+        final FileTime creationTime;
+
+        try (
+            final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new GZIPInputStream(
+                    Files.newInputStream(file))));
+        ) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException(file + " is not a tree snapshot");
+            final String rootName = in.readUTF();
+            if (!rootName.equals(root.toString()))
+                throw new IOException(file + " is a snapshot of " + rootName
+                    + ", not " + root);
+            creationTime = FileTime.fromMillis(in.readLong());
+            final int count = in.readInt();
+            String name = "";
+            for (int i = 0; i < count; i++) {
+                name = name.substring(0, in.readInt()) + in.readUTF();
+                entries.put(name, new Entry(in.readByte(), in.readLong(),
+                    in.readLong()));
+            }
+        }
+        return new TreeSnapshot(root, creationTime, entries);
+    }
+
+    /**
+     * Save this snapshot to a file
+     *
+     * <p>The snapshot is first written to a temporary file next to the
+     * target file, which then replaces the target file.</p>
+     *
+     * @param file the file
+     * @throws IOException failed to write the file
+     */
+    public void save(@Nonnull final Path file)
+        throws IOException
+    {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (
+            final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new GZIPOutputStream(
+                    Files.newOutputStream(tmp))));
+        ) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(root.toString());
+            out.writeLong(creationTime.toMillis());
+            out.writeInt(entries.size());
+            /*
+             * Entries are sorted: only write what differs from the previous
+             * name
+             */
+            String previous = "";
+            String name;
+            Entry entry;
+            int common;
+            for (final Map.Entry<String, Entry> mapEntry: entries.entrySet()) {
+                name = mapEntry.getKey();
+                entry = mapEntry.getValue();
+                common = commonPrefixLength(previous, name);
+                out.writeInt(common);
+                out.writeUTF(name.substring(common));
+                out.writeByte(entry.type);
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                previous = name;
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Return a snapshot where the subtree of a directory is taken again
+     *
+     * <p>If the directory does not exist anymore, it is removed from the
+     * returned snapshot, along with its subtree. This snapshot is not
+     * modified.</p>
+     *
+     * @param dir the directory; it must be the root of the tree or belong to
+     * the tree
+     * @param concurrency the maximum number of directories listed in parallel
+     * @return the new snapshot
+     * @throws NotDirectoryException the entry is not a directory
+     * @throws IOException failed to list one or more directories (see the
+     * suppressed exceptions)
+     */
+    public TreeSnapshot refresh(@Nonnull final Path dir, final int concurrency)
+        throws IOException
+    {
+        final String name = toName(dir);
+        if (concurrency <= 0)
+            throw new IllegalArgumentException("illegal concurrency "
+                + concurrency);
+        final TreeSnapshot ret = new TreeSnapshot(root,
+            FileTime.fromMillis(System.currentTimeMillis()),
+            new TreeMap<>(entries));
+        ret.subtree(name).clear();
+        ret.entries.remove(name);
+
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(dir, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            if (name.isEmpty())
+                throw e;
+            return ret;
+        }
+        if (!attributes.isDirectory())
+            throw new NotDirectoryException(dir.toString());
+        if (!name.isEmpty())
+            ret.entries.put(name, Entry.of(attributes));
+        ret.walk(dir, concurrency);
+        return ret;
+    }
+
+    public Path getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * Get the time at which this snapshot was taken or last refreshed
+     *
+     * @return the time
+     */
+    public FileTime getCreationTime()
+    {
+        return creationTime;
+    }
+
+    /**
+     * Get the number of entries in this snapshot, the root excluded
+     *
+     * @return the number of entries
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Get the attributes of an entry, as recorded in this snapshot
+     *
+     * @param path the path of the entry
+     * @return the attributes, or null if the entry is not in the snapshot
+     */
+    public BasicFileAttributes getAttributes(@Nonnull final Path path)
+    {
+        return entries.get(toName(path));
+    }
+
+    /**
+     * Find the entries of a subtree matching a filter
+     *
+     * @param dir the root of the subtree; it must be the root of the tree or
+     * belong to the tree
+     * @param filter the filter
+     * @return the matching entries, sorted by path
+     */
+    public List<Path> find(@Nonnull final Path dir,
+        @Nonnull final EntryFilter filter)
+    {
+        Objects.requireNonNull(filter, "filter is null");
+        final String name = toName(dir);
+        final SortedMap<String, Entry> subtree = subtree(name);
+        final List<Path> ret = new ArrayList<>();
+        Path path;
+        for (final Map.Entry<String, Entry> entry: subtree.entrySet()) {
+            path = toPath(entry.getKey());
+            if (filter.accept(path, entry.getValue()))
+                ret.add(path);
+        }
+        return ret;
+    }
+
+    /**
+     * A filter accepting entries the name of which matches a regular
+     * expression
+     *
+     * @param regex the regular expression
+     * @return the filter
+     */
+    public static EntryFilter nameMatches(@Nonnull final String regex)
+    {
+        final Pattern pattern = Pattern.compile(regex);
+        return new EntryFilter()
+        {
+            @Override
+            public boolean accept(final Path path,
+                final BasicFileAttributes attributes)
+            {
+                return pattern.matcher(path.getFileName().toString())
+                    .matches();
+            }
+        };
+    }
+
+    /**
+     * A filter accepting regular files of at least a given size
+     *
+     * @param size the minimum size, in bytes
+     * @return the filter
+     */
+    public static EntryFilter sizeAtLeast(final long size)
+    {
+        return new EntryFilter()
+        {
+            @Override
+            public boolean accept(final Path path,
+                final BasicFileAttributes attributes)
+            {
+                return attributes.isRegularFile() && attributes.size() >= size;
+            }
+        };
+    }
+
+    /**
+     * A filter accepting entries modified after a given time
+     *
+     * @param time the time
+     * @return the filter
+     */
+    public static EntryFilter modifiedAfter(@Nonnull final FileTime time)
+    {
+        Objects.requireNonNull(time, "time is null");
+        return new EntryFilter()
+        {
+            @Override
+            public boolean accept(final Path path,
+                final BasicFileAttributes attributes)
+            {
+                return attributes.lastModifiedTime().compareTo(time) > 0;
+            }
+        };
+    }
+
+    /**
+     * A filter of entries of a snapshot
+     */
+    public interface EntryFilter
+    {
+        boolean accept(Path path, BasicFileAttributes attributes);
+    }
+
+    /*
+     * Add the entries of the subtree of a directory, walking it level by
+     * level
+     */
+    private void walk(final Path dir, final int concurrency)
+        throws IOException
+    {
+        final ExecutorService executor
+            = Executors.newFixedThreadPool(concurrency);
+        final List<IOException> failures = new ArrayList<>();
+        List<Path> level = Collections.singletonList(dir);
+        List<Path> next;
+        List<Future<List<Path>>> futures;
+
+        try {
+            while (!level.isEmpty()) {
+                futures = executor.invokeAll(listings(level));
+                next = new ArrayList<>();
+                for (final Future<List<Path>> future: futures)
+                    try {
+                        next.addAll(future.get());
+                    } catch (ExecutionException e) {
+                        final Throwable cause = e.getCause();
+                        failures.add(cause instanceof IOException
+                            ? (IOException) cause : new IOException(cause));
+                    }
+                level = next;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted!", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (failures.isEmpty())
+            return;
+        final IOException e = new IOException(failures.size()
+            + " directories could not be listed");
+        for (final IOException failure: failures)
+            e.addSuppressed(failure);
+        throw e;
+    }
+
+    /*
+     * List the directories of one level, adding their entries to the
+     * snapshot; each task returns the subdirectories of its directory
+     */
+    private List<Callable<List<Path>>> listings(final List<Path> level)
+    {
+        final List<Callable<List<Path>>> ret = new ArrayList<>(level.size());
+        for (final Path dir: level)
+            ret.add(new Callable<List<Path>>()
+            {
+                @Override
+                public List<Path> call()
+                    throws IOException
+                {
+                    final Map<String, Entry> children = new TreeMap<>();
+                    final List<Path> subdirectories = new ArrayList<>();
+                    BasicFileAttributes attributes;
+                    try (
+                        final DirectoryStream<Path> stream
+                            = Files.newDirectoryStream(dir);
+                    ) {
+                        for (final Path child: stream) {
+                            attributes = Files.readAttributes(child,
+                                BasicFileAttributes.class);
+                            children.put(toName(child), Entry.of(attributes));
+                            if (attributes.isDirectory())
+                                subdirectories.add(child);
+                        }
+                    }
+                    synchronized (entries) {
+                        entries.putAll(children);
+                    }
+                    return subdirectories;
+                }
+            });
+        return ret;
+    }
+
+    /*
+     * The entries below an entry, by name; they sort after the name followed
+     * by a slash, and before the name followed by the character following the
+     * slash
+     */
+    private SortedMap<String, Entry> subtree(final String name)
+    {
+        return name.isEmpty() ? entries
+            : entries.subMap(name + '/', name + (char) ('/' + 1));
+    }
+
+    /*
+     * The name of an entry relative to the root, name by name, since the
+     * separator depends on the file system
+     */
+    private String toName(final Path path)
+    {
+        if (!path.startsWith(root))
+            throw new IllegalArgumentException(path + " does not belong to "
+                + root);
+        final StringBuilder sb = new StringBuilder();
+        for (final Path name: root.relativize(path)) {
+            if (name.toString().isEmpty())
+                continue;
+            if (sb.length() > 0)
+                sb.append('/');
+            sb.append(name);
+        }
+        return sb.toString();
+    }
+
+    private Path toPath(final String name)
+    {
+        Path ret = root;
+        for (final String element: name.split("/"))
+            ret = ret.resolve(element);
+        return ret;
+    }
+
+    private static int commonPrefixLength(final String s1, final String s2)
+    {
+        final int len = Math.min(s1.length(), s2.length());
+        int ret = 0;
+        while (ret < len && s1.charAt(ret) == s2.charAt(ret))
+            ret++;
+        return ret;
+    }
+
+    private static final class Entry
+        implements BasicFileAttributes
+    {
+        private final byte type;
+        private final long size;
+        private final long lastModified;
+
+        private Entry(final byte type, final long size,
+            final long lastModified)
+        {
+            this.type = type;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        private static Entry of(final BasicFileAttributes attributes)
+        {
+            final byte type;
+            if (attributes.isDirectory())
+                type = DIRECTORY;
+            else if (attributes.isRegularFile())
+                type = REGULAR_FILE;
+            else if (attributes.isSymbolicLink())
+                type = SYMBOLIC_LINK;
+            else
+                type = OTHER;
+            return new Entry(type, attributes.size(),
+                attributes.lastModifiedTime().toMillis());
+        }
+
+        @Override
+        public FileTime lastModifiedTime()
+        {
+            return FileTime.fromMillis(lastModified);
+        }
+
+        @Override
+        public FileTime lastAccessTime()
+        {
+            return lastModifiedTime();
+        }
+
+        @Override
+        public FileTime creationTime()
+        {
+            return lastModifiedTime();
+        }
+
+        @Override
+        public boolean isRegularFile()
+        {
+            return type == REGULAR_FILE;
+        }
+
+        @Override
+        public boolean isDirectory()
+        {
+            return type == DIRECTORY;
+        }
+
+        @Override
+        public boolean isSymbolicLink()
+        {
+            return type == SYMBOLIC_LINK;
+        }
+
+        @Override
+        public boolean isOther()
+        {
+            return type == OTHER;
+        }
+
+        @Override
+        public long size()
+        {
+            return size;
+        }
+
+        @Override
+        public Object fileKey()
+        {
+            return null;
+        }
+    }
+}
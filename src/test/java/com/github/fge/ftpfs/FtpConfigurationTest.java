@@ -94,4 +94,74 @@ public final class FtpConfigurationTest
             assertEquals(e.getMessage(), "password cannot be null");
         }
     }
+
+    @Test
+    public void cannotProvideNegativeBandwidthLimit()
+    {
+        try {
+            builder.setBandwidthLimit(-1L);
+            fail("No exception thrown!!");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "illegal bandwidth limit -1");
+        }
+    }
+
+    @Test
+    public void spoolCapacityMustBePositive()
+    {
+        try {
+            builder.setSpoolCapacity(0L);
+            fail("No exception thrown!!");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "illegal spool capacity 0");
+        }
+    }
+
+    @Test
+    public void attributeCacheTtlCannotBeNegative()
+    {
+        try {
+            builder.setAttributeCacheTtl(-1L);
+            fail("No exception thrown!!");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "illegal attribute cache TTL -1");
+        }
+    }
+
+    @Test
+    public void negativeCacheTtlCannotBeNegative()
+    {
+        try {
+            builder.setNegativeCacheTtl(-1L);
+            fail("No exception thrown!!");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "illegal negative cache TTL -1");
+        }
+    }
+
+    @Test
+    public void listingMaxStalenessCannotBeNegative()
+    {
+        try {
+            builder.setListingMaxStaleness(-1L);
+            fail("No exception thrown!!");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(),
+                "illegal listing maximum staleness -1");
+        }
+    }
+
+    @Test
+    public void blockCacheMustHoldOneReadAheadWindow()
+    {
+        builder.setHostname("foo").setReadAheadSize(1024)
+            .setBlockCacheCapacity(1023L);
+        try {
+            builder.build();
+            fail("No exception thrown!!");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "block cache capacity must be at "
+                + "least the read ahead size");
+        }
+    }
 }
@@ -0,0 +1,690 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package com.github.fge.ftpfs;
+
+import com.github.fge.ftpfs.io.FtpAgent;
+import com.github.fge.ftpfs.io.FtpAgentFactory;
+import com.github.fge.ftpfs.io.FtpAgentQueue;
+import com.github.fge.ftpfs.io.FtpFileView;
+import com.github.fge.ftpfs.io.FtpInputStream;
+import com.github.fge.ftpfs.io.FtpOutputStream;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessMode;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public final class FtpFileSystemProviderTest
+{
+    private FtpAgent agent;
+    private FtpFileSystemProvider provider;
+    private FileSystem fs;
+
+    @BeforeMethod
+    public void init()
+        throws IOException
+    {
+        agent = mock(FtpAgent.class);
+        final FtpAgentFactory factory = mock(FtpAgentFactory.class);
+        final AtomicReference<FtpAgentQueue> queue = new AtomicReference<>();
+        when(factory.get(any(FtpAgentQueue.class),
+            any(FtpConfiguration.class))).thenAnswer(new Answer<FtpAgent>()
+        {
+            @Override
+            public FtpAgent answer(final InvocationOnMock invocation)
+            {
+                queue.set((FtpAgentQueue) invocation.getArguments()[0]);
+                return agent;
+            }
+        });
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+            {
+                queue.get().pushBack(agent);
+                return null;
+            }
+        }).when(agent).close();
+        provider = new FtpFileSystemProvider(factory);
+        fs = provider.newFileSystem(URI.create("ftp://foo.bar"),
+            Collections.<String, Object>emptyMap());
+    }
+
+    @AfterMethod
+    public void cleanup()
+        throws IOException
+    {
+        fs.close();
+    }
+
+    @Test
+    public void moveIsAServerSideRename()
+        throws IOException
+    {
+        when(agent.getFileView("/dst")).thenThrow(
+            new NoSuchFileException("/dst"));
+
+        provider.move(fs.getPath("/src"), fs.getPath("/dst"));
+
+        verify(agent).rename("/src", "/dst");
+    }
+
+    @Test
+    public void moveDoesNotReplaceExistingTargetByDefault()
+        throws IOException
+    {
+        when(agent.getFileView("/dst")).thenReturn(mock(FtpFileView.class));
+
+        try {
+            provider.move(fs.getPath("/src"), fs.getPath("/dst"));
+            fail("No exception thrown!!");
+        } catch (FileAlreadyExistsException e) {
+            assertEquals(e.getFile(), "/dst");
+        }
+
+        verify(agent, never()).rename(anyString(), anyString());
+    }
+
+    @Test
+    public void atomicMoveAndReplaceExistingRenameDirectly()
+        throws IOException
+    {
+        provider.move(fs.getPath("/a"), fs.getPath("/b"),
+            StandardCopyOption.ATOMIC_MOVE);
+        provider.move(fs.getPath("/c"), fs.getPath("/d"),
+            StandardCopyOption.REPLACE_EXISTING);
+
+        verify(agent, never()).getFileView(anyString());
+        verify(agent).rename("/a", "/b");
+        verify(agent).rename("/c", "/d");
+    }
+
+    @Test
+    public void deleteUsesRmdForDirectories()
+        throws IOException
+    {
+        final BasicFileAttributes attributes = mock(BasicFileAttributes.class);
+        when(attributes.isDirectory()).thenReturn(true);
+        when(agent.getDirectoryEntries("/")).thenReturn(
+            Collections.singletonMap("dir", attributes));
+
+        provider.delete(fs.getPath("/dir"));
+
+        verify(agent).delete("/dir", true);
+    }
+
+    @Test
+    public void deletingAMissingEntryFails()
+        throws IOException
+    {
+        when(agent.getDirectoryEntries("/")).thenReturn(
+            Collections.<String, BasicFileAttributes>emptyMap());
+
+        try {
+            provider.delete(fs.getPath("/nope"));
+            fail("No exception thrown!!");
+        } catch (NoSuchFileException e) {
+            assertEquals(e.getFile(), "/nope");
+        }
+
+        verify(agent, never()).delete(anyString(), anyBoolean());
+    }
+
+    @Test
+    public void missingFilesAreStoredWithCreateOrCreateNew()
+        throws IOException
+    {
+        when(agent.getFileView("/a")).thenThrow(new NoSuchFileException("/a"));
+        when(agent.getFileView("/b")).thenThrow(new NoSuchFileException("/b"));
+        final ByteArrayOutputStream a = stubUpload("/a");
+        final ByteArrayOutputStream b = stubUpload("/b");
+
+        try (
+            final OutputStream out = Files.newOutputStream(fs.getPath("/a"),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ) {
+            out.write('a');
+        }
+        try (
+            final OutputStream out = Files.newOutputStream(fs.getPath("/b"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        ) {
+            out.write('b');
+        }
+
+        assertEquals(a.toByteArray(), new byte[] { 'a' });
+        assertEquals(b.toByteArray(), new byte[] { 'b' });
+    }
+
+    @Test
+    public void existingFilesAreNotOverwrittenWithoutTruncateOrAppend()
+        throws IOException
+    {
+        final FtpFileView view = mock(FtpFileView.class);
+        when(view.readAttributes()).thenReturn(
+            mock(BasicFileAttributes.class));
+        when(agent.getFileView("/file")).thenReturn(view);
+
+        try {
+            Files.newOutputStream(fs.getPath("/file"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            fail("No exception thrown!!");
+        } catch (FileAlreadyExistsException e) {
+            assertEquals(e.getFile(), "/file");
+        }
+
+        verify(agent, never()).getOutputStream(any(Path.class), anyBoolean());
+    }
+
+    @Test
+    public void filesCanBeCopiedFromStreamsAndOtherFileSystems()
+        throws IOException
+    {
+        final byte[] data = "hello".getBytes(StandardCharsets.UTF_8);
+        when(agent.getFileView("/a")).thenThrow(new NoSuchFileException("/a"));
+        when(agent.getFileView("/b")).thenThrow(new NoSuchFileException("/b"));
+        final ByteArrayOutputStream a = stubUpload("/a");
+        final ByteArrayOutputStream b = stubUpload("/b");
+        final Path local = Files.createTempFile("ftpfs", null);
+
+        try {
+            Files.write(local, data);
+            Files.copy(new ByteArrayInputStream(data), fs.getPath("/a"));
+            Files.copy(local, fs.getPath("/b"));
+        } finally {
+            Files.delete(local);
+        }
+
+        assertEquals(a.toByteArray(), data);
+        assertEquals(b.toByteArray(), data);
+    }
+
+    @Test
+    public void attributesAreReadOnceWithinTheirTimeToLive()
+        throws IOException
+    {
+        final Path path = fs.getPath("/file");
+        final FtpFileView view = mock(FtpFileView.class);
+        final BasicFileAttributes attributes = mock(BasicFileAttributes.class);
+        when(view.readAttributes()).thenReturn(attributes);
+        when(agent.getFileView("/file")).thenReturn(view);
+
+        provider.readAttributes(path, BasicFileAttributes.class);
+        provider.getFileAttributeView(path, BasicFileAttributeView.class);
+        provider.readAttributes(path, "size");
+
+        verify(agent, times(1)).getFileView("/file");
+    }
+
+    @Test
+    public void writesInvalidateCachedAttributes()
+        throws IOException
+    {
+        final Path path = fs.getPath("/dir/file");
+        final FtpFileView view = mock(FtpFileView.class);
+        final BasicFileAttributes attributes = mock(BasicFileAttributes.class);
+        when(view.readAttributes()).thenReturn(attributes);
+        when(agent.getFileView("/dir/file")).thenReturn(view);
+
+        provider.readAttributes(path, BasicFileAttributes.class);
+        provider.createDirectory(fs.getPath("/dir"));
+        provider.readAttributes(path, BasicFileAttributes.class);
+
+        verify(agent, times(2)).getFileView("/dir/file");
+    }
+
+    @Test
+    public void deferredUploadsInvalidateCachedAttributesOnceStored()
+        throws IOException
+    {
+        final Path path = fs.getPath("/file");
+        final FtpFileView view = mock(FtpFileView.class);
+        when(view.readAttributes()).thenReturn(
+            mock(BasicFileAttributes.class));
+        when(agent.getFileView("/file")).thenReturn(view);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(agent.getResumableOutputStream(path, false)).thenAnswer(
+            new Answer<FtpOutputStream>()
+            {
+                @Override
+                public FtpOutputStream answer(
+                    final InvocationOnMock invocation)
+                    throws InterruptedException
+                {
+                    release.await();
+                    return new FtpOutputStream(agent,
+                        new ByteArrayOutputStream(), 16);
+                }
+            });
+
+        try (
+            final OutputStream out = Files.newOutputStream(path,
+                StandardOpenOption.TRUNCATE_EXISTING, FtpOpenOption.DEFERRED);
+        ) {
+            out.write('a');
+        }
+        provider.readAttributes(path, BasicFileAttributes.class);
+        provider.readAttributes(path, BasicFileAttributes.class);
+        verify(agent, times(2)).getFileView("/file");
+
+        release.countDown();
+        provider.awaitUploads(fs);
+        provider.readAttributes(path, BasicFileAttributes.class);
+        verify(agent, times(3)).getFileView("/file");
+    }
+
+    @Test
+    public void childAttributesAreReadFromTheCachedListing()
+        throws IOException
+    {
+        final FtpFileView view = mock(FtpFileView.class);
+        final BasicFileAttributes attributes = mock(BasicFileAttributes.class);
+        when(view.readAttributes()).thenReturn(attributes);
+        when(view.getAccess()).thenReturn(EnumSet.of(AccessMode.READ));
+        when(agent.getDirectoryViews("/dir")).thenReturn(
+            Collections.singletonMap("file", view));
+
+        final List<Path> children = new ArrayList<>();
+        try (
+            final DirectoryStream<Path> stream
+                = Files.newDirectoryStream(fs.getPath("/dir"));
+        ) {
+            for (final Path child: stream) {
+                assertSame(provider.readAttributes(child,
+                    BasicFileAttributes.class), attributes);
+                provider.checkAccess(child, AccessMode.READ);
+                children.add(child);
+            }
+        }
+
+        assertEquals(children, Collections.singletonList(
+            fs.getPath("/dir/file")));
+        verify(agent, never()).getFileView(anyString());
+    }
+
+    @Test
+    public void directoryStreamsReturnTheAcceptedChildren()
+        throws IOException
+    {
+        final FtpFileView view = mock(FtpFileView.class);
+        final Map<String, FtpFileView> listing = new LinkedHashMap<>();
+        listing.put("a.txt", view);
+        listing.put("b.csv", view);
+        listing.put("c.txt", view);
+        when(agent.getDirectoryViews("/dir")).thenReturn(listing);
+
+        final List<Path> children = new ArrayList<>();
+        try (
+            final DirectoryStream<Path> stream = Files.newDirectoryStream(
+                fs.getPath("/dir"), new DirectoryStream.Filter<Path>()
+                {
+                    @Override
+                    public boolean accept(final Path entry)
+                    {
+                        return entry.toString().endsWith(".txt");
+                    }
+                });
+        ) {
+            for (final Path child: stream)
+                children.add(child);
+        }
+
+        assertEquals(children, Arrays.asList(fs.getPath("/dir/a.txt"),
+            fs.getPath("/dir/c.txt")));
+    }
+
+    @Test
+    public void directoryStreamFilterFailuresAreReported()
+        throws IOException
+    {
+        final IOException failure = new IOException();
+        when(agent.getDirectoryViews("/dir")).thenReturn(
+            Collections.singletonMap("file", mock(FtpFileView.class)));
+
+        try (
+            final DirectoryStream<Path> stream = Files.newDirectoryStream(
+                fs.getPath("/dir"), new DirectoryStream.Filter<Path>()
+                {
+                    @Override
+                    public boolean accept(final Path entry)
+                        throws IOException
+                    {
+                        throw failure;
+                    }
+                });
+        ) {
+            stream.iterator().hasNext();
+            fail("No exception thrown!!");
+        } catch (DirectoryIteratorException e) {
+            assertSame(e.getCause(), failure);
+        }
+    }
+
+    @Test
+    public void concurrentAttributeReadsShareOneRequest()
+        throws Exception
+    {
+        final Path path = fs.getPath("/file");
+        final FtpFileView view = mock(FtpFileView.class);
+        final BasicFileAttributes attributes = mock(BasicFileAttributes.class);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(view.readAttributes()).thenReturn(attributes);
+        when(agent.getFileView("/file")).thenAnswer(new Answer<FtpFileView>()
+        {
+            @Override
+            public FtpFileView answer(final InvocationOnMock invocation)
+                throws InterruptedException
+            {
+                release.await();
+                return view;
+            }
+        });
+
+        final ExecutorService executor = Executors.newFixedThreadPool(10);
+        final List<Future<BasicFileAttributes>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < 10; i++)
+                results.add(executor.submit(
+                    new Callable<BasicFileAttributes>()
+                    {
+                        @Override
+                        public BasicFileAttributes call()
+                            throws IOException
+                        {
+                            return provider.readAttributes(path,
+                                BasicFileAttributes.class);
+                        }
+                    }));
+            TimeUnit.MILLISECONDS.sleep(200L);
+            release.countDown();
+            for (final Future<BasicFileAttributes> result: results)
+                assertSame(result.get(), attributes);
+        } finally {
+            executor.shutdown();
+        }
+
+        verify(agent, times(1)).getFileView("/file");
+    }
+
+    @Test
+    public void stagedInputStreamsReuseTheLocalCopy()
+        throws IOException
+    {
+        final byte[] data = "hello".getBytes(StandardCharsets.UTF_8);
+        final FtpFileView view = mock(FtpFileView.class);
+        final BasicFileAttributes attributes = mock(BasicFileAttributes.class);
+        when(attributes.isRegularFile()).thenReturn(true);
+        when(attributes.size()).thenReturn((long) data.length);
+        when(attributes.lastModifiedTime()).thenReturn(FileTime.fromMillis(0L));
+        when(view.readAttributes()).thenReturn(attributes);
+        when(agent.getFileView("/file")).thenReturn(view);
+        when(agent.getInputStream(any(Path.class), anyLong())).thenAnswer(
+            new Answer<FtpInputStream>()
+            {
+                @Override
+                public FtpInputStream answer(
+                    final InvocationOnMock invocation)
+                {
+                    final int offset
+                        = ((Long) invocation.getArguments()[1]).intValue();
+                    return new FtpInputStream(agent, new ByteArrayInputStream(
+                        data, offset, data.length - offset));
+                }
+            });
+
+        final Path path = fs.getPath("/file");
+        for (int i = 0; i < 2; i++)
+            try (
+                final InputStream in
+                    = Files.newInputStream(path, FtpOpenOption.STAGED);
+            ) {
+                final byte[] buf = new byte[data.length];
+                assertEquals(in.read(buf), data.length);
+                assertEquals(buf, data);
+                assertEquals(in.read(), -1);
+            }
+
+        verify(agent, times(1)).getInputStream(any(Path.class), anyLong());
+        final CacheStatistics statistics
+            = provider.getContentCacheStatistics(fs);
+        assertEquals(statistics.getHits(), 1L);
+        assertEquals(statistics.getMisses(), 1L);
+    }
+
+    @Test
+    public void copiesToLocalFilesReplaceThemOnlyIfAsked()
+        throws IOException
+    {
+        final byte[] data = "hello".getBytes(StandardCharsets.UTF_8);
+        stubRemoteFile("/file", data, FileTime.fromMillis(0L));
+        final Path local = Files.createTempFile("ftpfs", null);
+
+        try {
+            try {
+                provider.copy(fs.getPath("/file"), local);
+                fail("No exception thrown!!");
+            } catch (FileAlreadyExistsException e) {
+                assertEquals(e.getFile(), local.toString());
+            }
+            assertEquals(Files.size(local), 0L);
+
+            provider.copy(fs.getPath("/file"), local,
+                StandardCopyOption.REPLACE_EXISTING);
+            assertEquals(Files.readAllBytes(local), data);
+        } finally {
+            Files.delete(local);
+        }
+    }
+
+    @Test
+    public void copiesToLocalFilesCanKeepTheModificationTime()
+        throws IOException
+    {
+        final byte[] data = "hello".getBytes(StandardCharsets.UTF_8);
+        final FileTime mtime = FileTime.fromMillis(1000000000000L);
+        stubRemoteFile("/file", data, mtime);
+        final TransferStatistics statistics = new TransferStatistics();
+        final Path dir = Files.createTempDirectory("ftpfs");
+        final Path local = dir.resolve("file");
+
+        try {
+            provider.copy(fs.getPath("/file"), local,
+                StandardCopyOption.COPY_ATTRIBUTES, statistics);
+            assertEquals(Files.readAllBytes(local), data);
+            assertEquals(Files.getLastModifiedTime(local), mtime);
+            assertEquals(statistics.getBytes(), (long) data.length);
+        } finally {
+            Files.deleteIfExists(local);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void failedCopiesToLocalFilesLeaveNothingBehind()
+        throws IOException
+    {
+        final IOException failure = new IOException();
+        stubRemoteFile("/file", new byte[5], FileTime.fromMillis(0L));
+        when(agent.getInputStream(any(Path.class), anyLong())).thenThrow(
+            failure);
+        final Path dir = Files.createTempDirectory("ftpfs");
+        final Path local = dir.resolve("file");
+
+        try {
+            try {
+                provider.copy(fs.getPath("/file"), local);
+                fail("No exception thrown!!");
+            } catch (IOException e) {
+                assertSame(e, failure);
+            }
+            assertFalse(Files.exists(local));
+        } finally {
+            Files.deleteIfExists(local);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void missingEntriesAreRememberedUntilCreated()
+        throws IOException
+    {
+        final Path path = fs.getPath("/dir");
+        when(agent.getFileView("/dir")).thenThrow(
+            new NoSuchFileException("/dir"));
+
+        assertFalse(Files.exists(path));
+        assertFalse(Files.exists(path));
+        verify(agent, times(1)).getFileView("/dir");
+
+        provider.createDirectory(path);
+        assertFalse(Files.exists(path));
+        verify(agent, times(2)).getFileView("/dir");
+    }
+
+    @Test
+    public void entriesAppearingInAListingAreNotMissingAnymore()
+        throws IOException
+    {
+        final Path path = fs.getPath("/dir/file");
+        final FtpFileView view = mock(FtpFileView.class);
+        when(agent.getFileView("/dir/file")).thenThrow(
+            new NoSuchFileException("/dir/file"));
+        when(agent.getDirectoryViews("/dir")).thenReturn(
+            Collections.singletonMap("file", view));
+
+        assertFalse(Files.exists(path));
+        Files.newDirectoryStream(fs.getPath("/dir")).close();
+
+        assertTrue(Files.exists(path));
+    }
+
+    @Test
+    public void staleListingsAreUsedWhileRefreshedInTheBackground()
+        throws IOException, InterruptedException
+    {
+        final Map<String, String> env = new HashMap<>();
+        env.put("attributeCacheTtl", "50");
+        env.put("listingMaxStaleness", "60000");
+        fs.close();
+        fs = provider.newFileSystem(URI.create("ftp://foo.bar"), env);
+        final Path dir = fs.getPath("/dir");
+        final FtpFileView view = mock(FtpFileView.class);
+        when(agent.getDirectoryViews("/dir"))
+            .thenReturn(Collections.singletonMap("old", view))
+            .thenReturn(Collections.singletonMap("new", view));
+
+        assertEquals(list(dir), Collections.singletonList("old"));
+        TimeUnit.MILLISECONDS.sleep(100L);
+        assertEquals(list(dir), Collections.singletonList("old"));
+
+        List<String> names = list(dir);
+        for (int i = 0; i < 100 && !names.contains("new"); i++) {
+            TimeUnit.MILLISECONDS.sleep(10L);
+            names = list(dir);
+        }
+        assertEquals(names, Collections.singletonList("new"));
+    }
+
+    private void stubRemoteFile(final String name, final byte[] data,
+        final FileTime mtime)
+        throws IOException
+    {
+        final FtpFileView view = mock(FtpFileView.class);
+        final BasicFileAttributes attributes = mock(BasicFileAttributes.class);
+        when(attributes.isRegularFile()).thenReturn(true);
+        when(attributes.size()).thenReturn((long) data.length);
+        when(attributes.lastModifiedTime()).thenReturn(mtime);
+        when(view.readAttributes()).thenReturn(attributes);
+        when(agent.getFileView(name)).thenReturn(view);
+        when(agent.getInputStream(any(Path.class), anyLong())).thenAnswer(
+            new Answer<FtpInputStream>()
+            {
+                @Override
+                public FtpInputStream answer(
+                    final InvocationOnMock invocation)
+                {
+                    final int offset
+                        = ((Long) invocation.getArguments()[1]).intValue();
+                    return new FtpInputStream(agent, new ByteArrayInputStream(
+                        data, offset, data.length - offset));
+                }
+            });
+    }
+
+    private ByteArrayOutputStream stubUpload(final String name)
+        throws IOException
+    {
+        final ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        when(agent.getOutputStream(fs.getPath(name), false)).thenReturn(
+            new FtpOutputStream(agent, ret, 16));
+        return ret;
+    }
+
+    private static List<String> list(final Path dir)
+        throws IOException
+    {
+        final List<String> ret = new ArrayList<>();
+        try (
+            final DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+        ) {
+            for (final Path entry: stream)
+                ret.add(entry.getFileName().toString());
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.cache;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import static org.testng.Assert.*;
+
+public final class BlockCacheTest
+{
+    private static final int BLOCK_SIZE = 16;
+    private static final FileTime MTIME = FileTime.fromMillis(1000L);
+    private static final long SIZE = 100L * BLOCK_SIZE;
+
+    @Test
+    public void capacityMustHoldAtLeastOneBlock()
+    {
+        try {
+            new BlockCache(BLOCK_SIZE, BLOCK_SIZE - 1L);
+            fail("No exception thrown!!");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(),
+                "capacity must be at least the size of one block");
+        }
+    }
+
+    @Test
+    public void readsAreServedFromTheBlockContainingThePosition()
+    {
+        final BlockCache cache = new BlockCache(BLOCK_SIZE, 4L * BLOCK_SIZE);
+        final byte[] block = newBlock(1);
+        cache.put("/file", MTIME, SIZE, 2L, block, 0, BLOCK_SIZE);
+
+        final ByteBuffer buf = ByteBuffer.allocate(100);
+        assertEquals(cache.read("/file", MTIME, SIZE, 2L * BLOCK_SIZE + 4L,
+            buf), BLOCK_SIZE - 4);
+        assertEquals(Arrays.copyOf(buf.array(), buf.position()),
+            Arrays.copyOfRange(block, 4, BLOCK_SIZE));
+        assertEquals(cache.getHits(), 1L);
+    }
+
+    @Test
+    public void blocksOfModifiedFilesAreNotReturned()
+    {
+        final BlockCache cache = new BlockCache(BLOCK_SIZE, 4L * BLOCK_SIZE);
+        cache.put("/file", MTIME, SIZE, 0L, newBlock(1), 0, BLOCK_SIZE);
+
+        assertEquals(cache.read("/file", FileTime.fromMillis(2000L), SIZE, 0L,
+            ByteBuffer.allocate(BLOCK_SIZE)), -1);
+        assertEquals(cache.read("/file", MTIME, SIZE, BLOCK_SIZE,
+            ByteBuffer.allocate(BLOCK_SIZE)), -1);
+        assertEquals(cache.getMisses(), 2L);
+    }
+
+    @Test
+    public void blocksOfRewrittenFilesAreNotReturned()
+    {
+        final BlockCache cache = new BlockCache(BLOCK_SIZE, 4L * BLOCK_SIZE);
+        cache.put("/file", MTIME, SIZE, 0L, newBlock(1), 0, BLOCK_SIZE);
+
+        assertEquals(cache.read("/file", MTIME, SIZE + 1L, 0L,
+            ByteBuffer.allocate(BLOCK_SIZE)), -1);
+        assertEquals(cache.getMisses(), 1L);
+    }
+
+    @Test
+    public void blocksMustMatchTheSizeOfTheFile()
+    {
+        final BlockCache cache = new BlockCache(BLOCK_SIZE, 4L * BLOCK_SIZE);
+        try {
+            cache.put("/file", MTIME, BLOCK_SIZE + 5L, 1L, newBlock(1), 0,
+                BLOCK_SIZE);
+            fail("No exception thrown!!");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "illegal block length "
+                + BLOCK_SIZE);
+        }
+        try {
+            cache.put("/file", MTIME, BLOCK_SIZE + 5L, 2L, newBlock(1), 0, 5);
+            fail("No exception thrown!!");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "illegal block index 2");
+        }
+    }
+
+    @Test
+    public void readsPastTheEndOfAFileDoNotProtectItsLastBlock()
+    {
+        final BlockCache cache = new BlockCache(BLOCK_SIZE, 5L * BLOCK_SIZE);
+        final long size = BLOCK_SIZE + 5L;
+        final ByteBuffer buf = ByteBuffer.allocate(BLOCK_SIZE);
+
+        cache.put("/short", MTIME, size, 1L, newBlock(1), 0, 5);
+        assertEquals(cache.read("/short", MTIME, size, BLOCK_SIZE + 10L, buf),
+            -1);
+        for (int i = 0; i < 100; i++)
+            cache.put("/scan", MTIME, SIZE, i, newBlock(i), 0, BLOCK_SIZE);
+
+        assertEquals(cache.read("/short", MTIME, size, BLOCK_SIZE + 2L, buf),
+            -1);
+        assertEquals(cache.getHits(), 0L);
+    }
+
+    @Test
+    public void scansDoNotEvictBlocksReadRepeatedly()
+    {
+        final BlockCache cache = new BlockCache(BLOCK_SIZE, 5L * BLOCK_SIZE);
+        final ByteBuffer buf = ByteBuffer.allocate(BLOCK_SIZE);
+
+        cache.put("/hot", MTIME, SIZE, 0L, newBlock(1), 0, BLOCK_SIZE);
+        cache.read("/hot", MTIME, SIZE, 0L, buf);
+        for (int i = 0; i < 100; i++)
+            cache.put("/scan", MTIME, SIZE, i, newBlock(i), 0, BLOCK_SIZE);
+
+        buf.clear();
+        assertEquals(cache.read("/hot", MTIME, SIZE, 0L, buf), BLOCK_SIZE);
+        assertEquals(buf.array(), newBlock(1));
+        assertEquals(cache.getBlocks(), 5);
+    }
+
+    private static byte[] newBlock(final int seed)
+    {
+        final byte[] ret = new byte[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE; i++)
+            ret[i] = (byte) (seed * 31 + i);
+        return ret;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.cache;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+public final class PathCacheTest
+{
+    @Test
+    public void entriesExpire()
+        throws InterruptedException
+    {
+        final PathCache<String> cache
+            = new PathCache<>(50L, TimeUnit.MILLISECONDS, 10);
+
+        cache.put("/a", "a");
+        assertEquals(cache.get("/a"), "a");
+
+        TimeUnit.MILLISECONDS.sleep(100L);
+        assertNull(cache.get("/a"));
+        assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted()
+    {
+        final PathCache<String> cache
+            = new PathCache<>(1L, TimeUnit.MINUTES, 2);
+
+        cache.put("/a", "a");
+        cache.put("/b", "b");
+        cache.get("/a");
+        cache.put("/c", "c");
+
+        assertEquals(cache.get("/a"), "a");
+        assertNull(cache.get("/b"));
+        assertEquals(cache.get("/c"), "c");
+    }
+
+    @Test
+    public void invalidatingATreeOnlyRemovesEntriesBelowIt()
+    {
+        final PathCache<String> cache
+            = new PathCache<>(1L, TimeUnit.MINUTES, 10);
+
+        cache.put("/a", "a");
+        cache.put("/a/b", "b");
+        cache.put("/ab", "ab");
+        cache.invalidateTree("/a");
+
+        assertNull(cache.get("/a"));
+        assertNull(cache.get("/a/b"));
+        assertEquals(cache.get("/ab"), "ab");
+    }
+
+    @Test
+    public void zeroTimeToLiveDisablesTheCache()
+    {
+        final PathCache<String> cache
+            = new PathCache<>(0L, TimeUnit.MILLISECONDS, 10);
+
+        cache.put("/a", "a");
+        assertNull(cache.get("/a"));
+    }
+
+    @Test
+    public void expiredEntriesAreKeptForTheMaximumStaleness()
+        throws InterruptedException
+    {
+        final PathCache<String> cache
+            = new PathCache<>(50L, 200L, TimeUnit.MILLISECONDS, 10);
+
+        cache.put("/a", "a");
+        assertEquals(cache.getStale("/a"), "a");
+
+        TimeUnit.MILLISECONDS.sleep(100L);
+        assertNull(cache.get("/a"));
+        assertEquals(cache.getStale("/a"), "a");
+
+        TimeUnit.MILLISECONDS.sleep(200L);
+        assertNull(cache.getStale("/a"));
+        assertEquals(cache.size(), 0);
+    }
+}
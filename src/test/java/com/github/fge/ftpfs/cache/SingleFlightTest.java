@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.cache;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+public final class SingleFlightTest
+{
+    private static final int CALLERS = 10;
+
+    @Test
+    public void concurrentCallersShareOneOperation()
+        throws Exception
+    {
+        final SingleFlight<String> flight = new SingleFlight<>();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> operation = new Callable<String>()
+        {
+            @Override
+            public String call()
+                throws Exception
+            {
+                calls.incrementAndGet();
+                release.await();
+                return "result";
+            }
+        };
+
+        final List<Future<String>> results = callConcurrently(flight,
+            operation, release);
+
+        for (final Future<String> result: results)
+            assertEquals(result.get(), "result");
+        assertEquals(calls.get(), 1);
+        assertEquals(flight.getInFlight(), 0);
+    }
+
+    @Test
+    public void failuresAreGivenToAllCallers()
+        throws Exception
+    {
+        final SingleFlight<String> flight = new SingleFlight<>();
+        final IOException e = new IOException();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> operation = new Callable<String>()
+        {
+            @Override
+            public String call()
+                throws Exception
+            {
+                release.await();
+                throw e;
+            }
+        };
+
+        final List<Future<String>> results = callConcurrently(flight,
+            operation, release);
+
+        for (final Future<String> result: results)
+            try {
+                result.get();
+                fail("No exception thrown!!");
+            } catch (ExecutionException actual) {
+                assertSame(actual.getCause(), e);
+            }
+    }
+
+    @Test
+    public void completedOperationsAreNotReused()
+        throws IOException
+    {
+        final SingleFlight<Integer> flight = new SingleFlight<>();
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<Integer> operation = new Callable<Integer>()
+        {
+            @Override
+            public Integer call()
+            {
+                return calls.incrementAndGet();
+            }
+        };
+
+        assertEquals(flight.execute("/file", operation).intValue(), 1);
+        assertEquals(flight.execute("/file", operation).intValue(), 2);
+    }
+
+    /*
+     * Start all callers, wait for all of them to have joined the operation
+     * in flight, then let the operation complete
+     */
+    private static <V> List<Future<V>> callConcurrently(
+        final SingleFlight<V> flight, final Callable<V> operation,
+        final CountDownLatch release)
+        throws InterruptedException
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+        final CountDownLatch started = new CountDownLatch(CALLERS);
+        final List<Future<V>> ret = new ArrayList<>();
+        try {
+            for (int i = 0; i < CALLERS; i++)
+                ret.add(executor.submit(new Callable<V>()
+                {
+                    @Override
+                    public V call()
+                        throws IOException
+                    {
+                        started.countDown();
+                        return flight.execute("/dir", operation);
+                    }
+                }));
+            started.await();
+            TimeUnit.MILLISECONDS.sleep(100L);
+            release.countDown();
+            for (final Future<V> future: ret)
+                try {
+                    future.get();
+                } catch (ExecutionException ignored) {
+                }
+        } finally {
+            executor.shutdown();
+        }
+        return ret;
+    }
+}
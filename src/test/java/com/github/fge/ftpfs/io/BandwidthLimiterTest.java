@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package com.github.fge.ftpfs.io;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+public final class BandwidthLimiterTest
+{
+    private static final long RATE = 100L * 1024L;
+
+    @Test
+    public void rateIsEnforcedOnceBurstIsExhausted()
+        throws IOException
+    {
+        final BandwidthLimiter limiter = new BandwidthLimiter(RATE);
+        final long start = System.nanoTime();
+
+        // One second of burst, then half a second worth of data
+        limiter.acquire((int) RATE);
+        limiter.acquire((int) RATE / 2);
+
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+            - start);
+        assertTrue(elapsed >= 400L, "elapsed: " + elapsed + " ms");
+    }
+
+    @Test
+    public void throttledStreamsShareTheLimiter()
+        throws IOException, InterruptedException
+    {
+        final BandwidthLimiter limiter = new BandwidthLimiter(RATE);
+        limiter.acquire((int) RATE);
+
+        final byte[] data = new byte[(int) RATE / 4];
+        final long[] durations = new long[2];
+        final Thread[] threads = new Thread[2];
+
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    final long start = System.nanoTime();
+                    final byte[] buf = new byte[8192];
+                    try (
+                        final InputStream in = ThrottledInputStream.wrap(
+                            new ByteArrayInputStream(data),
+                            Arrays.asList(limiter));
+                    ) {
+                        while (in.read(buf) != -1)
+                            ;
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    durations[index] = System.nanoTime() - start;
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread: threads)
+            thread.join();
+
+        // Both streams read half a second worth of data together; both should
+        // end close to the end
+        for (final long duration: durations)
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(duration) >= 350L,
+                "duration: " + TimeUnit.NANOSECONDS.toMillis(duration));
+    }
+
+    @Test
+    public void noLimitersMeansNoWrapping()
+    {
+        final InputStream in = new ByteArrayInputStream(new byte[1]);
+        assertSame(ThrottledInputStream.wrap(in,
+            Arrays.<BandwidthLimiter>asList()), in);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import com.github.fge.ftpfs.FtpFileSystemProvider;
+import com.github.fge.ftpfs.io.commonsnetimpl.CommonsNetFtpAgentFactory;
+import com.github.fge.ftpfs.server.FtpServers;
+import com.github.fge.ftpfs.server.InMemoryUserManager;
+import com.github.fge.ftpfs.server.TemporaryFileSystem;
+import org.apache.ftpserver.FtpServer;
+import org.apache.ftpserver.listener.Listener;
+import org.apache.ftpserver.listener.ListenerFactory;
+import org.apache.mina.transport.socket.SocketAcceptor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Files per second uploaded by {@link BatchStore}, against a naive loop
+ *
+ * <p>Usage: {@code BatchStoreBenchmark [files [fileSize [uri]]]}. Without a
+ * URI, an embedded server is started on port 2121; since round trips are
+ * almost free on the loopback interface, use a remote server to see the
+ * full effect of pipelining.</p>
+ */
+public final class BatchStoreBenchmark
+{
+    private static final int PORT = 2121;
+    private static final int ROUNDS = 3;
+
+    private BatchStoreBenchmark()
+    {
+    }
+
+    public static void main(final String... args)
+        throws Exception
+    {
+        final int files = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int fileSize = args.length > 1 ? Integer.parseInt(args[1])
+            : 2048;
+
+        FtpServer server = null;
+        TemporaryFileSystem tfs = null;
+        final URI uri;
+        if (args.length > 2) {
+            uri = URI.create(args[2]);
+        } else {
+            tfs = new TemporaryFileSystem();
+            final ListenerFactory factory = new ListenerFactory();
+            factory.setPort(PORT);
+            final Listener listener = factory.createListener();
+            server = FtpServers.createServer(tfs, listener);
+            server.start();
+            disableNagle(listener);
+            uri = URI.create("ftp://localhost:" + PORT);
+        }
+
+        final FtpFileSystemProvider provider
+            = new FtpFileSystemProvider(new CommonsNetFtpAgentFactory());
+        final Map<String, String> env = new HashMap<>();
+        env.put("username", InMemoryUserManager.USERNAME);
+        env.put("password", InMemoryUserManager.PASSWORD);
+
+        try (
+            final FileSystem fs = provider.newFileSystem(uri, env);
+        ) {
+            final byte[] data = new byte[fileSize];
+            new Random(0L).nextBytes(data);
+            final Map<Path, byte[]> batch = new LinkedHashMap<>();
+            for (int i = 0; i < files; i++)
+                batch.put(fs.getPath("/bench-" + i), data);
+
+            for (int round = 1; round <= ROUNDS; round++) {
+                report("naive loop", round, files, naiveLoop(batch));
+                report("batch", round, files, batch(provider, batch));
+            }
+        } finally {
+            if (server != null)
+                server.stop();
+            if (tfs != null)
+                tfs.delete();
+        }
+    }
+
+    /*
+     * Production servers usually disable Nagle's algorithm on the control
+     * connection; the embedded server does not, and does not allow to
+     * configure it. Without this, two replies in a row stall until the
+     * client acknowledges the first one, which a pipelining client does
+     * late.
+     */
+    private static void disableNagle(final Listener listener)
+        throws ReflectiveOperationException
+    {
+        final Field field = listener.getClass().getDeclaredField("acceptor");
+        field.setAccessible(true);
+        ((SocketAcceptor) field.get(listener)).getSessionConfig()
+            .setTcpNoDelay(true);
+    }
+
+    private static long naiveLoop(final Map<Path, byte[]> files)
+        throws IOException
+    {
+        final long start = System.nanoTime();
+        for (final Map.Entry<Path, byte[]> entry: files.entrySet())
+            try (
+                final OutputStream out
+                    = Files.newOutputStream(entry.getKey());
+            ) {
+                out.write(entry.getValue());
+            }
+        return System.nanoTime() - start;
+    }
+
+    private static long batch(final FtpFileSystemProvider provider,
+        final Map<Path, byte[]> files)
+        throws IOException
+    {
+        final long start = System.nanoTime();
+        final Map<Path, IOException> failures = provider.storeFiles(files);
+        final long ret = System.nanoTime() - start;
+        if (!failures.isEmpty())
+            throw new IOException(failures.size() + " uploads failed",
+                failures.values().iterator().next());
+        return ret;
+    }
+
+    private static void report(final String name, final int round,
+        final int files, final long nanos)
+    {
+        System.out.printf("%-10s round %d: %d files in %d ms, %.1f files/s%n",
+            name, round, files, nanos / 1000000L, files * 1e9 / nanos);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import com.github.fge.ftpfs.FtpConfiguration;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public final class BatchStoreTest
+{
+    private FtpAgent agent;
+    private BatchStore batch;
+
+    @Captor
+    private ArgumentCaptor<Map<String, byte[]>> captor;
+
+    @BeforeMethod
+    public void init()
+        throws IOException
+    {
+        MockitoAnnotations.initMocks(this);
+        final FtpAgentFactory factory = mock(FtpAgentFactory.class);
+        final FtpConfiguration cfg
+            = FtpConfiguration.newBuilder().setHostname("foo").build();
+        final FtpAgentQueue queue = new FtpAgentQueue(factory, cfg, 1);
+        final FtpAgent mockAgent = mock(FtpAgent.class);
+        agent = mockAgent;
+        when(factory.get(same(queue), same(cfg))).thenReturn(agent);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+            {
+                queue.pushBack(mockAgent);
+                return null;
+            }
+        }).when(agent).close();
+        batch = new BatchStore(queue);
+    }
+
+    @Test
+    public void filesAreUploadedInOrderOnOneAgent()
+        throws IOException
+    {
+        final Map<String, IOException> failures
+            = Collections.singletonMap("/b", new IOException());
+        when(agent.storeBatch(anyMapOf(String.class, byte[].class)))
+            .thenReturn(failures);
+
+        batch.add("/c", new byte[3]);
+        batch.add("/a", new byte[1]);
+        batch.add("/b", new byte[2]);
+
+        assertSame(batch.run(), failures);
+        verify(agent).storeBatch(captor.capture());
+        verify(agent).close();
+        assertEquals(new ArrayList<>(captor.getValue().keySet()),
+            Arrays.asList("/c", "/a", "/b"));
+        assertEquals(batch.getQueuedFiles(), 0);
+        assertEquals(batch.getQueuedBytes(), 0L);
+    }
+
+    @Test
+    public void replacingAFileReplacesItsContents()
+    {
+        batch.add("/a", new byte[10]);
+        batch.add("/a", new byte[4]);
+
+        assertEquals(batch.getQueuedFiles(), 1);
+        assertEquals(batch.getQueuedBytes(), 4L);
+    }
+
+    @Test
+    public void filesAreKeptQueuedOnIOError()
+        throws IOException
+    {
+        final IOException e = new IOException();
+        when(agent.storeBatch(anyMapOf(String.class, byte[].class)))
+            .thenThrow(e);
+
+        batch.add("/a", new byte[10]);
+        batch.add("/b", new byte[20]);
+
+        try {
+            batch.run();
+            fail("No exception thrown!!");
+        } catch (IOException actual) {
+            assertSame(actual, e);
+        }
+        verify(agent).close();
+        assertEquals(batch.getQueuedFiles(), 2);
+        assertEquals(batch.getQueuedBytes(), 30L);
+    }
+
+    @Test
+    public void emptyBatchDoesNotTakeAnAgent()
+        throws IOException
+    {
+        assertTrue(batch.run().isEmpty());
+        verifyZeroInteractions(agent);
+    }
+}
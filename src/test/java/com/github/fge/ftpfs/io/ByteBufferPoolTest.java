@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.testng.Assert.*;
+
+public final class ByteBufferPoolTest
+{
+    @Test
+    public void capacityMustHoldAtLeastOneBuffer()
+    {
+        try {
+            new ByteBufferPool(1024, 1023L);
+            fail("No exception thrown!!");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(),
+                "capacity must be at least the size of one buffer");
+        }
+    }
+
+    @Test
+    public void buffersHaveTheRequestedSizeAndAreCleared()
+        throws IOException
+    {
+        final ByteBufferPool pool = new ByteBufferPool(1024, 4096L);
+        final ByteBuffer buffer = pool.acquire();
+
+        assertEquals(buffer.capacity(), 1024);
+        assertEquals(buffer.remaining(), 1024);
+        assertTrue(buffer.hasArray());
+    }
+
+    @Test
+    public void memoryCapIsEnforced()
+        throws IOException
+    {
+        final ByteBufferPool pool = new ByteBufferPool(1024, 2048L);
+        final ByteBuffer buffer = pool.acquire();
+
+        assertNotNull(pool.tryAcquire());
+        assertNull(pool.tryAcquire());
+        assertEquals(pool.getAvailableBuffers(), 0);
+
+        pool.release(buffer);
+        assertEquals(pool.getAvailableBuffers(), 1);
+        assertSame(pool.tryAcquire(), buffer);
+    }
+
+    @Test
+    public void releasedBuffersAreCleared()
+        throws IOException
+    {
+        final ByteBufferPool pool = new ByteBufferPool(1024, 1024L);
+        final ByteBuffer buffer = pool.acquire();
+
+        buffer.put(new byte[10]).flip();
+        pool.release(buffer);
+
+        assertEquals(pool.acquire().remaining(), 1024);
+    }
+
+    @Test
+    public void buffersAreCarvedOutOfSlabs()
+        throws IOException
+    {
+        final ByteBufferPool pool = new ByteBufferPool(1024, 4096L);
+        final ByteBuffer buffer1 = pool.acquire();
+        final ByteBuffer buffer2 = pool.acquire();
+
+        assertSame(buffer1.array(), buffer2.array());
+        assertNotEquals(buffer1.arrayOffset(), buffer2.arrayOffset());
+    }
+
+    @Test
+    public void foreignBuffersAreRejected()
+    {
+        final ByteBufferPool pool = new ByteBufferPool(1024, 4096L);
+
+        try {
+            pool.release(ByteBuffer.allocate(512));
+            fail("No exception thrown!!");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "buffer does not belong to this pool");
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import com.github.fge.ftpfs.FtpConfiguration;
+import com.github.fge.ftpfs.cache.BlockCache;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public final class FtpAsynchronousFileChannelTest
+{
+    private static final int SIZE = 1000;
+
+    private final byte[] data = new byte[SIZE];
+
+    private FtpAgent agent;
+    private FtpAgentQueue queue;
+    private Path path;
+
+    @BeforeMethod
+    public void init()
+        throws IOException
+    {
+        for (int i = 0; i < SIZE; i++)
+            data[i] = (byte) i;
+        final FtpAgentFactory factory = mock(FtpAgentFactory.class);
+        final FtpConfiguration cfg
+            = FtpConfiguration.newBuilder().setHostname("foo").build();
+        agent = mock(FtpAgent.class);
+        path = mock(Path.class);
+        queue = new FtpAgentQueue(factory, cfg, 1);
+        when(factory.get(same(queue), same(cfg))).thenReturn(agent);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+            {
+                queue.pushBack(agent);
+                return null;
+            }
+        }).when(agent).close();
+        when(agent.getInputStream(same(path), anyLong())).thenAnswer(
+            new Answer<FtpInputStream>()
+            {
+                @Override
+                public FtpInputStream answer(
+                    final InvocationOnMock invocation)
+                {
+                    final int offset
+                        = ((Long) invocation.getArguments()[1]).intValue();
+                    return new FtpInputStream(agent,
+                        new ByteArrayInputStream(data, offset, SIZE - offset));
+                }
+            });
+    }
+
+    @Test
+    public void positionedReadsCompleteFutures()
+        throws IOException, InterruptedException, ExecutionException
+    {
+        final ByteBuffer buf = ByteBuffer.allocate(100);
+
+        try (
+            final AsynchronousFileChannel channel
+                = new FtpAsynchronousFileChannel(queue, path, SIZE, null);
+        ) {
+            assertEquals(channel.read(buf, 500L).get().intValue(), 100);
+            assertEquals(buf.array(), Arrays.copyOfRange(data, 500, 600));
+            buf.clear();
+            assertEquals(channel.read(buf, 950L).get().intValue(), 50);
+            buf.clear();
+            assertEquals(channel.read(buf, SIZE).get().intValue(), -1);
+        }
+
+        verify(agent).getInputStream(same(path), eq(500L));
+        verify(agent).getInputStream(same(path), eq(950L));
+    }
+
+    @Test
+    public void readsCompleteCompletionHandlers()
+        throws IOException, InterruptedException
+    {
+        final ByteBuffer buf = ByteBuffer.allocateDirect(10);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Integer> result = new AtomicReference<>();
+
+        try (
+            final AsynchronousFileChannel channel
+                = new FtpAsynchronousFileChannel(queue, path, SIZE, null);
+        ) {
+            channel.read(buf, 20L, latch,
+                new CompletionHandler<Integer, CountDownLatch>()
+                {
+                    @Override
+                    public void completed(final Integer n,
+                        final CountDownLatch attachment)
+                    {
+                        result.set(n);
+                        attachment.countDown();
+                    }
+
+                    @Override
+                    public void failed(final Throwable exc,
+                        final CountDownLatch attachment)
+                    {
+                        attachment.countDown();
+                    }
+                });
+            assertTrue(latch.await(5L, TimeUnit.SECONDS));
+        }
+
+        assertEquals(result.get(), Integer.valueOf(10));
+        buf.flip();
+        for (int i = 0; i < 10; i++)
+            assertEquals(buf.get(), data[20 + i]);
+    }
+
+    @Test
+    public void sequentialReadsReuseTheDataConnection()
+        throws IOException, InterruptedException, ExecutionException
+    {
+        final ByteBuffer buf = ByteBuffer.allocate(100);
+
+        try (
+            final AsynchronousFileChannel channel
+                = new FtpAsynchronousFileChannel(queue, path, SIZE, null);
+        ) {
+            for (long position = 0L; position < SIZE; position += 100L) {
+                buf.clear();
+                assertEquals(channel.read(buf, position).get().intValue(),
+                    100);
+                assertEquals(buf.array(), Arrays.copyOfRange(data,
+                    (int) position, (int) position + 100));
+            }
+        }
+
+        verify(agent, times(1)).getInputStream(same(path), anyLong());
+    }
+
+    @Test
+    public void blocksAreDownloadedOnceForAllChannels()
+        throws IOException, InterruptedException, ExecutionException
+    {
+        final BlockCache blockCache = new BlockCache(100, 1000L);
+        final FileTime lastModified = FileTime.fromMillis(0L);
+        final ByteBuffer buf = ByteBuffer.allocate(10);
+
+        for (int i = 0; i < 2; i++)
+            try (
+                final AsynchronousFileChannel channel
+                    = new FtpAsynchronousFileChannel(queue, path, SIZE, null,
+                        blockCache, lastModified);
+            ) {
+                buf.clear();
+                assertEquals(channel.read(buf, 255L).get().intValue(), 10);
+                assertEquals(buf.array(), Arrays.copyOfRange(data, 255, 265));
+            }
+
+        verify(agent, times(1)).getInputStream(same(path), anyLong());
+        verify(agent).getInputStream(same(path), eq(200L));
+        assertEquals(blockCache.getHits(), 1L);
+    }
+
+    @Test
+    public void failuresAreReportedAndAgentIsReturned()
+        throws IOException, InterruptedException
+    {
+        final IOException e = new IOException();
+        when(agent.getInputStream(same(path), anyLong())).thenThrow(e);
+
+        try (
+            final AsynchronousFileChannel channel
+                = new FtpAsynchronousFileChannel(queue, path, SIZE, null);
+        ) {
+            channel.read(ByteBuffer.allocate(10), 0L).get();
+            fail("No exception thrown!!");
+        } catch (ExecutionException actual) {
+            assertSame(actual.getCause(), e);
+        }
+
+        assertEquals(queue.getAvailableAgents(), 1);
+    }
+
+    @Test
+    public void closedChannelRejectsReads()
+        throws IOException, InterruptedException
+    {
+        final AsynchronousFileChannel channel
+            = new FtpAsynchronousFileChannel(queue, path, SIZE, null);
+        channel.close();
+
+        try {
+            channel.read(ByteBuffer.allocate(10), 0L).get();
+            fail("No exception thrown!!");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ClosedChannelException);
+        }
+    }
+
+    @Test
+    public void closingDuringAReadReturnsTheAgent()
+        throws IOException, InterruptedException
+    {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(agent.getInputStream(same(path), anyLong())).thenReturn(
+            new FtpInputStream(agent, new ByteArrayInputStream(data)
+            {
+                @Override
+                public synchronized int read(final byte[] b, final int off,
+                    final int len)
+                {
+                    reading.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return super.read(b, off, len);
+                }
+            }));
+
+        final AsynchronousFileChannel channel
+            = new FtpAsynchronousFileChannel(queue, path, SIZE, null);
+        final Future<Integer> future = channel.read(ByteBuffer.allocate(10),
+            0L);
+        reading.await();
+        channel.close();
+        release.countDown();
+
+        try {
+            future.get();
+            fail("No exception thrown!!");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AsynchronousCloseException);
+        }
+        assertEquals(queue.getAvailableAgents(), 1);
+    }
+
+    @Test(expectedExceptions = NonWritableChannelException.class)
+    public void channelIsReadOnly()
+        throws IOException
+    {
+        try (
+            final AsynchronousFileChannel channel
+                = new FtpAsynchronousFileChannel(queue, path, SIZE, null);
+        ) {
+            channel.write(ByteBuffer.allocate(10), 0L);
+        }
+    }
+}
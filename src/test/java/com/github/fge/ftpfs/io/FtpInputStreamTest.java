@@ -18,12 +18,18 @@
 
 package com.github.fge.ftpfs.io;
 
+import com.github.fge.ftpfs.FtpConfiguration;
 import org.mockito.InOrder;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 import static org.mockito.Mockito.*;
 import static org.testng.Assert.*;
@@ -117,4 +123,110 @@ public final class FtpInputStreamTest
         }
 
     }
+
+    @Test
+    public void resumableStreamResumesAtCurrentOffset()
+        throws IOException
+    {
+        final byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        final InputStream broken = new InputStream()
+        {
+            private int pos = 0;
+
+            @Override
+            public int read()
+                throws IOException
+            {
+                if (pos == 40)
+                    throw new IOException("connection reset");
+                return data[pos++] & 0xff;
+            }
+        };
+        final FtpAgent agent2 = mock(FtpAgent.class);
+        final FtpAgentQueue queue = queueOf(agent2);
+        final Path path = mock(Path.class);
+        when(agent2.getInputStream(path, 40L)).thenReturn(
+            new FtpInputStream(agent2,
+                new ByteArrayInputStream(data, 40, 60)));
+
+        final RetryPolicy policy = new RetryPolicy(1, 0L, TimeUnit.SECONDS);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[16];
+        int n;
+
+        try (
+            final FtpInputStream in = new FtpInputStream(agent, broken, queue,
+                path, 0L, policy);
+        ) {
+            while ((n = in.read(buf)) != -1)
+                out.write(buf, 0, n);
+            assertEquals(in.getOffset(), 100L);
+        }
+
+        assertTrue(Arrays.equals(out.toByteArray(), data));
+        verify(agent).close();
+        verify(agent2).getInputStream(path, 40L);
+        verify(agent2).completeTransfer();
+    }
+
+    @Test
+    public void failuresPropagateWhenNoRetriesAreLeft()
+        throws IOException
+    {
+        final IOException e = new IOException();
+        final FtpAgent agent2 = mock(FtpAgent.class);
+        final FtpAgentQueue queue = queueOf(agent2);
+        final Path path = mock(Path.class);
+        when(stream.read(any(byte[].class), anyInt(), anyInt())).thenThrow(e);
+
+        final FtpInputStream in = new FtpInputStream(agent, stream, queue,
+            path, 0L, RetryPolicy.NONE);
+
+        try {
+            in.read(new byte[16]);
+            fail("No exception thrown!!");
+        } catch (IOException actual) {
+            assertSame(actual, e);
+        }
+        verify(agent2, never()).getInputStream(any(Path.class), anyLong());
+    }
+
+    @Test
+    public void incompleteTransferAtEndOfStreamIsResumed()
+        throws IOException
+    {
+        final FtpAgent agent2 = mock(FtpAgent.class);
+        final FtpAgentQueue queue = queueOf(agent2);
+        final Path path = mock(Path.class);
+        final RetryPolicy policy = new RetryPolicy(1, 0L, TimeUnit.SECONDS);
+        doThrow(new IOException()).when(agent).completeTransfer();
+        when(agent2.getInputStream(path, 3L)).thenReturn(
+            new FtpInputStream(agent2,
+                new ByteArrayInputStream(new byte[] { 4, 5 })));
+
+        final FtpInputStream in = new FtpInputStream(agent,
+            new ByteArrayInputStream(new byte[] { 1, 2, 3 }), queue, path, 0L,
+            policy);
+
+        final byte[] buf = new byte[5];
+        assertEquals(in.read(buf), 3);
+        assertEquals(in.read(buf, 3, 2), 2);
+        assertEquals(in.read(), -1);
+        in.close();
+
+        assertEquals(buf, new byte[] { 1, 2, 3, 4, 5 });
+        verify(agent, times(1)).completeTransfer();
+    }
+
+    private static FtpAgentQueue queueOf(final FtpAgent agent)
+    {
+        final FtpAgentFactory factory = mock(FtpAgentFactory.class);
+        final FtpConfiguration cfg
+            = FtpConfiguration.newBuilder().setHostname("foo").build();
+        final FtpAgentQueue queue = new FtpAgentQueue(factory, cfg, 1);
+        when(factory.get(queue, cfg)).thenReturn(agent);
+        return queue;
+    }
 }
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package com.github.fge.ftpfs.io;
+
+import com.github.fge.ftpfs.FtpConfiguration;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public final class FtpOutputStreamTest
+{
+    private static final int BUFSIZE = 100;
+
+    private FtpAgent agent;
+    private OutputStream stream;
+    private ByteArrayOutputStream sink;
+
+    @BeforeMethod
+    public void init()
+        throws IOException
+    {
+        agent = mock(FtpAgent.class);
+        sink = new ByteArrayOutputStream();
+        stream = mock(OutputStream.class);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+            {
+                final Object[] args = invocation.getArguments();
+                sink.write((byte[]) args[0], (Integer) args[1],
+                    (Integer) args[2]);
+                return null;
+            }
+        }).when(stream).write(any(byte[].class), anyInt(), anyInt());
+    }
+
+    @Test
+    public void smallWritesAreBuffered()
+        throws IOException
+    {
+        final OutputStream out = new FtpOutputStream(agent, stream, BUFSIZE);
+
+        for (int i = 0; i < 10; i++)
+            out.write(new byte[10]);
+        verify(stream, never()).write(any(byte[].class), anyInt(), anyInt());
+
+        out.write(1);
+        verify(stream).write(any(byte[].class), eq(0), eq(BUFSIZE));
+        out.close();
+
+        assertEquals(sink.size(), BUFSIZE + 1);
+    }
+
+    @Test
+    public void dataIsWrittenUnchanged()
+        throws IOException
+    {
+        final byte[] data = new byte[10000];
+        new Random(42L).nextBytes(data);
+
+        try (
+            final OutputStream out
+                = new FtpOutputStream(agent, stream, BUFSIZE);
+        ) {
+            int off = 0;
+            int len = 1;
+            while (off < data.length) {
+                len = Math.min((len * 3) % 257 + 1, data.length - off);
+                out.write(data, off, len);
+                off += len;
+            }
+        }
+
+        assertEquals(sink.toByteArray(), data);
+    }
+
+    @Test
+    public void closeCompletesTransferAndReleasesAgentOnce()
+        throws IOException
+    {
+        final OutputStream out = new FtpOutputStream(agent, stream, BUFSIZE);
+
+        out.close();
+        out.close();
+
+        verify(stream).close();
+        verify(agent).completeTransfer();
+        verify(agent).close();
+    }
+
+    @Test
+    public void incompleteTransferIsReportedOnClose()
+        throws IOException
+    {
+        final IOException e = new IOException();
+        doThrow(e).when(agent).completeTransfer();
+
+        final OutputStream out = new FtpOutputStream(agent, stream, BUFSIZE);
+        try {
+            out.close();
+            fail("No exception thrown!!");
+        } catch (IOException actual) {
+            assertSame(actual, e);
+        }
+
+        verify(agent).close();
+    }
+
+    @Test
+    public void cannotWriteToClosedStream()
+        throws IOException
+    {
+        final OutputStream out = new FtpOutputStream(agent, stream, BUFSIZE);
+        out.close();
+
+        try {
+            out.write(1);
+            fail("No exception thrown!!");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "stream closed");
+        }
+    }
+
+    @Test
+    public void failedUploadIsResumedFromRemoteSize()
+        throws IOException
+    {
+        final byte[] data = new byte[1000];
+        new Random(42L).nextBytes(data);
+        final ByteArrayOutputStream first = new ByteArrayOutputStream();
+        final ByteArrayOutputStream second = new ByteArrayOutputStream();
+        final FtpAgent agent2 = mock(FtpAgent.class);
+        final FtpAgentQueue queue = queueOf(agent2);
+        final Path path = mock(Path.class);
+        when(path.toString()).thenReturn("/foo");
+        when(agent2.getSize("/foo")).thenReturn(333L);
+        when(agent2.getOutputStream(path, true)).thenReturn(
+            new FtpOutputStream(agent2, second, BUFSIZE));
+
+        final RetryPolicy policy = new RetryPolicy(1, 0L, TimeUnit.SECONDS);
+        try (
+            final OutputStream out = new FtpOutputStream(agent,
+                new BrokenOutputStream(first, 333), BUFSIZE, queue, path,
+                policy, 4 * BUFSIZE);
+        ) {
+            for (int off = 0; off < data.length; off += 10)
+                out.write(data, off, 10);
+        }
+
+        first.write(second.toByteArray());
+        assertEquals(first.toByteArray(), data);
+        verify(agent).close();
+        verify(agent2).completeTransfer();
+    }
+
+    @Test
+    public void failedAppendIsResumedAfterTheExistingContents()
+        throws IOException
+    {
+        final byte[] data = new byte[1000];
+        new Random(42L).nextBytes(data);
+        final ByteArrayOutputStream first = new ByteArrayOutputStream();
+        final ByteArrayOutputStream second = new ByteArrayOutputStream();
+        final FtpAgent agent2 = mock(FtpAgent.class);
+        final FtpAgentQueue queue = queueOf(agent2);
+        final Path path = mock(Path.class);
+        when(path.toString()).thenReturn("/foo");
+        when(agent2.getSize("/foo")).thenReturn(5000L + 333L);
+        when(agent2.getOutputStream(path, true)).thenReturn(
+            new FtpOutputStream(agent2, second, BUFSIZE));
+
+        final RetryPolicy policy = new RetryPolicy(1, 0L, TimeUnit.SECONDS);
+        try (
+            final OutputStream out = new FtpOutputStream(agent,
+                new BrokenOutputStream(first, 333), BUFSIZE, queue, path,
+                policy, 4 * BUFSIZE, 5000L);
+        ) {
+            for (int off = 0; off < data.length; off += 10)
+                out.write(data, off, 10);
+        }
+
+        first.write(second.toByteArray());
+        assertEquals(first.toByteArray(), data);
+        verify(agent2).completeTransfer();
+    }
+
+    @Test
+    public void uploadFailsIfServerLostMoreThanReplayBuffer()
+        throws IOException
+    {
+        final FtpAgent agent2 = mock(FtpAgent.class);
+        final FtpAgentQueue queue = queueOf(agent2);
+        final Path path = mock(Path.class);
+        when(path.toString()).thenReturn("/foo");
+        when(agent2.getSize("/foo")).thenReturn(0L);
+
+        final RetryPolicy policy = new RetryPolicy(1, 0L, TimeUnit.SECONDS);
+        final OutputStream out = new FtpOutputStream(agent,
+            new BrokenOutputStream(sink, 500), BUFSIZE, queue, path, policy,
+            BUFSIZE);
+
+        try {
+            out.write(new byte[1000]);
+            fail("No exception thrown!!");
+        } catch (IOException e) {
+            assertTrue(e.getSuppressed()[0].getMessage()
+                .startsWith("cannot resume upload"));
+        }
+        verify(agent2, never()).getOutputStream(any(Path.class), anyBoolean());
+    }
+
+    private static FtpAgentQueue queueOf(final FtpAgent agent)
+    {
+        final FtpAgentFactory factory = mock(FtpAgentFactory.class);
+        final FtpConfiguration cfg
+            = FtpConfiguration.newBuilder().setHostname("foo").build();
+        final FtpAgentQueue queue = new FtpAgentQueue(factory, cfg, 1);
+        when(factory.get(queue, cfg)).thenReturn(agent);
+        return queue;
+    }
+
+    /*
+     * A data connection which breaks once a given number of bytes has been
+     * sent
+     */
+    private static final class BrokenOutputStream
+        extends OutputStream
+    {
+        private final OutputStream out;
+        private int remaining;
+
+        private BrokenOutputStream(final OutputStream out, final int limit)
+        {
+            this.out = out;
+            remaining = limit;
+        }
+
+        @Override
+        public void write(final int b)
+            throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            final int n = Math.min(len, remaining);
+            out.write(b, off, n);
+            remaining -= n;
+            if (n < len)
+                throw new IOException("connection reset");
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import com.github.fge.ftpfs.FtpConfiguration;
+import com.github.fge.ftpfs.cache.BlockCache;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public final class FtpSeekableByteChannelTest
+{
+    private static final int SIZE = 1000;
+    private static final int READ_AHEAD = 100;
+
+    private final byte[] data = new byte[SIZE];
+
+    private FtpAgent agent;
+    private FtpAgentQueue queue;
+    private Path path;
+    private ByteBufferPool bufferPool;
+
+    @BeforeMethod
+    public void init()
+        throws IOException
+    {
+        for (int i = 0; i < SIZE; i++)
+            data[i] = (byte) i;
+        final FtpAgentFactory factory = mock(FtpAgentFactory.class);
+        final FtpConfiguration cfg
+            = FtpConfiguration.newBuilder().setHostname("foo").build();
+        agent = mock(FtpAgent.class);
+        path = mock(Path.class);
+        bufferPool = new ByteBufferPool(READ_AHEAD, 10 * READ_AHEAD);
+        queue = new FtpAgentQueue(factory, cfg, 1);
+        when(factory.get(same(queue), same(cfg))).thenReturn(agent);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+            {
+                queue.pushBack(agent);
+                return null;
+            }
+        }).when(agent).close();
+        when(agent.getInputStream(same(path), anyLong())).thenAnswer(
+            new Answer<FtpInputStream>()
+            {
+                @Override
+                public FtpInputStream answer(
+                    final InvocationOnMock invocation)
+                {
+                    final int offset
+                        = ((Long) invocation.getArguments()[1]).intValue();
+                    return new FtpInputStream(agent,
+                        new ByteArrayInputStream(data, offset, SIZE - offset));
+                }
+            });
+    }
+
+    @Test
+    public void sequentialReadsUseOneDataConnection()
+        throws IOException
+    {
+        final ByteBuffer buf = ByteBuffer.allocate(10);
+        final byte[] actual = new byte[SIZE];
+        int done = 0;
+
+        try (
+            final SeekableByteChannel channel
+                = new FtpSeekableByteChannel(queue, path, SIZE, READ_AHEAD,
+                    bufferPool);
+        ) {
+            while (channel.read(buf) != -1) {
+                buf.flip();
+                buf.get(actual, done, buf.remaining());
+                done = (int) channel.position();
+                buf.clear();
+            }
+        }
+
+        assertEquals(actual, data);
+        verify(agent, times(1)).getInputStream(same(path), eq(0L));
+    }
+
+    @Test
+    public void channelsShareTheBlockCache()
+        throws IOException
+    {
+        final BlockCache blockCache = new BlockCache(READ_AHEAD,
+            10L * READ_AHEAD);
+        final FileTime lastModified = FileTime.fromMillis(0L);
+        final ByteBuffer buf = ByteBuffer.allocate(10);
+
+        for (int i = 0; i < 2; i++)
+            try (
+                final SeekableByteChannel channel
+                    = new FtpSeekableByteChannel(queue, path, SIZE, READ_AHEAD,
+                        bufferPool, blockCache, lastModified);
+            ) {
+                buf.clear();
+                channel.position(SIZE - 5).read(buf);
+                assertEquals(Arrays.copyOf(buf.array(), buf.position()),
+                    Arrays.copyOfRange(data, SIZE - 5, SIZE));
+                buf.clear();
+                channel.position(250L).read(buf);
+                assertEquals(buf.array(), Arrays.copyOfRange(data, 250, 260));
+            }
+
+        verify(agent, times(1)).getInputStream(same(path), eq(900L));
+        verify(agent, times(1)).getInputStream(same(path), eq(200L));
+        verify(agent, times(2)).getInputStream(same(path), anyLong());
+    }
+
+    @Test
+    public void shortForwardJumpsReuseDataConnection()
+        throws IOException
+    {
+        final ByteBuffer buf = ByteBuffer.allocate(10);
+
+        try (
+            final SeekableByteChannel channel
+                = new FtpSeekableByteChannel(queue, path, SIZE, READ_AHEAD,
+                    bufferPool);
+        ) {
+            channel.read(buf);
+            channel.position(150L);
+            buf.clear();
+            channel.read(buf);
+            assertEquals(buf.array()[0], data[150]);
+        }
+
+        verify(agent, times(1)).getInputStream(same(path), anyLong());
+    }
+
+    @Test
+    public void farJumpsReopenWithOffset()
+        throws IOException
+    {
+        final ByteBuffer buf = ByteBuffer.allocate(10);
+
+        try (
+            final SeekableByteChannel channel
+                = new FtpSeekableByteChannel(queue, path, SIZE, READ_AHEAD,
+                    bufferPool);
+        ) {
+            channel.position(700L);
+            channel.read(buf);
+            assertEquals(buf.array()[0], data[700]);
+            channel.position(10L);
+            buf.clear();
+            channel.read(buf);
+            assertEquals(buf.array()[0], data[10]);
+        }
+
+        verify(agent).getInputStream(same(path), eq(700L));
+        verify(agent).getInputStream(same(path), eq(10L));
+        verify(agent, times(2)).getInputStream(same(path), anyLong());
+    }
+
+    @Test
+    public void largeReadsAreServedDirectly()
+        throws IOException
+    {
+        final ByteBuffer buf = ByteBuffer.allocate(SIZE);
+
+        try (
+            final SeekableByteChannel channel
+                = new FtpSeekableByteChannel(queue, path, SIZE, READ_AHEAD,
+                    bufferPool);
+        ) {
+            channel.position(500L);
+            assertEquals(channel.read(buf), SIZE - 500);
+            assertEquals(channel.read(buf), -1);
+        }
+
+        assertEquals(Arrays.copyOf(buf.array(), SIZE - 500),
+            Arrays.copyOfRange(data, 500, SIZE));
+    }
+
+    @Test
+    public void windowIsGivenBackToThePoolOnClose()
+        throws IOException
+    {
+        final int available = bufferPool.getAvailableBuffers();
+        final SeekableByteChannel channel
+            = new FtpSeekableByteChannel(queue, path, SIZE, READ_AHEAD,
+                bufferPool);
+        assertEquals(bufferPool.getAvailableBuffers(), available - 1);
+        channel.close();
+        assertEquals(bufferPool.getAvailableBuffers(), available);
+    }
+
+    @Test
+    public void channelIsReadOnly()
+        throws IOException
+    {
+        try (
+            final SeekableByteChannel channel
+                = new FtpSeekableByteChannel(queue, path, SIZE, READ_AHEAD,
+                    bufferPool);
+        ) {
+            channel.write(ByteBuffer.allocate(1));
+            fail("No exception thrown!!");
+        } catch (NonWritableChannelException ignored) {
+            assertTrue(true);
+        }
+    }
+}
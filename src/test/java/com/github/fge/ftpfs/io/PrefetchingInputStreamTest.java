@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public final class PrefetchingInputStreamTest
+{
+    private static final int BUFSIZE = 64;
+
+    private final byte[] data = new byte[10000];
+    private ByteBufferPool bufferPool;
+
+    @BeforeMethod
+    public void init()
+    {
+        new Random(42L).nextBytes(data);
+        bufferPool = new ByteBufferPool(BUFSIZE, 16 * BUFSIZE);
+    }
+
+    @Test
+    public void dataIsReadUnchanged()
+        throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[100];
+        int n;
+
+        try (
+            final InputStream in = new PrefetchingInputStream(
+                new ByteArrayInputStream(data), bufferPool, 2);
+        ) {
+            while ((n = in.read(buf)) != -1)
+                out.write(buf, 0, n);
+            assertEquals(in.read(), -1);
+        }
+
+        assertEquals(out.toByteArray(), data);
+    }
+
+    @Test
+    public void slowConsumerStallsProducer()
+        throws IOException, InterruptedException
+    {
+        try (
+            final PrefetchingInputStream in = new PrefetchingInputStream(
+                new ByteArrayInputStream(data), bufferPool, 1);
+        ) {
+            TimeUnit.MILLISECONDS.sleep(100L);
+            while (in.read() != -1)
+                ;
+            assertTrue(in.getProducerStallTime(TimeUnit.MILLISECONDS) >= 50L);
+        }
+    }
+
+    @Test
+    public void sourceErrorsAreReportedToTheConsumer()
+        throws IOException
+    {
+        final InputStream source = mock(InputStream.class);
+        final IOException e = new IOException();
+        when(source.read(any(byte[].class), anyInt(), anyInt())).thenThrow(e);
+
+        try (
+            final InputStream in
+                = new PrefetchingInputStream(source, bufferPool, 2);
+        ) {
+            in.read();
+            fail("No exception thrown!!");
+        } catch (IOException actual) {
+            assertSame(actual, e);
+        }
+    }
+
+    @Test
+    public void closingGivesAllBuffersBack()
+        throws IOException, InterruptedException
+    {
+        final int available = bufferPool.getAvailableBuffers();
+        final InputStream in = new PrefetchingInputStream(
+            new ByteArrayInputStream(data), bufferPool, 4);
+
+        in.read();
+        TimeUnit.MILLISECONDS.sleep(50L);
+        in.close();
+
+        assertEquals(bufferPool.getAvailableBuffers(), available);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import com.github.fge.ftpfs.FtpConfiguration;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public final class SegmentedDownloadTest
+{
+    private static final int MAX_AGENTS = 3;
+    private static final int SIZE = 10000;
+
+    private final byte[] data = new byte[SIZE];
+
+    private FtpAgentQueue queue;
+    private FtpAgent[] agents;
+    private Path source;
+    private Path target;
+    private ByteBufferPool bufferPool;
+
+    @BeforeMethod
+    public void init()
+        throws IOException
+    {
+        for (int i = 0; i < SIZE; i++)
+            data[i] = (byte) (i % 251);
+        final FtpAgentFactory factory = mock(FtpAgentFactory.class);
+        final FtpConfiguration cfg
+            = FtpConfiguration.newBuilder().setHostname("foo").build();
+        source = mock(Path.class);
+        bufferPool = new ByteBufferPool(512, 4096L);
+        queue = new FtpAgentQueue(factory, cfg, MAX_AGENTS);
+        agents = new FtpAgent[MAX_AGENTS];
+        for (int i = 0; i < MAX_AGENTS; i++)
+            agents[i] = mockAgent();
+        when(factory.get(same(queue), same(cfg)))
+            .thenReturn(agents[0], agents[1], agents[2]);
+        target = Files.createTempFile("segments", ".bin");
+    }
+
+    @AfterMethod
+    public void cleanup()
+        throws IOException
+    {
+        Files.delete(target);
+    }
+
+    @Test
+    public void segmentCountDependsOnSizeAndAvailableAgents()
+        throws IOException
+    {
+        final SegmentedDownload download
+            = new SegmentedDownload(queue, bufferPool, 1000L, 10);
+
+        assertEquals(download.getSegmentCount(500L), 1);
+        assertEquals(download.getSegmentCount(2500L), 2);
+        assertEquals(download.getSegmentCount(SIZE), MAX_AGENTS);
+
+        final FtpAgent agent = queue.getAgent();
+        assertEquals(download.getSegmentCount(SIZE), MAX_AGENTS - 1);
+        agent.close();
+    }
+
+    @Test
+    public void segmentsAreWrittenAtTheRightOffsets()
+        throws IOException
+    {
+        final SegmentedDownload download
+            = new SegmentedDownload(queue, bufferPool, 1000L, 10);
+
+        try (
+            final FileChannel channel = FileChannel.open(target,
+                StandardOpenOption.WRITE);
+        ) {
+            download.download(source, SIZE, channel);
+        }
+
+        assertEquals(Files.readAllBytes(target), data);
+
+        final int segmentSize = SIZE / MAX_AGENTS;
+        for (int i = 0; i < MAX_AGENTS; i++)
+            verifyOffsetRequested((long) i * segmentSize);
+    }
+
+    private void verifyOffsetRequested(final long offset)
+        throws IOException
+    {
+        int count = 0;
+        for (final FtpAgent agent: agents)
+            try {
+                verify(agent).getInputStream(same(source), eq(offset));
+                count++;
+            } catch (AssertionError ignored) {
+            }
+        assertEquals(count, 1, "offset " + offset + " requested once");
+    }
+
+    private FtpAgent mockAgent()
+        throws IOException
+    {
+        final FtpAgent agent = mock(FtpAgent.class);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+            {
+                queue.pushBack(agent);
+                return null;
+            }
+        }).when(agent).close();
+        when(agent.getInputStream(any(Path.class), anyLong())).thenAnswer(
+            new Answer<FtpInputStream>()
+            {
+                @Override
+                public FtpInputStream answer(
+                    final InvocationOnMock invocation)
+                {
+                    final int offset
+                        = ((Long) invocation.getArguments()[1]).intValue();
+                    return new FtpInputStream(agent,
+                        new ByteArrayInputStream(data, offset, SIZE - offset));
+                }
+            });
+        return agent;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import org.mockito.InOrder;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public final class ServerToServerCopyTest
+{
+    private static final String ADDRESS = "127,0,0,1,8,1";
+    private static final List<BandwidthLimiter> NO_LIMITS
+        = Collections.emptyList();
+
+    private final byte[] data = new byte[100000];
+
+    private FtpAgent sourceAgent;
+    private FtpAgent targetAgent;
+    private Path source;
+    private Path target;
+    private ServerToServerCopy copy;
+
+    @BeforeMethod
+    public void init()
+    {
+        new Random(42L).nextBytes(data);
+        sourceAgent = mock(FtpAgent.class);
+        targetAgent = mock(FtpAgent.class);
+        source = mock(Path.class);
+        when(source.toString()).thenReturn("/src");
+        target = mock(Path.class);
+        when(target.toString()).thenReturn("/dst");
+        copy = new ServerToServerCopy(new ByteBufferPool(1024, 8192L), 2);
+    }
+
+    @Test
+    public void dataFlowsBetweenServersWhenBothAgree()
+        throws IOException
+    {
+        when(targetAgent.openPassivePort()).thenReturn(ADDRESS);
+        when(sourceAgent.openActivePort(ADDRESS)).thenReturn(true);
+        when(sourceAgent.beginSend("/src")).thenReturn(true);
+
+        assertTrue(copy.copy(sourceAgent, source, targetAgent, target,
+            NO_LIMITS));
+
+        verify(targetAgent).beginReceive("/dst");
+        verify(sourceAgent).completeTransfer();
+        verify(targetAgent).completeTransfer();
+        verify(sourceAgent).close();
+        verify(targetAgent).close();
+        verify(sourceAgent, never()).getInputStream(any(Path.class));
+    }
+
+    @Test
+    public void copyIsRelayedWhenSourceRefusesTheAddress()
+        throws IOException
+    {
+        when(targetAgent.openPassivePort()).thenReturn(ADDRESS);
+        when(sourceAgent.openActivePort(ADDRESS)).thenReturn(false);
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        stubRelay(sink);
+
+        assertFalse(copy.copy(sourceAgent, source, targetAgent, target,
+            NO_LIMITS));
+
+        assertEquals(sink.toByteArray(), data);
+        verify(targetAgent, never()).beginReceive(anyString());
+        verify(sourceAgent).close();
+        verify(targetAgent).close();
+    }
+
+    @Test
+    public void targetIsAbortedWhenSourceCannotConnect()
+        throws IOException
+    {
+        when(targetAgent.openPassivePort()).thenReturn(ADDRESS);
+        when(sourceAgent.openActivePort(ADDRESS)).thenReturn(true);
+        when(sourceAgent.beginSend("/src")).thenReturn(false);
+        when(targetAgent.isDead()).thenReturn(true);
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        stubRelay(sink);
+
+        assertFalse(copy.copy(sourceAgent, source, targetAgent, target,
+            NO_LIMITS));
+
+        final InOrder inOrder = inOrder(targetAgent);
+        inOrder.verify(targetAgent).abortTransfer();
+        inOrder.verify(targetAgent).connect();
+        inOrder.verify(targetAgent).getOutputStream(target, false);
+        assertEquals(sink.toByteArray(), data);
+    }
+
+    @Test
+    public void sourceIsReleasedWhenAbortedTargetCannotReconnect()
+        throws IOException
+    {
+        when(targetAgent.openPassivePort()).thenReturn(ADDRESS);
+        when(sourceAgent.openActivePort(ADDRESS)).thenReturn(true);
+        when(sourceAgent.beginSend("/src")).thenReturn(false);
+        when(targetAgent.isDead()).thenReturn(true);
+        final IOException failure = new IOException();
+        doThrow(failure).when(targetAgent).connect();
+
+        try {
+            copy.copy(sourceAgent, source, targetAgent, target, NO_LIMITS);
+            fail("No exception thrown!!");
+        } catch (IOException e) {
+            assertSame(e, failure);
+        }
+
+        verify(sourceAgent).close();
+        verify(targetAgent).close();
+        verify(targetAgent, never()).getOutputStream(any(Path.class),
+            anyBoolean());
+    }
+
+    private void stubRelay(final ByteArrayOutputStream sink)
+        throws IOException
+    {
+        final FtpInputStream in = new FtpInputStream(sourceAgent,
+            new ByteArrayInputStream(data));
+        final FtpOutputStream out = new FtpOutputStream(targetAgent, sink,
+            4096);
+        when(sourceAgent.getInputStream(source)).thenReturn(in);
+        when(targetAgent.getOutputStream(target, false)).thenReturn(out);
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package com.github.fge.ftpfs.io;
+
+import com.github.fge.ftpfs.FtpConfiguration;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public final class StagingAreaTest
+{
+    private static final int SIZE = 10000;
+    private static final List<BandwidthLimiter> NO_LIMITS
+        = Collections.emptyList();
+
+    private final byte[] data = new byte[SIZE];
+
+    private FtpAgent agent;
+    private FtpAgentQueue queue;
+    private StagingArea area;
+    private Path path;
+    private BasicFileAttributes attributes;
+
+    @BeforeMethod
+    public void init()
+        throws IOException
+    {
+        for (int i = 0; i < SIZE; i++)
+            data[i] = (byte) (i % 251);
+        final FtpAgentFactory factory = mock(FtpAgentFactory.class);
+        final FtpConfiguration cfg
+            = FtpConfiguration.newBuilder().setHostname("foo").build();
+        agent = mock(FtpAgent.class);
+        path = mock(Path.class);
+        queue = new FtpAgentQueue(factory, cfg, 1);
+        when(factory.get(same(queue), same(cfg))).thenReturn(agent);
+        /*
+         * Downloads run in the background and may outlive a test: make sure
+         * they push agents back into their own queue
+         */
+        final FtpAgentQueue agentQueue = queue;
+        final FtpAgent mockAgent = agent;
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+            {
+                agentQueue.pushBack(mockAgent);
+                return null;
+            }
+        }).when(agent).close();
+        when(agent.getInputStream(same(path), anyLong())).thenAnswer(
+            new Answer<FtpInputStream>()
+            {
+                @Override
+                public FtpInputStream answer(
+                    final InvocationOnMock invocation)
+                {
+                    final int offset
+                        = ((Long) invocation.getArguments()[1]).intValue();
+                    return new FtpInputStream(mockAgent,
+                        new ByteArrayInputStream(data, offset, SIZE - offset));
+                }
+            });
+        attributes = mockAttributes(SIZE, 1000L);
+        area = new StagingArea(queue, new ByteBufferPool(512, 4096L), 1000L, 1,
+            2L * SIZE);
+    }
+
+    @AfterMethod
+    public void cleanup()
+        throws IOException
+    {
+        area.close();
+    }
+
+    @Test
+    public void randomReadsAreServedFromTheLocalCopy()
+        throws IOException
+    {
+        final ByteBuffer buf = ByteBuffer.allocate(100);
+
+        try (
+            final SeekableByteChannel channel
+                = area.open(path, attributes, NO_LIMITS);
+        ) {
+            for (final long position: new long[] { 9000L, 10L, 5000L }) {
+                buf.clear();
+                channel.position(position).read(buf);
+                assertEquals(buf.array(), Arrays.copyOfRange(data,
+                    (int) position, (int) position + 100));
+            }
+            buf.clear();
+            assertEquals(channel.position(SIZE).read(buf), -1);
+        }
+
+        verify(agent, times(1)).getInputStream(same(path), anyLong());
+    }
+
+    @Test
+    public void localCopyIsReusedUntilTheRemoteFileChanges()
+        throws IOException
+    {
+        area.open(path, attributes, NO_LIMITS).close();
+        area.open(path, attributes, NO_LIMITS).close();
+        verify(agent, timeout(1000).times(1)).getInputStream(same(path),
+            anyLong());
+
+        area.open(path, mockAttributes(SIZE, 2000L), NO_LIMITS).close();
+        verify(agent, timeout(1000).times(2)).getInputStream(same(path),
+            anyLong());
+    }
+
+    @Test
+    public void hitsAndMissesAreCounted()
+        throws IOException
+    {
+        area.open(path, attributes, NO_LIMITS).close();
+        area.open(path, attributes, NO_LIMITS).close();
+        area.open(path, attributes, NO_LIMITS).close();
+        area.open(path, mockAttributes(SIZE, 2000L), NO_LIMITS).close();
+
+        assertEquals(area.getHits(), 2L);
+        assertEquals(area.getMisses(), 2L);
+    }
+
+    @Test
+    public void readsWaitForTheDataToArrive()
+        throws IOException, InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        when(agent.getInputStream(same(path), anyLong())).thenReturn(
+            new FtpInputStream(agent, new InputStream()
+            {
+                private int position = 0;
+
+                @Override
+                public int read()
+                    throws IOException
+                {
+                    if (position == SIZE / 2)
+                        try {
+                            latch.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                    return position < SIZE ? data[position++] & 0xff : -1;
+                }
+            }));
+
+        final ByteBuffer buf = ByteBuffer.allocate(10);
+        try (
+            final SeekableByteChannel channel
+                = area.open(path, attributes, NO_LIMITS);
+        ) {
+            new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        Thread.sleep(100L);
+                    } catch (InterruptedException ignored) {
+                    }
+                    latch.countDown();
+                }
+            }).start();
+            channel.position(SIZE - 10).read(buf);
+            assertEquals(latch.getCount(), 0L);
+            assertEquals(buf.array(), Arrays.copyOfRange(data, SIZE - 10,
+                SIZE));
+        }
+    }
+
+    @Test
+    public void unusedCopiesAreEvictedBeyondCapacity()
+        throws IOException, InterruptedException
+    {
+        final Path[] paths = new Path[3];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = mock(Path.class);
+            when(agent.getInputStream(same(paths[i]), anyLong()))
+                .thenReturn(new FtpInputStream(agent,
+                    new ByteArrayInputStream(data)));
+            try (
+                final SeekableByteChannel channel
+                    = area.open(paths[i], attributes, NO_LIMITS);
+            ) {
+                channel.read(ByteBuffer.allocate(1));
+                channel.position(SIZE - 1).read(ByteBuffer.allocate(1));
+            }
+        }
+
+        // Eviction also runs when downloads complete; wait for them
+        for (int i = 0; i < 100 && area.getTotalSize() > 2L * SIZE; i++)
+            Thread.sleep(10L);
+        assertEquals(area.getTotalSize(), 2L * SIZE);
+    }
+
+    @Test
+    public void downloadFailuresAreReportedToReaders()
+        throws IOException
+    {
+        final IOException e = new IOException();
+        when(agent.getInputStream(same(path), anyLong())).thenThrow(e);
+
+        try (
+            final SeekableByteChannel channel
+                = area.open(path, attributes, NO_LIMITS);
+        ) {
+            channel.read(ByteBuffer.allocate(10));
+            fail("No exception thrown!!");
+        } catch (IOException actual) {
+            assertSame(actual.getCause(), e);
+        }
+    }
+
+    private static BasicFileAttributes mockAttributes(final long size,
+        final long lastModified)
+    {
+        final BasicFileAttributes ret = mock(BasicFileAttributes.class);
+        when(ret.size()).thenReturn(size);
+        when(ret.lastModifiedTime())
+            .thenReturn(FileTime.fromMillis(lastModified));
+        return ret;
+    }
+}
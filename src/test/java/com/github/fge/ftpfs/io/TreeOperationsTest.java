@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import com.github.fge.ftpfs.FtpConfiguration;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileSystemException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public final class TreeOperationsTest
+{
+    private static final Map<String, IOException> NO_FAILURES
+        = Collections.emptyMap();
+
+    private FtpAgent agent;
+    private TreeOperations operations;
+    private BasicFileAttributes file;
+    private BasicFileAttributes dir;
+
+    @BeforeMethod
+    public void init()
+        throws IOException
+    {
+        final FtpAgentFactory factory = mock(FtpAgentFactory.class);
+        final FtpConfiguration cfg
+            = FtpConfiguration.newBuilder().setHostname("foo").build();
+        final FtpAgentQueue queue = new FtpAgentQueue(factory, cfg, 1);
+        final FtpAgent mockAgent = mock(FtpAgent.class);
+        agent = mockAgent;
+        when(factory.get(same(queue), same(cfg))).thenReturn(agent);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+            {
+                queue.pushBack(mockAgent);
+                return null;
+            }
+        }).when(agent).close();
+        when(agent.executeBatch(any(BatchCommand.class), anyListOf(
+            String.class))).thenReturn(NO_FAILURES);
+        operations = new TreeOperations(queue, 1);
+        file = mockAttributes(false);
+        dir = mockAttributes(true);
+    }
+
+    @Test
+    public void treeIsDeletedFilesFirstThenDeepestDirectoriesFirst()
+        throws IOException
+    {
+        final Map<String, BasicFileAttributes> top = new HashMap<>();
+        top.put("f1", file);
+        top.put("sub", dir);
+        when(agent.getDirectoryEntries("/d")).thenReturn(top);
+        when(agent.getDirectoryEntries("/d/sub")).thenReturn(
+            Collections.singletonMap("f2", file));
+
+        assertTrue(operations.deleteRecursive("/d").isEmpty());
+
+        final InOrder inOrder = inOrder(agent);
+        inOrder.verify(agent).executeBatch(BatchCommand.DELE,
+            Arrays.asList("/d/f1", "/d/sub/f2"));
+        inOrder.verify(agent).executeBatch(BatchCommand.RMD,
+            Collections.singletonList("/d/sub"));
+        inOrder.verify(agent).executeBatch(BatchCommand.RMD,
+            Collections.singletonList("/d"));
+    }
+
+    @Test
+    public void failedDeletionsAreReportedAlongWithTheirParents()
+        throws IOException
+    {
+        final IOException failure = new IOException();
+        final List<String> files = Collections.singletonList("/d/sub/f");
+        when(agent.getDirectoryEntries("/d")).thenReturn(
+            Collections.singletonMap("sub", dir));
+        when(agent.getDirectoryEntries("/d/sub")).thenReturn(
+            Collections.singletonMap("f", file));
+        when(agent.executeBatch(BatchCommand.DELE, files)).thenReturn(
+            Collections.singletonMap("/d/sub/f", failure));
+
+        final Map<String, IOException> failures
+            = operations.deleteRecursive("/d");
+
+        assertEquals(failures.keySet(),
+            Arrays.asList("/d", "/d/sub", "/d/sub/f"));
+        assertSame(failures.get("/d/sub/f"), failure);
+        assertTrue(failures.get("/d/sub")
+            instanceof DirectoryNotEmptyException);
+        assertTrue(failures.get("/d") instanceof DirectoryNotEmptyException);
+        verify(agent, never()).executeBatch(same(BatchCommand.RMD),
+            anyListOf(String.class));
+    }
+
+    @Test
+    public void directoriesAreCreatedTopDownAndExistingOnesAreIgnored()
+        throws IOException
+    {
+        final IOException failure = new IOException();
+        final Map<String, IOException> topFailures = new HashMap<>();
+        topFailures.put("/a", new IOException());
+        topFailures.put("/x", failure);
+        when(agent.executeBatch(BatchCommand.MKD, Arrays.asList("/a", "/x")))
+            .thenReturn(topFailures);
+        when(agent.getDirectoryEntries("/")).thenReturn(
+            Collections.singletonMap("a", dir));
+
+        final Map<String, IOException> failures = operations
+            .createDirectories(Arrays.asList("/a/b/c", "/x/y"));
+
+        assertEquals(failures.keySet(), Arrays.asList("/x", "/x/y"));
+        assertSame(failures.get("/x"), failure);
+        assertTrue(failures.get("/x/y") instanceof FileSystemException);
+        verify(agent).executeBatch(BatchCommand.MKD,
+            Collections.singletonList("/a/b"));
+        verify(agent).executeBatch(BatchCommand.MKD,
+            Collections.singletonList("/a/b/c"));
+    }
+
+    private static BasicFileAttributes mockAttributes(final boolean directory)
+    {
+        final BasicFileAttributes ret = mock(BasicFileAttributes.class);
+        when(ret.isDirectory()).thenReturn(directory);
+        return ret;
+    }
+}
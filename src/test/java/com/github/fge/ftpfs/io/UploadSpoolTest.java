@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.io;
+
+import com.github.fge.ftpfs.FtpConfiguration;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public final class UploadSpoolTest
+{
+    private final byte[] data = new byte[1000];
+
+    private FtpAgent agent;
+    private FtpAgentQueue queue;
+    private ByteBufferPool bufferPool;
+    private Path path;
+    private CountDownLatch uploadsAllowed;
+    private List<ByteArrayOutputStream> sinks;
+    private UploadSpool spool;
+
+    @BeforeMethod
+    public void init()
+        throws IOException
+    {
+        new Random(42L).nextBytes(data);
+        final FtpAgentFactory factory = mock(FtpAgentFactory.class);
+        final FtpConfiguration cfg
+            = FtpConfiguration.newBuilder().setHostname("foo").build();
+        final FtpAgentQueue agentQueue = new FtpAgentQueue(factory, cfg, 2);
+        final FtpAgent mockAgent = mock(FtpAgent.class);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<ByteArrayOutputStream> list
+            = new CopyOnWriteArrayList<>();
+        when(factory.get(same(agentQueue), same(cfg))).thenReturn(mockAgent);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+            {
+                agentQueue.pushBack(mockAgent);
+                return null;
+            }
+        }).when(mockAgent).close();
+        when(mockAgent.getResumableOutputStream(any(Path.class),
+            anyBoolean())).thenAnswer(new Answer<FtpOutputStream>()
+        {
+            @Override
+            public FtpOutputStream answer(final InvocationOnMock invocation)
+                throws InterruptedException
+            {
+                latch.await();
+                final ByteArrayOutputStream sink
+                    = new ByteArrayOutputStream();
+                list.add(sink);
+                return new FtpOutputStream(mockAgent, sink, 64);
+            }
+        });
+        agent = mockAgent;
+        queue = agentQueue;
+        uploadsAllowed = latch;
+        sinks = list;
+        path = mock(Path.class);
+        bufferPool = new ByteBufferPool(64, 256L);
+        spool = new UploadSpool(queue, bufferPool, 1500L, 100, 2);
+    }
+
+    @AfterMethod
+    public void cleanup()
+        throws IOException
+    {
+        uploadsAllowed.countDown();
+        spool.close();
+    }
+
+    @Test
+    public void closeDoesNotWaitForTheUpload()
+        throws IOException
+    {
+        try (
+            final OutputStream out = spool.open(path, false);
+        ) {
+            out.write(data);
+        }
+
+        assertEquals(spool.getSpooledBytes(), (long) data.length);
+        assertTrue(sinks.isEmpty());
+
+        uploadsAllowed.countDown();
+        spool.awaitUploads();
+
+        assertEquals(sinks.size(), 1);
+        assertEquals(sinks.get(0).toByteArray(), data);
+        assertEquals(spool.getSpooledBytes(), 0L);
+        assertEquals(queue.getAvailableAgents(), 2);
+        assertEquals(bufferPool.getAvailableBuffers(), 4);
+    }
+
+    @Test
+    public void listenerIsNotifiedBeforeTheBarrierIsPassed()
+        throws IOException
+    {
+        final UploadSpool.Listener listener = mock(UploadSpool.Listener.class);
+        final UploadSpool notifying = new UploadSpool(queue, bufferPool,
+            1500L, 100, 2, listener);
+
+        try {
+            try (
+                final OutputStream out = notifying.open(path, false);
+            ) {
+                out.write(data);
+            }
+            verify(listener, never()).uploadFinished(any(Path.class));
+
+            uploadsAllowed.countDown();
+            notifying.awaitUploads();
+            verify(listener).uploadFinished(path);
+        } finally {
+            notifying.close();
+        }
+    }
+
+    @Test
+    public void smallFilesAreUploadedFromMemory()
+        throws IOException
+    {
+        try (
+            final OutputStream out = spool.open(path, true);
+        ) {
+            out.write(data, 0, 50);
+        }
+        uploadsAllowed.countDown();
+        spool.awaitUploads();
+
+        verify(agent).getResumableOutputStream(path, true);
+        assertEquals(sinks.get(0).size(), 50);
+    }
+
+    @Test
+    public void uploadsToTheSamePathAreSequential()
+        throws IOException, InterruptedException
+    {
+        for (int i = 1; i <= 2; i++)
+            try (
+                final OutputStream out = spool.open(path, false);
+            ) {
+                out.write(data, 0, 10 * i);
+            }
+
+        TimeUnit.MILLISECONDS.sleep(100L);
+        verify(agent, times(1)).getResumableOutputStream(path, false);
+
+        uploadsAllowed.countDown();
+        spool.awaitUploads();
+
+        assertEquals(sinks.size(), 2);
+        assertEquals(sinks.get(0).size(), 10);
+        assertEquals(sinks.get(1).size(), 20);
+    }
+
+    @Test
+    public void failedUploadsAreReportedByTheBarrier()
+        throws IOException
+    {
+        final IOException failure = new IOException();
+        doThrow(failure).when(agent).getResumableOutputStream(path, false);
+
+        try (
+            final OutputStream out = spool.open(path, false);
+        ) {
+            out.write(data);
+        }
+
+        try {
+            spool.awaitUploads();
+            fail("No exception thrown!!");
+        } catch (IOException e) {
+            assertEquals(e.getSuppressed().length, 1);
+            assertSame(e.getSuppressed()[0].getCause(), failure);
+        }
+
+        spool.awaitUploads();
+        assertEquals(queue.getAvailableAgents(), 2);
+    }
+
+    @Test
+    public void writersWaitForRoomInTheSpool()
+        throws IOException, InterruptedException
+    {
+        try (
+            final OutputStream out = spool.open(path, false);
+        ) {
+            out.write(data);
+        }
+
+        final CountDownLatch written = new CountDownLatch(1);
+        final OutputStream out = spool.open(mock(Path.class), false);
+        final Thread writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    out.write(data);
+                    out.close();
+                    written.countDown();
+                } catch (IOException ignored) {
+                }
+            }
+        };
+        writer.start();
+
+        assertFalse(written.await(100L, TimeUnit.MILLISECONDS));
+        uploadsAllowed.countDown();
+        assertTrue(written.await(1L, TimeUnit.SECONDS));
+        spool.awaitUploads();
+        assertEquals(sinks.size(), 2);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+
+package com.github.fge.ftpfs.io.commonsnetimpl;
+
+import com.github.fge.ftpfs.FtpConfiguration;
+import com.github.fge.ftpfs.io.FtpAgent;
+import com.github.fge.ftpfs.io.FtpAgentQueue;
+import com.github.fge.ftpfs.io.FtpFileView;
+import com.github.fge.ftpfs.server.FtpServers;
+import com.github.fge.ftpfs.server.InMemoryUserManager;
+import com.github.fge.ftpfs.server.TemporaryFileSystem;
+import org.apache.ftpserver.FtpServer;
+import org.apache.ftpserver.listener.Listener;
+import org.apache.ftpserver.listener.ListenerFactory;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NotDirectoryException;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.testng.Assert.*;
+
+public final class CommonsNetFtpAgentTest
+{
+    private TemporaryFileSystem tfs;
+    private FtpServer server;
+    private FtpAgentQueue queue;
+
+    @BeforeClass
+    public void startServer()
+        throws Exception
+    {
+        tfs = new TemporaryFileSystem();
+        final ListenerFactory factory = new ListenerFactory();
+        factory.setPort(0);
+        final Listener listener = factory.createListener();
+        server = FtpServers.createServer(tfs, listener);
+        server.start();
+        final FtpConfiguration cfg = FtpConfiguration.newBuilder()
+            .setHostname("localhost").setPort(listener.getPort())
+            .setUsername(InMemoryUserManager.USERNAME)
+            .setPassword(InMemoryUserManager.PASSWORD).build();
+        queue = new FtpAgentQueue(new CommonsNetFtpAgentFactory(), cfg, 1);
+    }
+
+    @AfterClass
+    public void stopServer()
+        throws IOException
+    {
+        queue.close();
+        server.stop();
+        tfs.delete();
+    }
+
+    @Test
+    public void creatingAnExistingEmptyDirectoryFails()
+        throws IOException
+    {
+        tfs.createDirs("empty", "rwxr-xr-x");
+
+        try (
+            final FtpAgent agent = queue.getAgent();
+        ) {
+            agent.createDirectory("/empty");
+            fail("No exception thrown!!");
+        } catch (FileAlreadyExistsException e) {
+            assertEquals(e.getFile(), "/empty");
+        }
+    }
+
+    @Test
+    public void directoryHoldingAFileOfTheSameNameIsADirectory()
+        throws IOException
+    {
+        tfs.createDirs("same", "rwxr-xr-x");
+        tfs.createFile("same/same", "rw-r--r--");
+
+        try (
+            final FtpAgent agent = queue.getAgent();
+        ) {
+            assertTrue(agent.getFileView("/same").readAttributes()
+                .isDirectory());
+            assertFalse(agent.getFileView("/same/same").readAttributes()
+                .isDirectory());
+            final Map<String, FtpFileView> views
+                = agent.getDirectoryViews("/same");
+            assertEquals(views.keySet(), Collections.singleton("same"));
+            assertFalse(views.get("same").readAttributes().isDirectory());
+        }
+    }
+
+    @Test
+    public void listingAFileFails()
+        throws IOException
+    {
+        tfs.createFile("file", "rw-r--r--");
+
+        try (
+            final FtpAgent agent = queue.getAgent();
+        ) {
+            agent.getDirectoryViews("/file");
+            fail("No exception thrown!!");
+        } catch (NotDirectoryException e) {
+            assertEquals(e.getFile(), "/file");
+        }
+    }
+}
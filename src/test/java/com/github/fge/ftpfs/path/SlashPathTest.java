@@ -269,6 +269,7 @@ public final class SlashPathTest
         list.add(new Object[] { "foo", "foo/bar/baz", false });
         list.add(new Object[] { "foo/..", "foo", true });
         list.add(new Object[] { "/", "/", true });
+        list.add(new Object[] { "/foo", "/", true });
         return list.iterator();
     }
 
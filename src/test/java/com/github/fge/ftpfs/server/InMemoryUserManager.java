@@ -26,9 +26,10 @@ import org.apache.ftpserver.ftplet.User;
 import org.apache.ftpserver.ftplet.UserManager;
 import org.apache.ftpserver.usermanager.impl.BaseUser;
 import org.apache.ftpserver.usermanager.impl.ConcurrentLoginPermission;
+import org.apache.ftpserver.usermanager.impl.WritePermission;
 
 import java.nio.file.Path;
-import java.util.Collections;
+import java.util.Arrays;
 
 public final class  InMemoryUserManager
     implements UserManager
@@ -44,8 +45,8 @@ public final class  InMemoryUserManager
         user.setName(USERNAME);
         user.setPassword(PASSWORD);
         user.setHomeDirectory(baseDir.toString());
-        final Authority auth = new ConcurrentLoginPermission(10, 10);
-        user.setAuthorities(Collections.singletonList(auth));
+        user.setAuthorities(Arrays.<Authority>asList(
+            new ConcurrentLoginPermission(10, 10), new WritePermission()));
     }
 
     @Override
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package com.github.fge.ftpfs.util;
+
+import com.github.fge.ftpfs.server.DeletionFileVisitor;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.*;
+
+/*
+ * The upload logic does not depend on the target being an FTP file system: use
+ * the default file system on both ends
+ */
+public final class BulkUploadTest
+{
+    private Path source;
+    private Path target;
+
+    @BeforeMethod
+    public void init()
+        throws IOException
+    {
+        source = Files.createTempDirectory("bulk-source");
+        target = Files.createTempDirectory("bulk-target");
+        Files.createDirectories(source.resolve("a/b/c"));
+        Files.createDirectories(source.resolve("d"));
+        write(source.resolve("top.txt"), "top");
+        write(source.resolve("a/one.txt"), "one");
+        write(source.resolve("a/b/c/deep.txt"), "deep");
+        write(source.resolve("d/other.txt"), "other");
+    }
+
+    @AfterMethod
+    public void cleanup()
+        throws IOException
+    {
+        Files.walkFileTree(source, new DeletionFileVisitor());
+        Files.walkFileTree(target, new DeletionFileVisitor());
+    }
+
+    @Test
+    public void treeIsUploadedWithProgress()
+        throws IOException
+    {
+        final AtomicLong lastBytes = new AtomicLong();
+        final AtomicLong calls = new AtomicLong();
+
+        BulkUpload.newBuilder(source, target).setConcurrency(2)
+            .setProgressListener(new BulkUpload.ProgressListener()
+            {
+                @Override
+                public void progress(final long filesDone,
+                    final long filesTotal, final long bytesDone,
+                    final long bytesTotal)
+                {
+                    assertEquals(filesTotal, 4L);
+                    assertEquals(bytesTotal, 15L);
+                    calls.incrementAndGet();
+                    if (filesDone == filesTotal)
+                        lastBytes.set(bytesDone);
+                }
+            }).build().run();
+
+        assertEquals(calls.get(), 4L);
+        assertEquals(lastBytes.get(), 15L);
+        assertEquals(read(target.resolve("top.txt")), "top");
+        assertEquals(read(target.resolve("a/one.txt")), "one");
+        assertEquals(read(target.resolve("a/b/c/deep.txt")), "deep");
+        assertEquals(read(target.resolve("d/other.txt")), "other");
+    }
+
+    @Test
+    public void failuresAreCollected()
+        throws IOException
+    {
+        // A file where a directory should be created
+        write(target.resolve("d"), "in the way");
+
+        try {
+            BulkUpload.newBuilder(source, target).build().run();
+            fail("No exception thrown!!");
+        } catch (IOException e) {
+            // directory d is "already there", but other.txt cannot go into it
+            assertEquals(e.getSuppressed().length, 1);
+        }
+
+        assertEquals(read(target.resolve("a/b/c/deep.txt")), "deep");
+    }
+
+    @Test
+    public void illegalConcurrencyIsRejected()
+    {
+        try {
+            BulkUpload.newBuilder(source, target).setConcurrency(0);
+            fail("No exception thrown!!");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "illegal concurrency 0");
+        }
+    }
+
+    private static void write(final Path path, final String content)
+        throws IOException
+    {
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(final Path path)
+        throws IOException
+    {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of both licenses is available under the src/resources/ directory of
+ * this project (under the names LGPL-3.0.txt and ASL-2.0.txt respectively).
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.ftpfs.util;
+
+import com.github.fge.ftpfs.FtpFileSystemProvider;
+import com.github.fge.ftpfs.io.commonsnetimpl.CommonsNetFtpAgentFactory;
+import com.github.fge.ftpfs.server.DeletionFileVisitor;
+import com.github.fge.ftpfs.server.FtpServers;
+import com.github.fge.ftpfs.server.InMemoryUserManager;
+import com.github.fge.ftpfs.server.TemporaryFileSystem;
+import org.apache.ftpserver.FtpServer;
+import org.apache.ftpserver.listener.Listener;
+import org.apache.ftpserver.listener.ListenerFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.testng.Assert.*;
+
+/*
+ * Snapshots only use the Files API: use the default file system, and an
+ * embedded server to check that FTP directories are recognized as such
+ */
+public final class TreeSnapshotTest
+{
+    private Path root;
+    private Path file;
+
+    @BeforeMethod
+    public void init()
+        throws IOException
+    {
+        root = Files.createTempDirectory("snapshot-root");
+        file = Files.createTempFile("snapshot", ".bin");
+        Files.createDirectories(root.resolve("a/b"));
+        Files.createDirectories(root.resolve("d"));
+        write(root.resolve("top.txt"), "top");
+        write(root.resolve("a/one.csv"), "one");
+        write(root.resolve("a/b/deep.csv"), "deeper");
+        write(root.resolve("d/other.txt"), "other");
+    }
+
+    @AfterMethod
+    public void cleanup()
+        throws IOException
+    {
+        Files.walkFileTree(root, new DeletionFileVisitor());
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void savedSnapshotsAreLoadedUnchanged()
+        throws IOException
+    {
+        final TreeSnapshot snapshot = TreeSnapshot.take(root, 2);
+        snapshot.save(file);
+        final TreeSnapshot loaded = TreeSnapshot.load(root, file);
+
+        assertEquals(loaded.size(), 7);
+        assertEquals(loaded.getCreationTime(), snapshot.getCreationTime());
+        final BasicFileAttributes attributes
+            = loaded.getAttributes(root.resolve("a/b/deep.csv"));
+        assertTrue(attributes.isRegularFile());
+        assertEquals(attributes.size(), 6L);
+        assertEquals(attributes.lastModifiedTime().toMillis(),
+            Files.getLastModifiedTime(root.resolve("a/b/deep.csv"))
+                .toMillis());
+        assertTrue(loaded.getAttributes(root.resolve("a/b")).isDirectory());
+    }
+
+    @Test
+    public void queriesAreAnsweredFromTheSnapshot()
+        throws IOException
+    {
+        final TreeSnapshot snapshot = TreeSnapshot.take(root, 2);
+        Files.delete(root.resolve("a/one.csv"));
+
+        assertEquals(snapshot.find(root, TreeSnapshot.nameMatches(".*\\.csv")),
+            Arrays.asList(root.resolve("a/b/deep.csv"),
+                root.resolve("a/one.csv")));
+        assertEquals(snapshot.find(root.resolve("a/b"),
+            TreeSnapshot.sizeAtLeast(4L)),
+            Collections.singletonList(root.resolve("a/b/deep.csv")));
+    }
+
+    @Test
+    public void refreshOnlyWalksTheGivenSubtree()
+        throws IOException
+    {
+        final TreeSnapshot snapshot = TreeSnapshot.take(root, 2);
+        write(root.resolve("a/new.txt"), "new");
+        Files.walkFileTree(root.resolve("d"), new DeletionFileVisitor());
+
+        TreeSnapshot refreshed = snapshot.refresh(root.resolve("a"), 2);
+        assertNotNull(refreshed.getAttributes(root.resolve("a/new.txt")));
+        assertNotNull(refreshed.getAttributes(root.resolve("d/other.txt")));
+        assertNull(snapshot.getAttributes(root.resolve("a/new.txt")));
+
+        refreshed = refreshed.refresh(root.resolve("d"), 2);
+        assertNull(refreshed.getAttributes(root.resolve("d")));
+        assertNull(refreshed.getAttributes(root.resolve("d/other.txt")));
+        assertEquals(refreshed.size(), 6);
+    }
+
+    @Test
+    public void snapshotsOfAnotherRootAreRejected()
+        throws IOException
+    {
+        TreeSnapshot.take(root.resolve("a"), 2).save(file);
+
+        try {
+            TreeSnapshot.load(root, file);
+            fail("No exception thrown!!");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), file + " is a snapshot of "
+                + root.resolve("a") + ", not " + root);
+        }
+    }
+
+    @Test
+    public void remoteTreesAreWalked()
+        throws Exception
+    {
+        final TemporaryFileSystem tfs = new TemporaryFileSystem();
+        final ListenerFactory factory = new ListenerFactory();
+        factory.setPort(0);
+        final Listener listener = factory.createListener();
+        final FtpServer server = FtpServers.createServer(tfs, listener);
+        server.start();
+        final Map<String, String> env = new HashMap<>();
+        env.put("username", InMemoryUserManager.USERNAME);
+        env.put("password", InMemoryUserManager.PASSWORD);
+
+        try (
+            final FileSystem fs = new FtpFileSystemProvider(
+                new CommonsNetFtpAgentFactory()).newFileSystem(
+                URI.create("ftp://localhost:" + listener.getPort()), env);
+        ) {
+            tfs.createDirs("a/b", "rwxr-xr-x");
+            write(tfs.getBaseDir().resolve("a/one.csv"), "one");
+            write(tfs.getBaseDir().resolve("a/b/deep.csv"), "deeper");
+
+            TreeSnapshot snapshot = TreeSnapshot.take(fs.getPath("/a"), 2);
+            assertEquals(snapshot.size(), 3);
+            assertEquals(snapshot.getAttributes(fs.getPath("/a/b/deep.csv"))
+                .size(), 6L);
+
+            snapshot = snapshot.refresh(fs.getPath("/a/b"), 2);
+            assertEquals(snapshot.size(), 3);
+            assertEquals(TreeSnapshot.take(fs.getPath("/"), 2).size(), 4);
+        } finally {
+            server.stop();
+            tfs.delete();
+        }
+    }
+
+    private static void write(final Path path, final String content)
+        throws IOException
+    {
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+}